@@ -0,0 +1,418 @@
+import java.io.Writer;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Throughput and latency benchmark of every menu operation of
+ * AirlineManagement, run against a loaded database.
+ *
+ * Each operation is run by a number of threads for a warmup period, whose
+ * timings are thrown away, and then for a measured period.  Parameters are
+ * drawn from keys sampled from the database with a seeded Random, so two
+ * runs against the same data issue the same requests.  Rows are rendered
+ * into a writer that discards them, so the figures include formatting but
+ * not the terminal.
+ *
+ * Usage:
+ *    java AirlineBenchmark <dbname> <port> <user> [--threads N] [--warmup S]
+ *         [--measure S] [--seed N] [--ops name,name,...] [--no-writes]
+ *
+ */
+public class AirlineBenchmark {
+
+   // sampled keys per kind
+   private static final int SAMPLE_KEYS = 1000;
+
+   // rows drawn from a large table to sample its keys from: enough that a
+   // sample seldom comes out smaller than SAMPLE_KEYS
+   private static final int SAMPLE_KEYS_READ = 2 * SAMPLE_KEYS;
+
+   // latency percentiles reported
+   private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+   /**
+    * One benchmarked operation.
+    */
+   interface Op {
+      void run(AirlineManagement esql, Keys keys, Random rnd, ResultRenderer out) throws Exception;
+   }//end Op
+
+   /**
+    * Keys sampled from the database that the operations draw their
+    * parameters from.
+    */
+   static class Keys {
+      final List<String> flights = new ArrayList<String>();
+      // flight number and date of existing instances
+      final List<String> instanceFlights = new ArrayList<String>();
+      final List<LocalDate> instanceDates = new ArrayList<LocalDate>();
+      final List<Integer> instanceIDs = new ArrayList<Integer>();
+      final List<LocalDate> dates = new ArrayList<LocalDate>();
+      final List<String> reservations = new ArrayList<String>();
+      final List<String> planes = new ArrayList<String>();
+      final List<String> technicians = new ArrayList<String>();
+      final List<String> pilots = new ArrayList<String>();
+      final List<Integer> customers = new ArrayList<Integer>();
+      // departure and arrival city of each flight route
+      final List<String[]> routes = new ArrayList<String[]>();
+
+      static <T> T pick(List<T> list, Random rnd) {
+         return list.get(rnd.nextInt(list.size()));
+      }//end pick
+   }//end Keys
+
+   private static final String[] STATUSES = {"reserved", "waitlist", "flown"};
+   private static final String[] REPAIR_CODES = {"RC001", "RC002", "RC003", "RC004", "RC005"};
+
+   // passengers per group reservation
+   private static final int GROUP_SIZE = 10;
+
+   // the operations by name, in menu order; writes are marked with a *
+   private static Map<String, Op> operations() {
+      Map<String, Op> ops = new LinkedHashMap<String, Op>();
+      ops.put("schedule", (esql, k, rnd, out) ->
+         AirlineManagement.ScheduleFromFlightNum(esql, Keys.pick(k.flights, rnd), out));
+      ops.put("seats", (esql, k, rnd, out) -> {
+         int i = rnd.nextInt(k.instanceIDs.size());
+         AirlineManagement.GetSeats(esql, k.instanceFlights.get(i), k.instanceDates.get(i), rnd.nextBoolean());
+      });
+      ops.put("onTime", (esql, k, rnd, out) -> {
+         int i = rnd.nextInt(k.instanceIDs.size());
+         AirlineManagement.OnTime(esql, k.instanceFlights.get(i), k.instanceDates.get(i), rnd.nextBoolean());
+      });
+      ops.put("flightsOfTheDay", (esql, k, rnd, out) ->
+         AirlineManagement.FlightsOfTheDay(esql, Keys.pick(k.dates, rnd), out));
+      ops.put("passengers", (esql, k, rnd, out) -> {
+         int i = rnd.nextInt(k.instanceIDs.size());
+         AirlineManagement.ListPassangers(esql, k.instanceFlights.get(i), k.instanceDates.get(i),
+                                          STATUSES[rnd.nextInt(STATUSES.length)], out);
+      });
+      ops.put("passengerInfo", (esql, k, rnd, out) ->
+         AirlineManagement.PassengerInfo(esql, Keys.pick(k.reservations, rnd), out));
+      ops.put("planeInfo", (esql, k, rnd, out) ->
+         AirlineManagement.FindPlaneInfo(esql, Keys.pick(k.planes, rnd), out));
+      ops.put("repairsOfPerson", (esql, k, rnd, out) ->
+         AirlineManagement.RepairsOfPerson(esql, Keys.pick(k.technicians, rnd), null,
+                                           KeysetPager.Direction.NEXT, esql.getPageSize(), out));
+      ops.put("repairsOnDates", (esql, k, rnd, out) -> {
+         LocalDate from = Keys.pick(k.dates, rnd);
+         AirlineManagement.RepairsOnDates(esql, Keys.pick(k.planes, rnd), from, from.plusDays(30), out);
+      });
+      ops.put("flightStats", (esql, k, rnd, out) -> {
+         LocalDate from = Keys.pick(k.dates, rnd);
+         AirlineManagement.ShowFlightStats(esql, Keys.pick(k.flights, rnd), from, from.plusDays(30));
+      });
+      ops.put("findFlights", (esql, k, rnd, out) -> {
+         String[] route = Keys.pick(k.routes, rnd);
+         AirlineManagement.FindFlightsOnDate(esql, route[0], route[1], Keys.pick(k.dates, rnd));
+      });
+      ops.put("ticketCost", (esql, k, rnd, out) ->
+         AirlineManagement.GetTicketCost(esql, Keys.pick(k.flights, rnd), null,
+                                         KeysetPager.Direction.NEXT, esql.getPageSize(), out));
+      ops.put("airplaneType", (esql, k, rnd, out) ->
+         AirlineManagement.GetAirplaneType(esql, Keys.pick(k.flights, rnd), out));
+      ops.put("repairsForPlane", (esql, k, rnd, out) -> {
+         LocalDate from = Keys.pick(k.dates, rnd);
+         AirlineManagement.GetRepairsForPlane(esql, Keys.pick(k.planes, rnd), from, from.plusDays(30), out);
+      });
+      ops.put("pilotRequests", (esql, k, rnd, out) ->
+         AirlineManagement.GetPilotRequests(esql, Keys.pick(k.pilots, rnd), null,
+                                            KeysetPager.Direction.NEXT, esql.getPageSize(), out));
+      ops.put("*reservation", (esql, k, rnd, out) ->
+         AirlineManagement.MakeReservation(esql, Keys.pick(k.customers, rnd), Keys.pick(k.instanceIDs, rnd)));
+      ops.put("*groupReservation", (esql, k, rnd, out) -> {
+         int[] customers = new int[GROUP_SIZE];
+         int[] instances = new int[GROUP_SIZE];
+         int instance = Keys.pick(k.instanceIDs, rnd);
+         for (int i = 0; i < GROUP_SIZE; ++i) {
+            customers[i] = Keys.pick(k.customers, rnd);
+            instances[i] = instance;
+         }//end for
+         AirlineManagement.MakeGroupReservation(esql, customers, instances);
+      });
+      ops.put("*logRepair", (esql, k, rnd, out) ->
+         AirlineManagement.LogRepair(esql, Keys.pick(k.technicians, rnd), Keys.pick(k.planes, rnd),
+                                     REPAIR_CODES[rnd.nextInt(REPAIR_CODES.length)]));
+      ops.put("*maintenanceRequest", (esql, k, rnd, out) ->
+         AirlineManagement.SubmitMaintenanceRequest(esql, Keys.pick(k.pilots, rnd), Keys.pick(k.planes, rnd),
+                                                    REPAIR_CODES[rnd.nextInt(REPAIR_CODES.length)]));
+      return ops;
+   }//end operations
+
+   // timings of one operation across all threads
+   private static class Result {
+      long ops = 0;
+      long errors = 0;
+      long[] latencies = new long[0];
+      double seconds;
+
+      synchronized void merge(long[] nanos, int count, long errs) {
+         int n = this.latencies.length;
+         this.latencies = Arrays.copyOf(this.latencies, n + count);
+         System.arraycopy(nanos, 0, this.latencies, n, count);
+         this.ops += count;
+         this.errors += errs;
+      }//end merge
+   }//end Result
+
+   // a writer that drops everything, so rendering costs but printing does not
+   private static class NullWriter extends Writer {
+      public void write(char[] cbuf, int off, int len) { }
+      public void write(int c) { }
+      public void write(String str, int off, int len) { }
+      public void flush() { }
+      public void close() { }
+   }//end NullWriter
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println(
+            "Usage: java [-classpath <classpath>] " + AirlineBenchmark.class.getName() +
+            " <dbname> <port> <user> [--threads N] [--warmup S] [--measure S]" +
+            " [--seed N] [--ops name,...] [--no-writes]");
+         return;
+      }//end if
+
+      int threads = 4;
+      int warmup = 5;
+      int measure = 10;
+      long seed = 42;
+      boolean writes = true;
+      List<String> only = null;
+      for (int i = 3; i < args.length; ++i) {
+         switch (args[i]) {
+            case "--threads": threads = Integer.parseInt(args[++i]); break;
+            case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+            case "--measure": measure = Integer.parseInt(args[++i]); break;
+            case "--seed": seed = Long.parseLong(args[++i]); break;
+            case "--ops": only = Arrays.asList(args[++i].split(",")); break;
+            case "--no-writes": writes = false; break;
+            default:
+               System.err.println("Unknown option: " + args[i]);
+               return;
+         }//end switch
+      }//end for
+
+      Class.forName("org.postgresql.Driver");
+      AirlineManagement esql = new AirlineManagement(args[0], args[1], args[2], "",
+         Math.max(threads, Integer.getInteger("airline.pool.size", threads)));
+      try {
+         Keys keys = sampleKeys(esql, new Random(seed));
+         System.out.println("Sampled " + keys.flights.size() + " flights, " + keys.instanceIDs.size() +
+                            " instances, " + keys.reservations.size() + " reservations");
+
+         ResultRenderer report = ResultRenderer.toStdout(ResultRenderer.Format.parse(System.getProperty("airline.output")));
+         ResultRenderer.Table table = report.begin(
+            "operation", "threads", "ops", "errors", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+         for (Map.Entry<String, Op> e : operations().entrySet()) {
+            String name = e.getKey();
+            boolean write = name.startsWith("*");
+            if (write)
+               name = name.substring(1);
+            if (write && !writes)
+               continue;
+            if (only != null && !only.contains(name))
+               continue;
+
+            System.out.println("Running " + name + "...");
+            Result r = run(esql, keys, e.getValue(), threads, warmup, measure, seed);
+            Arrays.sort(r.latencies);
+            table.cell(name).cell(Integer.toString(threads))
+                 .cell(Long.toString(r.ops)).cell(Long.toString(r.errors))
+                 .cell(String.format("%.1f", r.ops / r.seconds));
+            for (double p : PERCENTILES)
+               table.cell(micros(percentile(r.latencies, p)));
+            table.cell(micros(r.latencies.length == 0 ? 0 : r.latencies[r.latencies.length - 1]));
+            table.endRow();
+         }//end for
+         table.end();
+      } finally {
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   // runs one operation on every thread through the warmup and measure periods
+   private static Result run(final AirlineManagement esql, final Keys keys, final Op op,
+                             int threads, int warmupSeconds, int measureSeconds, long seed) throws InterruptedException {
+      final Result result = new Result();
+      final AtomicBoolean measuring = new AtomicBoolean(false);
+      final AtomicBoolean stop = new AtomicBoolean(false);
+      final CountDownLatch done = new CountDownLatch(threads);
+      List<Thread> workers = new ArrayList<Thread>();
+      for (int t = 0; t < threads; ++t) {
+         final Random rnd = new Random(seed + t);
+         Thread worker = new Thread(() -> {
+            ResultRenderer out = new ResultRenderer(new NullWriter(), ResultRenderer.Format.ALIGNED);
+            long[] nanos = new long[1 << 12];
+            int count = 0;
+            long errors = 0;
+            try {
+               while (!stop.get()) {
+                  boolean measured = measuring.get();
+                  long start = System.nanoTime();
+                  boolean ok = true;
+                  try {
+                     op.run(esql, keys, rnd, out);
+                  } catch (Exception e) {
+                     ok = false;
+                  }//end try
+                  long elapsed = System.nanoTime() - start;
+                  if (!measured || stop.get())
+                     continue;
+                  if (!ok) {
+                     ++errors;
+                     continue;
+                  }//end if
+                  if (count == nanos.length)
+                     nanos = Arrays.copyOf(nanos, count * 2);
+                  nanos[count++] = elapsed;
+               }//end while
+            } finally {
+               result.merge(nanos, count, errors);
+               done.countDown();
+            }//end try
+         }, "bench-" + t);
+         worker.setDaemon(true);
+         workers.add(worker);
+      }//end for
+
+      for (Thread w : workers)
+         w.start();
+      Thread.sleep(warmupSeconds * 1000L);
+      measuring.set(true);
+      long start = System.nanoTime();
+      Thread.sleep(measureSeconds * 1000L);
+      stop.set(true);
+      result.seconds = (System.nanoTime() - start) / 1e9;
+      done.await();
+      return result;
+   }//end run
+
+   // draws up to SAMPLE_KEYS keys of each kind, in a random but seeded order
+   private static Keys sampleKeys(AirlineManagement esql, Random rnd) throws Exception {
+      Keys k = new Keys();
+      try (ResultCursor rs = esql.openCursor("SELECT FlightNumber, DepartureCity, ArrivalCity FROM Flight ORDER BY FlightNumber")) {
+         while (rs.next()) {
+            k.flights.add(rs.getString(1));
+            k.routes.add(new String[]{rs.getString(2), rs.getString(3)});
+         }//end while
+      }//end try
+      try (ResultCursor rs = esql.openCursor(
+            "SELECT FlightInstanceID, FlightNumber, FlightDate " + sampleOf(esql, "FlightInstance", rnd) +
+            " ORDER BY FlightInstanceID")) {
+         while (rs.next()) {
+            k.instanceIDs.add(rs.getInt(1));
+            k.instanceFlights.add(rs.getString(2));
+            k.instanceDates.add(rs.getLocalDate(3));
+         }//end while
+      }//end try
+      try (ResultCursor rs = esql.openCursor("SELECT DISTINCT FlightDate FROM FlightInstance ORDER BY FlightDate")) {
+         while (rs.next())
+            k.dates.add(rs.getLocalDate(1));
+      }//end try
+      readColumn(esql, "SELECT ReservationID " + sampleOf(esql, "Reservation", rnd) + " ORDER BY ReservationID",
+                 k.reservations);
+      readColumn(esql, "SELECT PlaneID FROM Plane ORDER BY PlaneID", k.planes);
+      readColumn(esql, "SELECT TechnicianID FROM Technician ORDER BY TechnicianID", k.technicians);
+      readColumn(esql, "SELECT PilotID FROM Pilot ORDER BY PilotID", k.pilots);
+      try (ResultCursor rs = esql.openCursor(
+            "SELECT CustomerID " + sampleOf(esql, "Customer", rnd) + " ORDER BY CustomerID")) {
+         while (rs.next())
+            k.customers.add(rs.getInt(1));
+      }//end try
+
+      // keep the instance columns aligned while sampling them
+      int[] order = sample(k.instanceIDs.size(), rnd);
+      List<Integer> ids = new ArrayList<Integer>();
+      List<String> flights = new ArrayList<String>();
+      List<LocalDate> dates = new ArrayList<LocalDate>();
+      for (int i : order) {
+         ids.add(k.instanceIDs.get(i));
+         flights.add(k.instanceFlights.get(i));
+         dates.add(k.instanceDates.get(i));
+      }//end for
+      k.instanceIDs.clear(); k.instanceIDs.addAll(ids);
+      k.instanceFlights.clear(); k.instanceFlights.addAll(flights);
+      k.instanceDates.clear(); k.instanceDates.addAll(dates);
+
+      shrink(k.flights, rnd);
+      shrink(k.routes, rnd);
+      shrink(k.dates, rnd);
+      shrink(k.reservations, rnd);
+      shrink(k.planes, rnd);
+      shrink(k.technicians, rnd);
+      shrink(k.pilots, rnd);
+      shrink(k.customers, rnd);
+      if (k.flights.isEmpty() || k.instanceIDs.isEmpty() || k.planes.isEmpty())
+         throw new IllegalStateException("the database has no flights, instances or planes to benchmark");
+      return k;
+   }//end sampleKeys
+
+   // FROM clause drawing about SAMPLE_KEYS_READ rows of a large table on the
+   // server, seeded so that two runs draw the same rows of the same data
+   private static String sampleOf(AirlineManagement esql, String table, Random rnd) throws Exception {
+      long rows = 0;
+      try (ResultCursor rs = esql.openCursor(0, "SELECT reltuples::bigint FROM pg_class WHERE relname = ?",
+                                             table.toLowerCase())) {
+         if (rs.next())
+            rows = rs.getLong(1);
+      }//end try
+      if (rows <= 0) {
+         // never analyzed: count once
+         try (ResultCursor rs = esql.openCursor(0, "SELECT COUNT(*) FROM " + table)) {
+            rs.next();
+            rows = rs.getLong(1);
+         }//end try
+      }//end if
+      double percent = rows <= SAMPLE_KEYS_READ ? 100.0 : 100.0 * SAMPLE_KEYS_READ / rows;
+      return String.format(Locale.ROOT, "FROM %s TABLESAMPLE BERNOULLI (%.6f) REPEATABLE (%d)", table, percent, rnd.nextInt(1 << 30));
+   }//end sampleOf
+
+   private static void readColumn(AirlineManagement esql, String sql, List<String> into) throws Exception {
+      try (ResultCursor rs = esql.openCursor(sql)) {
+         while (rs.next())
+            into.add(rs.getString(1));
+      }//end try
+   }//end readColumn
+
+   // indexes of up to SAMPLE_KEYS distinct elements out of n
+   private static int[] sample(int n, Random rnd) {
+      int[] idx = new int[n];
+      for (int i = 0; i < n; ++i)
+         idx[i] = i;
+      int m = Math.min(n, SAMPLE_KEYS);
+      for (int i = 0; i < m; ++i) {
+         int j = i + rnd.nextInt(n - i);
+         int tmp = idx[i]; idx[i] = idx[j]; idx[j] = tmp;
+      }//end for
+      return Arrays.copyOf(idx, m);
+   }//end sample
+
+   private static <T> void shrink(List<T> list, Random rnd) {
+      List<T> kept = new ArrayList<T>();
+      for (int i : sample(list.size(), rnd))
+         kept.add(list.get(i));
+      list.clear();
+      list.addAll(kept);
+   }//end shrink
+
+   private static long percentile(long[] sorted, double p) {
+      if (sorted.length == 0)
+         return 0;
+      int i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+      return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+   }//end percentile
+
+   private static String micros(long nanos) {
+      return String.format("%.1f", nanos / 1000.0);
+   }//end micros
+
+}//end AirlineBenchmark
@@ -0,0 +1,435 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Writes the ten data/*.csv files in the shape of create_tables.sql at a
+ * chosen scale factor, for loading with load_data.sql or BulkLoader.
+ *
+ * Scale factor 1 is about one million reservations.  Traffic tables
+ * (Customer, FlightInstance, Reservation, Repair, MaintenanceRequest) grow
+ * linearly with the scale factor and the fleet tables (Plane, Flight,
+ * Schedule, Technician, Pilot) with its square root, so a larger dataset
+ * has busier flights rather than just more of them.  Demand is skewed: city
+ * pairs and flights are picked with a Zipf distribution, and some dates are
+ * much more popular than others, so hot instances sell out and build up
+ * waitlists.
+ *
+ * Every table draws from its own SplittableRandom seeded from the base
+ * seed, so the same arguments always produce the same files.  Rows are
+ * streamed to disk as they are made; memory use depends on the fleet size
+ * only.  Each flight instance is written together with its reservations so
+ * SeatsSold always equals the number of reserved and flown rows.
+ *
+ * Usage:
+ *    java DatasetGenerator <outdir> [--scale SF] [--seed N] [--start YYYY-MM-DD]
+ *
+ */
+public class DatasetGenerator {
+
+   // table sizes at scale factor 1
+   private static final long CUSTOMERS = 100_000;
+   private static final long INSTANCES = 20_000;
+   private static final long RESERVATIONS = 1_000_000;
+   private static final long REPAIRS = 10_000;
+   private static final long REQUESTS = 10_000;
+   private static final int PLANES = 50;
+   private static final int FLIGHTS = 500;
+   private static final int TECHNICIANS = 50;
+   private static final int PILOTS = 100;
+
+   // scheduled days per flight and week
+   private static final int DAYS_PER_WEEK = 5;
+
+   // Zipf exponents of route, flight and date popularity
+   private static final double ROUTE_SKEW = 1.0;
+   private static final double FLIGHT_SKEW = 0.8;
+   private static final double DATE_SKEW = 0.5;
+
+   // a waitlist holds at most this fraction of the seats
+   private static final double MAX_WAITLIST = 0.2;
+
+   private static final int BUFFER_SIZE = 1 << 20;
+
+   private static final String[] CITIES = {
+      "New York", "Los Angeles", "Chicago", "Dallas", "Miami", "Seattle", "San Francisco",
+      "Boston", "Atlanta", "Denver", "Houston", "Phoenix", "Las Vegas", "Orlando",
+      "Washington", "Philadelphia", "Detroit", "Minneapolis", "Portland", "San Diego",
+      "Charlotte", "Nashville", "Austin", "Salt Lake City", "Kansas City", "New Orleans",
+      "Honolulu", "Anchorage", "St. Louis", "Pittsburgh"
+   };
+   private static final String[][] MODELS = {
+      {"Boeing", "737"}, {"Boeing", "747"}, {"Boeing", "777"}, {"Boeing", "787"},
+      {"Airbus", "A320"}, {"Airbus", "A321"}, {"Airbus", "A330"}, {"Airbus", "A350"},
+      {"Embraer", "E175"}, {"Bombardier", "CRJ900"}
+   };
+   private static final int[] SEATS = {180, 410, 350, 290, 180, 220, 300, 325, 76, 90};
+   private static final String[] FIRST_NAMES = {
+      "James", "Mary", "Robert", "Patricia", "John", "Jennifer", "Michael", "Linda", "David",
+      "Elizabeth", "William", "Barbara", "Richard", "Susan", "Joseph", "Jessica", "Thomas",
+      "Sarah", "Charles", "Karen", "Maria", "Peter", "Margaret", "Noah", "Monica", "Jamie"
+   };
+   private static final String[] LAST_NAMES = {
+      "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis",
+      "Rodriguez", "Martinez", "Hernandez", "Lopez", "Wilson", "Anderson", "Thomas",
+      "Taylor", "Moore", "Jackson", "Martin", "Lee", "Hawkins", "Callahan", "Hill", "Rhodes"
+   };
+   private static final String[] STREETS = {
+      "Main St", "Oak Ave", "Pine Rd", "Maple Dr", "Cedar Ln", "Elm St", "Lake Blvd",
+      "Hill Rd", "Park Ave", "River Way"
+   };
+   private static final String[] STATES = {
+      "CA", "NY", "TX", "FL", "WA", "IL", "MA", "GA", "CO", "AZ", "NV", "OR"
+   };
+   private static final String[] REPAIR_CODES = {
+      "RC001", "RC002", "RC003", "RC004", "RC005", "RC006", "RC007", "RC008"
+   };
+   private static final String[] WEEKDAYS = {
+      "Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday", "Sunday"
+   };
+
+   /**
+    * Draws indexes 0..n-1 with probability proportional to 1 / (rank + 1)^s,
+    * where the rank of each index is a seeded shuffle so that the popular
+    * items are not simply the first ones.
+    */
+   static class Zipf {
+      private final double[] _cdf;
+      private final int[] _item;
+
+      Zipf(int n, double s, SplittableRandom rnd) {
+         this._cdf = new double[n];
+         this._item = new int[n];
+         double sum = 0;
+         for (int i = 0; i < n; ++i) {
+            sum += 1.0 / Math.pow(i + 1, s);
+            this._cdf[i] = sum;
+            this._item[i] = i;
+         }//end for
+         for (int i = 0; i < n; ++i)
+            this._cdf[i] /= sum;
+         for (int i = n - 1; i > 0; --i) {
+            int j = rnd.nextInt(i + 1);
+            int tmp = this._item[i]; this._item[i] = this._item[j]; this._item[j] = tmp;
+         }//end for
+      }//end Zipf
+
+      int next(SplittableRandom rnd) {
+         int i = Arrays.binarySearch(this._cdf, rnd.nextDouble());
+         if (i < 0)
+            i = -i - 1;
+         return this._item[Math.min(i, this._item.length - 1)];
+      }//end next
+
+      // relative weight of every item, the mean over all items being 1
+      double[] weights() {
+         int n = this._item.length;
+         double[] w = new double[n];
+         for (int rank = 0; rank < n; ++rank)
+            w[this._item[rank]] = (this._cdf[rank] - (rank == 0 ? 0 : this._cdf[rank - 1])) * n;
+         return w;
+      }//end weights
+   }//end Zipf
+
+   private final File _dir;
+   private final long _seed;
+   private final LocalDate _start;
+
+   private final long _customers;
+   private final long _instances;
+   private final long _reservations;
+   private final long _repairs;
+   private final long _requests;
+   private final int _planes;
+   private final int _flights;
+   private final int _technicians;
+   private final int _pilots;
+
+   // fleet, kept in memory: plane model, flight plane, flight weekdays and popularity
+   private int[] _planeModel;
+   private int[] _flightPlane;
+   private boolean[][] _flightDays;
+   private double[] _flightWeight;
+
+   public DatasetGenerator(File dir, double scale, long seed, LocalDate start) {
+      this._dir = dir;
+      this._seed = seed;
+      this._start = start;
+      double fleet = Math.sqrt(scale);
+      this._customers = Math.max(10, Math.round(CUSTOMERS * scale));
+      this._instances = Math.max(10, Math.round(INSTANCES * scale));
+      this._reservations = Math.max(10, Math.round(RESERVATIONS * scale));
+      this._repairs = Math.max(1, Math.round(REPAIRS * scale));
+      this._requests = Math.max(1, Math.round(REQUESTS * scale));
+      this._planes = (int) Math.max(2, Math.round(PLANES * fleet));
+      this._flights = (int) Math.max(2, Math.round(FLIGHTS * fleet));
+      this._technicians = (int) Math.max(2, Math.round(TECHNICIANS * fleet));
+      this._pilots = (int) Math.max(2, Math.round(PILOTS * fleet));
+   }//end DatasetGenerator
+
+   /**
+    * Writes all ten files.
+    *
+    * @throws java.io.IOException when failed to write a file
+    */
+   public void generate() throws IOException {
+      this._dir.mkdirs();
+      writePlanes();
+      writeFlights();
+      writeSchedules();
+      writeCustomers();
+      writeInstancesAndReservations();
+      writeStaff("Technician.csv", "TechnicianID,Name", "T", this._technicians, 4);
+      writeStaff("Pilot.csv", "PilotID,Name", "P", this._pilots, 5);
+      writeMaintenance("Repair.csv", "RepairID,PlaneID,RepairCode,RepairDate,TechnicianID",
+                       "T", this._technicians, this._repairs, 6);
+      writeMaintenance("MaintenanceRequest.csv", "RequestID,PlaneID,RepairCode,RequestDate,PilotID",
+                       "P", this._pilots, this._requests, 7);
+   }//end generate
+
+   private void writePlanes() throws IOException {
+      SplittableRandom rnd = random(1);
+      this._planeModel = new int[this._planes];
+      try (Writer out = open("Plane.csv", "PlaneID,Make,Model,Year,LastRepairDate")) {
+         for (int p = 0; p < this._planes; ++p) {
+            int m = rnd.nextInt(MODELS.length);
+            this._planeModel[p] = m;
+            out.write(planeID(p)); out.write(',');
+            out.write(MODELS[m][0]); out.write(',');
+            out.write(MODELS[m][1]); out.write(',');
+            out.write(Integer.toString(1995 + rnd.nextInt(30))); out.write(',');
+            out.write(this._start.minusDays(1 + rnd.nextInt(365)).toString()); out.write('\n');
+         }//end for
+      }//end try
+   }//end writePlanes
+
+   private void writeFlights() throws IOException {
+      SplittableRandom rnd = random(2);
+      int pairs = CITIES.length * (CITIES.length - 1);
+      Zipf routes = new Zipf(pairs, ROUTE_SKEW, rnd);
+      this._flightWeight = new Zipf(this._flights, FLIGHT_SKEW, rnd).weights();
+      this._flightPlane = new int[this._flights];
+      this._flightDays = new boolean[this._flights][7];
+      try (Writer out = open("Flight.csv", "FlightNumber,PlaneID,DepartureCity,ArrivalCity")) {
+         for (int f = 0; f < this._flights; ++f) {
+            int route = routes.next(rnd);
+            int dep = route / (CITIES.length - 1);
+            int arr = route % (CITIES.length - 1);
+            if (arr >= dep)
+               ++arr;
+            this._flightPlane[f] = rnd.nextInt(this._planes);
+            // DAYS_PER_WEEK distinct weekdays
+            for (int placed = 0; placed < DAYS_PER_WEEK; ) {
+               int d = rnd.nextInt(7);
+               if (!this._flightDays[f][d]) {
+                  this._flightDays[f][d] = true;
+                  ++placed;
+               }//end if
+            }//end for
+            out.write(flightNumber(f)); out.write(',');
+            out.write(planeID(this._flightPlane[f])); out.write(',');
+            out.write(CITIES[dep]); out.write(',');
+            out.write(CITIES[arr]); out.write('\n');
+         }//end for
+      }//end try
+   }//end writeFlights
+
+   private void writeSchedules() throws IOException {
+      SplittableRandom rnd = random(3);
+      long id = 0;
+      try (Writer out = open("Schedule.csv", "ScheduleID,FlightNumber,DayOfWeek,DepartureTime,ArrivalTime")) {
+         for (int f = 0; f < this._flights; ++f) {
+            int departure = 6 * 60 + 15 * rnd.nextInt(64);
+            int arrival = (departure + 60 + 15 * rnd.nextInt(20)) % (24 * 60);
+            for (int d = 0; d < 7; ++d) {
+               if (!this._flightDays[f][d])
+                  continue;
+               out.write(Long.toString(++id)); out.write(',');
+               out.write(flightNumber(f)); out.write(',');
+               out.write(WEEKDAYS[d]); out.write(',');
+               out.write(time(departure)); out.write(',');
+               out.write(time(arrival)); out.write('\n');
+            }//end for
+         }//end for
+      }//end try
+   }//end writeSchedules
+
+   private void writeCustomers() throws IOException {
+      SplittableRandom rnd = random(4);
+      LocalDate oldest = LocalDate.of(1940, 1, 1);
+      try (Writer out = open("Customer.csv", "CustomerID,FirstName,LastName,Gender,DOB,Address,Phone,Zip")) {
+         for (long c = 1; c <= this._customers; ++c) {
+            out.write(Long.toString(c)); out.write(',');
+            out.write(FIRST_NAMES[rnd.nextInt(FIRST_NAMES.length)]); out.write(',');
+            out.write(LAST_NAMES[rnd.nextInt(LAST_NAMES.length)]); out.write(',');
+            out.write(rnd.nextBoolean() ? "F" : "M"); out.write(',');
+            out.write(oldest.plusDays(rnd.nextInt(365 * 65)).toString()); out.write(',');
+            out.write('"');
+            out.write(Integer.toString(1 + rnd.nextInt(9999))); out.write(' ');
+            out.write(STREETS[rnd.nextInt(STREETS.length)]); out.write(", ");
+            out.write(CITIES[rnd.nextInt(CITIES.length)]); out.write(", ");
+            out.write(STATES[rnd.nextInt(STATES.length)]);
+            out.write('"'); out.write(',');
+            out.write(Integer.toString(200 + rnd.nextInt(800))); out.write('.');
+            writePadded(out, rnd.nextInt(1000), 3); out.write('.');
+            writePadded(out, rnd.nextInt(10000), 4); out.write(',');
+            writePadded(out, rnd.nextInt(100000), 5); out.write('\n');
+         }//end for
+      }//end try
+   }//end writeCustomers
+
+   // one instance per scheduled flight and day from the start date on, each
+   // followed by its reservations, until the instance count is reached
+   private void writeInstancesAndReservations() throws IOException {
+      SplittableRandom rnd = random(5);
+      double flightsPerDay = this._flights * DAYS_PER_WEEK / 7.0;
+      int days = (int) Math.max(1, Math.ceil(this._instances / flightsPerDay));
+      double[] dateWeight = new Zipf(days, DATE_SKEW, rnd).weights();
+      double meanDemand = (double) this._reservations / this._instances;
+      // instances before this date have flown
+      LocalDate today = this._start.plusDays(days / 2);
+
+      long instanceID = 0;
+      long reservationID = 0;
+      try (Writer inst = open("FlightInstance.csv",
+              "FlightInstanceID,FlightNumber,FlightDate,DepartedOnTime,ArrivedOnTime,SeatsTotal,SeatsSold,NumOfStops,TicketCost");
+           Writer res = open("Reservation.csv", "ReservationID,CustomerID,FlightInstanceID,Status")) {
+         for (int day = 0; day < days && instanceID < this._instances; ++day) {
+            LocalDate date = this._start.plusDays(day);
+            String dateText = date.toString();
+            int weekday = date.getDayOfWeek().getValue() - DayOfWeek.MONDAY.getValue();
+            boolean flown = date.isBefore(today);
+            for (int f = 0; f < this._flights && instanceID < this._instances; ++f) {
+               if (!this._flightDays[f][weekday])
+                  continue;
+               int seatsTotal = SEATS[this._planeModel[this._flightPlane[f]]];
+               double expected = meanDemand * this._flightWeight[f] * dateWeight[day];
+               long demand = Math.round(expected * (0.5 + rnd.nextDouble()));
+               int seatsSold = (int) Math.min(seatsTotal, demand);
+               int waitlist = (int) Math.min((long) (seatsTotal * MAX_WAITLIST), demand - seatsSold);
+
+               String id = Long.toString(++instanceID);
+               inst.write(id); inst.write(',');
+               inst.write(flightNumber(f)); inst.write(',');
+               inst.write(dateText); inst.write(',');
+               inst.write(flown && rnd.nextDouble() < 0.8 ? '1' : '0'); inst.write(',');
+               inst.write(flown && rnd.nextDouble() < 0.75 ? '1' : '0'); inst.write(',');
+               inst.write(Integer.toString(seatsTotal)); inst.write(',');
+               inst.write(Integer.toString(seatsSold)); inst.write(',');
+               inst.write(Integer.toString(rnd.nextInt(10) < 6 ? 0 : 1 + rnd.nextInt(2))); inst.write(',');
+               int cents = 9_900 + rnd.nextInt(60_000);
+               inst.write(Integer.toString(cents / 100)); inst.write('.');
+               writePadded(inst, cents % 100, 2); inst.write('\n');
+
+               // a flown instance keeps no waitlist
+               String status = flown ? "flown" : "reserved";
+               int rows = seatsSold + (flown ? 0 : waitlist);
+               for (int s = 0; s < rows; ++s) {
+                  res.write('R'); writePadded(res, ++reservationID, 4); res.write(',');
+                  res.write(Long.toString(1 + rnd.nextLong(this._customers))); res.write(',');
+                  res.write(id); res.write(',');
+                  res.write(s < seatsSold ? status : "waitlist"); res.write('\n');
+               }//end for
+            }//end for
+         }//end for
+      }//end try
+      System.out.println("Wrote " + instanceID + " flight instances and " + reservationID + " reservations");
+   }//end writeInstancesAndReservations
+
+   private void writeStaff(String file, String header, String prefix, int count, int stream) throws IOException {
+      SplittableRandom rnd = random(stream);
+      try (Writer out = open(file, header)) {
+         for (int i = 1; i <= count; ++i) {
+            out.write(staffID(prefix, i)); out.write(',');
+            out.write(FIRST_NAMES[rnd.nextInt(FIRST_NAMES.length)]); out.write(' ');
+            out.write(LAST_NAMES[rnd.nextInt(LAST_NAMES.length)]); out.write('\n');
+         }//end for
+      }//end try
+   }//end writeStaff
+
+   private void writeMaintenance(String file, String header, String prefix, int staff,
+                                 long count, int stream) throws IOException {
+      SplittableRandom rnd = random(stream);
+      try (Writer out = open(file, header)) {
+         for (long id = 1; id <= count; ++id) {
+            out.write(Long.toString(id)); out.write(',');
+            out.write(planeID(rnd.nextInt(this._planes))); out.write(',');
+            out.write(REPAIR_CODES[rnd.nextInt(REPAIR_CODES.length)]); out.write(',');
+            out.write(this._start.minusDays(rnd.nextInt(3 * 365)).toString()); out.write(',');
+            out.write(staffID(prefix, 1 + rnd.nextInt(staff))); out.write('\n');
+         }//end for
+      }//end try
+   }//end writeMaintenance
+
+   private Writer open(String file, String header) throws IOException {
+      Writer out = new BufferedWriter(new OutputStreamWriter(
+         new FileOutputStream(new File(this._dir, file)), StandardCharsets.UTF_8), BUFFER_SIZE);
+      out.write(header);
+      out.write('\n');
+      return out;
+   }//end open
+
+   // an independent stream per table, so tables do not shift each other
+   private SplittableRandom random(int stream) {
+      return new SplittableRandom(this._seed * 31 + stream);
+   }//end random
+
+   // zero padded to at least width digits, without String.format in the hot loops
+   private static void writePadded(Writer out, long value, int width) throws IOException {
+      String digits = Long.toString(value);
+      for (int i = digits.length(); i < width; ++i)
+         out.write('0');
+      out.write(digits);
+   }//end writePadded
+
+   private static String planeID(int p) {
+      return String.format("PL%03d", p + 1);
+   }//end planeID
+
+   private static String flightNumber(int f) {
+      return "F" + (100 + f);
+   }//end flightNumber
+
+   private static String staffID(String prefix, int i) {
+      return String.format("%s%03d", prefix, i);
+   }//end staffID
+
+   private static String time(int minutes) {
+      return String.format("%d:%02d", minutes / 60, minutes % 60);
+   }//end time
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 1) {
+         System.err.println(
+            "Usage: java [-classpath <classpath>] " + DatasetGenerator.class.getName() +
+            " <outdir> [--scale SF] [--seed N] [--start YYYY-MM-DD]");
+         return;
+      }//end if
+      double scale = 1;
+      long seed = 42;
+      LocalDate start = LocalDate.of(2025, 5, 5);
+      for (int i = 1; i < args.length; ++i) {
+         switch (args[i]) {
+            case "--scale": scale = Double.parseDouble(args[++i]); break;
+            case "--seed": seed = Long.parseLong(args[++i]); break;
+            case "--start": start = LocalDate.parse(args[++i]); break;
+            default:
+               System.err.println("Unknown option: " + args[i]);
+               return;
+         }//end switch
+      }//end for
+
+      long begin = System.nanoTime();
+      new DatasetGenerator(new File(args[0]), scale, seed, start).generate();
+      System.out.println("Done in " + (System.nanoTime() - begin) / 1_000_000 + " ms.");
+   }//end main
+
+}//end DatasetGenerator
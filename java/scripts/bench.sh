@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the program and the benchmark
+javac -d $DIR/../classes $DIR/../src/*.java $DIR/../bench/*.java
+
+#run the benchmark; extra options (--threads, --warmup, --measure, --seed,
+#--ops, --no-writes) are passed through
+#Use your database name, port number and login
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar AirlineBenchmark $USER"_project_phase_3_DB" $PGPORT $USER "$@"
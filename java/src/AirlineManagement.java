@@ -14,12 +14,14 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
+import java.io.IOException;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
@@ -37,8 +39,58 @@ import java.time.LocalDate;
  */
 public class AirlineManagement {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // default rows per page of the paged listings
+   public static final int DEFAULT_PAGE_SIZE = 100;
+
+   // pool of physical database connections shared by all sessions.
+   private ConnectionPool _pool = null;
+
+   // block allocator for primary keys
+   private final IdAllocator _ids = new IdAllocator(this);
+
+   // rows fetched per round trip by cursors
+   private final int _fetchSize = Integer.getInteger("airline.fetchSize", ResultCursor.DEFAULT_FETCH_SIZE);
+
+   // rows per page of the paged listings
+   private final int _pageSize = Math.max(1, Integer.getInteger("airline.pageSize", DEFAULT_PAGE_SIZE));
+
+   // buffered renderer for results printed to standard out
+   private final ResultRenderer _stdout =
+      ResultRenderer.toStdout(ResultRenderer.Format.parse(System.getProperty("airline.output")));
+
+   // city pair index answering flight searches from memory
+   private RouteIndex _routes = null;
+
+   // per-flight prefix sums behind ShowFlightStats
+   private FlightStatsRollup _flightStats = null;
+
+   // atomic seat bookings on flight instances
+   private final SeatInventory _seats = new SeatInventory(this);
+
+   // logged in users by session token
+   private final SessionManager _sessions = new SessionManager(this);
+
+   // latencies per operation and SQL template, and the slow query log
+   private final Metrics _metrics = new Metrics();
+
+   // Plane, Flight, Schedule, Technician and Pilot held in memory
+   private ReferenceCache _references = null;
+
+   // moves waitlisted reservations into seats freed by cancellations
+   private WaitlistPromoter _waitlist = null;
+
+   // open maintenance requests, most urgent first, claimed by technicians
+   private WorkQueue _workQueue = null;
+
+   // group commit of repairs and maintenance requests
+   private WriteBehind _writes = null;
+
+   // columnar copy of FlightInstance, mapped on first use
+   private volatile FlightInstanceSnapshot _snapshot = null;
+   // guards mapping _snapshot on first use, never held while exporting
+   private final Object _snapshotLock = new Object();
+   // one export at a time, an append rewrites the file in place
+   private final Object _exportLock = new Object();
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -55,6 +107,22 @@ public class AirlineManagement {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public AirlineManagement(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(dbname, dbport, user, passwd,
+           Integer.getInteger("airline.pool.size", ConnectionPool.DEFAULT_SIZE));
+   }//end AirlineManagement
+
+   /**
+    * Creates a new instance of AirlineManagement backed by a pool of at most
+    * poolSize connections
+    *
+    * @param dbname the name of the database
+    * @param dbport the port the server listens on
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param poolSize the maximum number of physical connections
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public AirlineManagement(String dbname, String dbport, String user, String passwd, int poolSize) throws SQLException {
 
       System.out.print("Connecting to database...");
       try{
@@ -62,8 +130,13 @@ public class AirlineManagement {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the pool and obtain the first physical connection
+         this._pool = new ConnectionPool(url, user, passwd, poolSize,
+            Long.getLong("airline.pool.acquireTimeoutMs", ConnectionPool.DEFAULT_ACQUIRE_TIMEOUT_MS),
+            Long.getLong("airline.pool.validateAfterMs", ConnectionPool.DEFAULT_VALIDATE_AFTER_MS));
+         this._pool.setStatementCacheSize(
+            Integer.getInteger("airline.statementCache.size", StatementCache.DEFAULT_SIZE));
+         this._pool.warmUp();
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -72,6 +145,170 @@ public class AirlineManagement {
       }//end catch
    }//end AirlineManagement
 
+   /**
+    * Borrows a connection from the pool.  Every call must be paired with
+    * releaseConnection in a finally block.
+    *
+    * @return a connection owned by the caller until released
+    * @throws java.sql.SQLException when no connection became available in time
+    */
+   PooledConnection acquireConnection() throws SQLException {
+      return this._pool.acquire();
+   }//end acquireConnection
+
+   /**
+    * Gives a borrowed connection back to the pool.
+    *
+    * @param pc the connection obtained from acquireConnection
+    * @param ok false if the last operation on it failed, so it gets validated
+    */
+   void releaseConnection(PooledConnection pc, boolean ok) {
+      if (ok)
+         this._pool.release(pc);
+      else
+         this._pool.invalidate(pc);
+   }//end releaseConnection
+
+   /**
+    * @return the allocator handing out primary keys
+    */
+   public IdAllocator getIdAllocator() {
+      return this._ids;
+   }//end getIdAllocator
+
+   /**
+    * @return the seat inventory used to book flight instances
+    */
+   public SeatInventory getSeatInventory() {
+      return this._seats;
+   }//end getSeatInventory
+
+   /**
+    * @return the sessions of logged in users
+    */
+   public SessionManager getSessions() {
+      return this._sessions;
+   }//end getSessions
+
+   /**
+    * @return the latency metrics of operations and queries
+    */
+   public Metrics getMetrics() {
+      return this._metrics;
+   }//end getMetrics
+
+   /**
+    * @return the reference table cache, created on first use
+    */
+   public synchronized ReferenceCache getReferenceCache() {
+      if (this._references == null)
+         this._references = new ReferenceCache(this);
+      return this._references;
+   }//end getReferenceCache
+
+   /**
+    * @return the route index, created on first use
+    */
+   public synchronized RouteIndex getRouteIndex() {
+      if (this._routes == null)
+         this._routes = new RouteIndex(this);
+      return this._routes;
+   }//end getRouteIndex
+
+   /**
+    * @return the flight statistics rollup, created on first use
+    */
+   public synchronized FlightStatsRollup getFlightStats() {
+      if (this._flightStats == null)
+         this._flightStats = new FlightStatsRollup(this);
+      return this._flightStats;
+   }//end getFlightStats
+
+   /**
+    * @return the waitlist promoter, created on first use; its worker runs
+    *         once started
+    */
+   public synchronized WaitlistPromoter getWaitlistPromoter() {
+      if (this._waitlist == null)
+         this._waitlist = new WaitlistPromoter(this);
+      return this._waitlist;
+   }//end getWaitlistPromoter
+
+   /**
+    * @return the technicians' work queue, created on first use
+    */
+   public synchronized WorkQueue getWorkQueue() {
+      if (this._workQueue == null)
+         this._workQueue = new WorkQueue(this);
+      return this._workQueue;
+   }//end getWorkQueue
+
+   /**
+    * @return the group commit pipeline of repair and request writes,
+    *         created on first use
+    */
+   public synchronized WriteBehind getWriteBehind() {
+      if (this._writes == null)
+         this._writes = new WriteBehind(this);
+      return this._writes;
+   }//end getWriteBehind
+
+   /**
+    * @return the file of the FlightInstance snapshot, airline.snapshot.file
+    */
+   public File getSnapshotFile() {
+      return new File(System.getProperty("airline.snapshot.file", "flightinstance.snap"));
+   }//end getSnapshotFile
+
+   /**
+    * @return the FlightInstance snapshot, mapped on first use
+    * @throws java.io.IOException when the file cannot be read; export it first
+    */
+   public FlightInstanceSnapshot getSnapshot() throws IOException {
+      FlightInstanceSnapshot snapshot = this._snapshot;
+      if (snapshot != null)
+         return snapshot;
+      synchronized (this._snapshotLock) {
+         if (this._snapshot == null)
+            this._snapshot = FlightInstanceSnapshot.open(getSnapshotFile());
+         return this._snapshot;
+      }//end synchronized
+   }//end getSnapshot
+
+   /**
+    * Exports FlightInstance to the snapshot file, or appends the new days,
+    * and maps the result for the next readers.  Readers keep the previous
+    * mapping while the export runs; only the swap takes the snapshot lock.
+    *
+    * @return the instances written
+    * @throws java.sql.SQLException when the table cannot be read
+    * @throws java.io.IOException when the file cannot be written
+    */
+   public long exportSnapshot(boolean append) throws SQLException, IOException {
+      synchronized (this._exportLock) {
+         long rows = FlightInstanceSnapshot.export(this, getSnapshotFile(), append);
+         FlightInstanceSnapshot fresh = FlightInstanceSnapshot.open(getSnapshotFile());
+         synchronized (this._snapshotLock) {
+            this._snapshot = fresh;
+         }//end synchronized
+         return rows;
+      }//end synchronized
+   }//end exportSnapshot
+
+   /**
+    * @return the rows per page of the paged listings
+    */
+   public int getPageSize() {
+      return this._pageSize;
+   }//end getPageSize
+
+   /**
+    * @return the connection pool used by this instance
+    */
+   public ConnectionPool getPool() {
+      return this._pool;
+   }//end getPool
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -80,14 +317,21 @@ public class AirlineManagement {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      PooledConnection pc = acquireConnection();
+      boolean ok = false;
+      try {
+         // creates a statement object
+         Statement stmt = pc.getConnection().createStatement ();
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+         // issues the update instruction
+         stmt.executeUpdate (sql);
 
-      // close the instruction
-      stmt.close ();
+         // close the instruction
+         stmt.close ();
+         ok = true;
+      } finally {
+         releaseConnection(pc, ok);
+      }//end try
    }//end executeUpdate
 
    /**
@@ -100,37 +344,7 @@ public class AirlineManagement {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close();
-      return rowCount;
+      return executeQueryAndPrintResult(query, new Object[0]);
    }//end executeQuery
 
    /**
@@ -143,31 +357,36 @@ public class AirlineManagement {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+      PooledConnection pc = acquireConnection();
+      boolean ok = false;
+      try {
+         // creates a statement object
+         Statement stmt = pc.getConnection().createStatement ();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+
+         // iterates through the result set and saves the data returned by the query.
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         stmt.close ();
+         ok = true;
+         return result;
+      } finally {
+         releaseConnection(pc, ok);
+      }//end try
    }//end executeQueryAndReturnResult
 
    /**
@@ -179,51 +398,280 @@ public class AirlineManagement {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+      PooledConnection pc = acquireConnection();
+      boolean ok = false;
+      try {
+         // creates a statement object
+         Statement stmt = pc.getConnection().createStatement ();
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
 
-       int rowCount = 0;
+         int rowCount = 0;
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+         // iterates through the result set and count nuber of results.
+         while (rs.next()){
+            rowCount++;
+         }//end while
+         stmt.close ();
+         ok = true;
+         return rowCount;
+      } finally {
+         releaseConnection(pc, ok);
+      }//end try
    }
 
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys.  currval is tracked
+    * per database session, so with pooled connections it is only
+    * meaningful on the connection that called nextval.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+      PooledConnection pc = acquireConnection();
+      boolean ok = false;
+      try {
+         Statement stmt = pc.getConnection().createStatement ();
+
+         ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+         int value = -1;
+         if (rs.next())
+            value = rs.getInt(1);
+         stmt.close ();
+         ok = true;
+         return value;
+      } finally {
+         releaseConnection(pc, ok);
+      }//end try
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to execute a parameterized update SQL statement.  The template
+    * is prepared once per connection and reused from the statement cache.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @param params the typed values bound to the placeholders in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
     */
-   public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long started = System.nanoTime();
+      PooledConnection pc = acquireConnection();
+      boolean ok = false;
+      try {
+         StatementCache cache = pc.getStatementCache();
+         PreparedStatement stmt = cache.prepare(sql);
+         try {
+            StatementCache.bind(stmt, params);
+            int count = stmt.executeUpdate();
+            ok = true;
+            return count;
+         } finally {
+            cache.done(sql, stmt);
+         }//end try
+      } finally {
+         releaseConnection(pc, ok);
+         this._metrics.recordQuery(sql, params, System.nanoTime() - started, ok);
+      }//end try
+   }//end executeUpdate
+
+   /**
+    * Starts a unit of work: updates run in one transaction on one pooled
+    * connection, batched by template, committed by commit() only.
+    *
+    * @return the work, to be closed by the caller
+    * @throws java.sql.SQLException when no connection could be had
+    */
+   public UnitOfWork beginWork () throws SQLException {
+      return new UnitOfWork(this, UnitOfWork.CommitPolicy.PER_CALL);
+   }//end beginWork
+
+   /**
+    * Starts a unit of work that also commits as the policy says, for long
+    * streams of writes that can trade latency for throughput.
+    *
+    * @param policy when to commit besides commit()
+    * @return the work, to be closed by the caller
+    * @throws java.sql.SQLException when no connection could be had
+    */
+   public UnitOfWork beginWork (UnitOfWork.CommitPolicy policy) throws SQLException {
+      return new UnitOfWork(this, policy);
+   }//end beginWork
+
+   /**
+    * Method to execute a parameterized query and stream its rows.  The rows
+    * are fetched from the server in batches instead of being materialized,
+    * so memory stays constant whatever the size of the result.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @param params the typed values bound to the placeholders in order
+    * @return an open cursor that must be closed by the caller
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ResultCursor openCursor (String sql, Object... params) throws SQLException {
+      return ResultCursor.open(this, this._fetchSize, sql, params);
+   }//end openCursor
+
+   /**
+    * Same as openCursor(sql, params) with an explicit fetch size.
+    *
+    * @param fetchSize rows fetched per round trip, 0 to read them all at once
+    * @param sql the SQL template with ? placeholders
+    * @param params the typed values bound to the placeholders in order
+    * @return an open cursor that must be closed by the caller
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ResultCursor openCursor (int fetchSize, String sql, Object... params) throws SQLException {
+      return ResultCursor.open(this, fetchSize, sql, params);
+   }//end openCursor
+
+   /**
+    * Method to execute a parameterized query and output the results to
+    * standard out.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @param params the typed values bound to the placeholders in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String sql, Object... params) throws SQLException {
+      try (ResultCursor rs = openCursor(sql, params)) {
+         return printResult(rs);
+      } catch (IOException e) {
+         throw new SQLException("Failed to write the result: " + e.getMessage());
       }//end try
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Returns the renderer writing to standard out, after flushing whatever
+    * was printed with System.out so the output stays in order.  The
+    * renderer is shared, so it is meant for the interactive menu only.
+    *
+    * @return the standard out renderer
+    */
+   public ResultRenderer getStdout () {
+      System.out.flush();
+      return this._stdout;
+   }//end getStdout
+
+   /**
+    * Streams the remaining rows of a cursor to standard out in the output
+    * format chosen with -Dairline.output=aligned|tsv|csv.  Nothing is printed
+    * when there are no rows.
+    *
+    * @param rs an open cursor, left open
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when failed to read the rows
+    * @throws java.io.IOException when failed to write the rows
+    */
+   public int printResult (ResultCursor rs) throws SQLException, IOException {
+      synchronized (this._stdout) {
+         // anything printed with System.out must come out first
+         System.out.flush();
+         return this._stdout.render(rs);
+      }//end synchronized
+   }//end printResult
+
+   /**
+    * Prints rows computed in memory to standard out in the same format as
+    * printResult.
+    *
+    * @param columns the column names
+    * @param rows the rows, one value per column
+    * @return the number of rows printed
+    * @throws java.io.IOException when failed to write the rows
+    */
+   public int printRows (String[] columns, List<String[]> rows) throws IOException {
+      synchronized (this._stdout) {
+         System.out.flush();
+         ResultRenderer.Table table = this._stdout.begin(columns);
+         for (String[] row : rows) {
+            for (String value : row)
+               table.cell(value);
+            table.endRow();
+         }//end for
+         return table.end();
+      }//end synchronized
+   }//end printRows
+
+   /**
+    * Method to execute a parameterized query and return the results as a
+    * list of records. Each record in turn is a list of attribute values.
+    * Prefer openCursor for results that are not known to be small.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @param params the typed values bound to the placeholders in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String sql, Object... params) throws SQLException {
+      try (ResultCursor rs = openCursor(sql, params)) {
+         int numCol = rs.getColumnCount ();
+
+         // iterates through the result set and saves the data returned by the query.
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         return result;
+      }//end try
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute a parameterized query and return the number of results
+    *
+    * @param sql the SQL template with ? placeholders
+    * @param params the typed values bound to the placeholders in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String sql, Object... params) throws SQLException {
+      try (ResultCursor rs = openCursor(sql, params)) {
+         while (rs.next()){
+            // only counting
+         }//end while
+         return rs.getRowCount();
+      }//end try
+   }//end executeQuery
+
+   /**
+    * @return the number of parameterized calls that reused a prepared statement
+    */
+   public long getStatementCacheHits() {
+      return this._pool.getStatementCacheHits();
+   }//end getStatementCacheHits
+
+   /**
+    * @return the number of parameterized calls that had to prepare a statement
+    */
+   public long getStatementCacheMisses() {
+      return this._pool.getStatementCacheMisses();
+   }//end getStatementCacheMisses
+
+   /**
+    * Method to close the connection pool and every physical connection in it,
+    * writing the metrics file one last time.
+    */
+   public void cleanup(){
+      synchronized (this) {
+         if (this._waitlist != null)
+            this._waitlist.stop ();
+         // acknowledged writes are committed already; this flushes the rest
+         if (this._writes != null)
+            this._writes.close ();
+      }
+      this._metrics.close ();
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -232,15 +680,37 @@ public class AirlineManagement {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      // options after the connection arguments
+      String batch = null;
+      int serve = -1;
+      int threads = 1;
+      boolean usage = args.length < 3;
+      for (int i = 3; i < args.length && !usage; ++i) {
+         if (args[i].equals("--batch") && i + 1 < args.length)
+            batch = args[++i];
+         else if (args[i].equals("--serve") && i + 1 < args.length)
+            serve = Integer.parseInt(args[++i]);
+         else if (args[i].equals("--threads") && i + 1 < args.length)
+            threads = Integer.parseInt(args[++i]);
+         else
+            usage = true;
+      }//end for
+      if (usage) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             AirlineManagement.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [--batch <file>|- [--threads N] | --serve <http port>]");
          return;
       }//end if
 
+      if (batch != null) {
+         System.exit(runBatch(args[0], args[1], args[2], batch, threads));
+      }//end if
+      if (serve >= 0) {
+         System.exit(serve(args[0], args[1], args[2], serve));
+      }//end if
+
       Greeting();
       AirlineManagement esql = null;
       try{
@@ -252,6 +722,8 @@ public class AirlineManagement {
          String dbport = args[1];
          String user = args[2];
          esql = new AirlineManagement (dbname, dbport, user, "");
+         esql.getReferenceCache().preload();
+         esql.getWaitlistPromoter().start();
 
          boolean keepon = true;
          while(keepon) {
@@ -261,17 +733,15 @@ public class AirlineManagement {
             System.out.println("1. Create user");
             System.out.println("2. Log in");
             System.out.println("0. < EXIT");
-            String[] authorisedUser = null;
+            SessionManager.Session session = null;
             switch (readChoice()){
                case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
+               case 2: session = LogIn(esql); break;
                case 0: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
-            if (authorisedUser != null) {
-              String userId = authorisedUser[0];
-              String role = authorisedUser[1];
-              String roleId = authorisedUser[2];
+            if (session != null) {
+              String roleId = session.roleID;
 
               System.out.println(roleId);
               boolean usermenu = true;
@@ -280,7 +750,7 @@ public class AirlineManagement {
                 System.out.println("---------");
 
                 //**the following functionalities should only be able to be used by Management**
-                if (role.equals("Management")) {
+                if (session.hasRole("Management")) {
                   System.out.println("1. View Flight Schedule");
                   System.out.println("2. View Flight Seats");
                   System.out.println("3. View Flight Status");
@@ -291,6 +761,9 @@ public class AirlineManagement {
                   System.out.println("8. View Repairs of Worker");
                   System.out.println("9. View Repairs of Dates");
                   System.out.println("10. View Flight Statistics");
+                  System.out.println("11. View Flight Manifest");
+                  System.out.println("12. Make Group Reservation");
+                  System.out.println("13. View Fleet Report");
                   System.out.println("0. Log out");
                   switch (readChoice()){
                      case 1: ScheduleFromFlightNum(esql); break;
@@ -303,27 +776,32 @@ public class AirlineManagement {
                      case 8: RepairsOfPerson(esql); break;
                      case 9: RepairsOnDates(esql); break;
                      case 10: ShowFlightStats(esql); break;
+                     case 11: PassengerManifest(esql); break;
+                     case 12: MakeGroupReservation(esql); break;
+                     case 13: FleetReport(esql); break;
 
                      case 0: usermenu = false; break;
                      default : System.out.println("Unrecognized choice!"); break;
                   }
-                } else if (role.equals("Customer")) {
+                } else if (session.hasRole("Customer")) {
                 //**the following functionalities should only be able to be used by customers**
                   System.out.println("1. Search Flights");
                   System.out.println("2. Get Flight Ticket Cost");
                   System.out.println("3. Get Your Flight Airplane Type");
                   System.out.println("4. Make Flight Reservation");
+                  System.out.println("5. Cancel Reservation");
                   System.out.println("0. Log out");
                   switch (readChoice()){
                      case 1: FindFlightsOnDate(esql); break;
                      case 2: GetTicketCost(esql); break;
                      case 3: GetAirplaneType(esql); break;
                      case 4: MakeReservation(esql, Integer.parseInt(roleId)); break;
+                     case 5: CancelReservation(esql, Integer.parseInt(roleId)); break;
 
                      case 0: usermenu = false; break;
                      default : System.out.println("Unrecognized choice!"); break;
                   }
-                } else if (role.equals("Pilot")) {
+                } else if (session.hasRole("Pilot")) {
                   System.out.println("1. Send Maintenance Request");
                   System.out.println("0. Log out");
                   switch (readChoice()){
@@ -332,15 +810,21 @@ public class AirlineManagement {
                      case 0: usermenu = false; break;
                      default : System.out.println("Unrecognized choice!"); break;
                   }
-                } else if (role.equals("Technician")) {
+                } else if (session.hasRole("Technician")) {
                   System.out.println("1. Get Repair History");
                   System.out.println("2. Get Pilot Maintenance Requests");
                   System.out.println("3. Mark A Repair As Completed");
+                  System.out.println("4. Claim Next Maintenance Request");
+                  System.out.println("5. View Your Claimed Requests");
+                  System.out.println("6. Release A Claimed Request");
                   System.out.println("0. Log out");
                   switch (readChoice()){
                      case 1: GetRepairsForPlane(esql); break;
                      case 2: GetPilotRequests(esql); break;
                      case 3: LogRepair(esql, roleId); break;
+                     case 4: ClaimRequests(esql, roleId); break;
+                     case 5: GetClaimedRequests(esql, roleId); break;
+                     case 6: ReleaseRequest(esql, roleId); break;
 
                      case 0: usermenu = false; break;
                      default : System.out.println("Unrecognized choice!"); break;
@@ -348,6 +832,7 @@ public class AirlineManagement {
                 }
 
               }
+              esql.getSessions().logout(session.token);
             }
          }//end while
       }catch(Exception e) {
@@ -366,6 +851,99 @@ public class AirlineManagement {
       }//end try
    }//end main
 
+   /**
+    * Runs the commands of a file, or of standard in for "-", through a
+    * BatchRunner instead of the menu.
+    *
+    * @return the exit status: 0 if every command succeeded
+    */
+   private static int runBatch(String dbname, String dbport, String user, String file, int threads) {
+      AirlineManagement esql = null;
+      try {
+         Class.forName ("org.postgresql.Driver");
+         esql = new AirlineManagement (dbname, dbport, user, "",
+            Math.max(threads, Integer.getInteger("airline.pool.size", ConnectionPool.DEFAULT_SIZE)));
+         esql.getReferenceCache().preload();
+         esql.getWaitlistPromoter().start();
+         BufferedReader input = file.equals("-") ? in : new BufferedReader(new FileReader(file));
+         try {
+            BatchRunner runner = new BatchRunner(esql, threads,
+               ResultRenderer.Format.parse(System.getProperty("airline.output")), System.out);
+            return runner.run(input) == 0 ? 0 : 1;
+         } finally {
+            input.close();
+         }//end try
+      } catch (Exception e) {
+         System.err.println (e.getMessage ());
+         return 2;
+      } finally {
+         if (esql != null)
+            esql.cleanup ();
+      }//end try
+   }//end runBatch
+
+   /**
+    * Serves the operations over HTTP until the process is stopped.
+    *
+    * @return the exit status
+    */
+   private static int serve(String dbname, String dbport, String user, int httpPort) {
+      try {
+         Class.forName ("org.postgresql.Driver");
+         final AirlineManagement esql = new AirlineManagement (dbname, dbport, user, "");
+         esql.getReferenceCache().preload();
+         esql.getWaitlistPromoter().start();
+         esql.getWorkQueue().reprioritize();
+         final HttpService service = new HttpService(esql, httpPort);
+         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            service.stop(5);
+            esql.cleanup ();
+         }));
+         service.start();
+         System.out.println("Serving on port " + service.getPort() +
+            (service.usesVirtualThreads() ? " (virtual threads)" : " (platform threads)"));
+         Thread.currentThread().join();
+         return 0;
+      } catch (InterruptedException e) {
+         return 0;
+      } catch (Exception e) {
+         System.err.println (e.getMessage ());
+         return 2;
+      }//end try
+   }//end serve
+
+   /*
+    * Reads one page of a listing.
+    **/
+   interface PageReader {
+      KeysetPager.Page read(Object[] from, KeysetPager.Direction direction) throws Exception;
+   }
+
+   /*
+    * Shows the first page of a listing, then the next or previous pages as
+    * long as the user asks for them.
+    *
+    * @return the first page
+    **/
+   static KeysetPager.Page browse(PageReader reader) throws Exception {
+      KeysetPager.Page first = reader.read(null, KeysetPager.Direction.NEXT);
+      KeysetPager.Page page = first;
+      while (page.hasNext || page.hasPrevious) {
+         System.out.print((page.hasNext ? "(n)ext page, " : "") + (page.hasPrevious ? "(p)revious page, " : "") + "(q)uit: ");
+         String choice = in.readLine();
+         if (choice == null)
+            break;
+         choice = choice.trim().toLowerCase();
+         if (page.hasNext && choice.equals("n"))
+            page = reader.read(page.last, KeysetPager.Direction.NEXT);
+         else if (page.hasPrevious && choice.equals("p"))
+            page = reader.read(page.first, KeysetPager.Direction.PREVIOUS);
+         else if (choice.equals("q") || choice.isEmpty())
+            break;
+      }
+      return first;
+   }
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -400,9 +978,8 @@ public class AirlineManagement {
          System.out.print("Enter username: ");
          String username = in.readLine();
 
-         String checkQuery = String.format("SELECT * FROM Users WHERE username = '%s'", username);
-         List<List<String>> check = esql.executeQueryAndReturnResult(checkQuery);
-         if (!check.isEmpty()) {
+         String checkQuery = "SELECT * FROM Users WHERE username = ?";
+         if (esql.executeQuery(checkQuery, username) > 0) {
             System.out.println("Username already exists. Please try a different one.");
             return;
          }
@@ -422,81 +999,74 @@ public class AirlineManagement {
             role = in.readLine();
          }
 
-         String roleID = "";
-
+         // every prompt is answered and the id drawn before the transaction
+         // starts, so no connection waits in it on the keyboard
+         String roleID = null; // none for management
+         String roleName = "";
+         String[] answers = new String[0];
+         Date dob = null;
          switch (role.toLowerCase()) {
             case "technician":
-               String tPrefix = "T";
-               String tQuery = "SELECT COUNT(*) FROM Technician";
-               List<List<String>> tResult = esql.executeQueryAndReturnResult(tQuery);
-               int tCount = Integer.parseInt(tResult.get(0).get(0)) + 1;
-               roleID = String.format("%s%03d", tPrefix, tCount);
-
                System.out.print("Enter technician name: ");
-               String tName = in.readLine();
-
-               String insertTech = String.format(
-                  "INSERT INTO Technician (TechnicianID, Name) VALUES ('%s', '%s')",
-                  roleID, tName
-               );
-               esql.executeUpdate(insertTech);
+               roleName = in.readLine();
+               roleID = esql.getIdAllocator().nextTechnicianID();
                break;
 
             case "pilot":
-               String pPrefix = "P";
-               String pQuery = "SELECT COUNT(*) FROM Pilot";
-               List<List<String>> pResult = esql.executeQueryAndReturnResult(pQuery);
-               int pCount = Integer.parseInt(pResult.get(0).get(0)) + 1;
-               roleID = String.format("%s%03d", pPrefix, pCount);
-
                System.out.print("Enter pilot name: ");
-               String pName = in.readLine();
-
-               String insertPilot = String.format(
-                  "INSERT INTO Pilot (PilotID, Name) VALUES ('%s', '%s')",
-                  roleID, pName
-               );
-               esql.executeUpdate(insertPilot);
+               roleName = in.readLine();
+               roleID = esql.getIdAllocator().nextPilotID();
                break;
 
             case "customer":
-               String cQuery = "SELECT COUNT(*) FROM Customer";
-               List<List<String>> cResult = esql.executeQueryAndReturnResult(cQuery);
-               int cCount = Integer.parseInt(cResult.get(0).get(0)) + 1;
-               roleID = Integer.toString(cCount);
-
-               System.out.print("Enter first name: ");
-               String fName = in.readLine();
-               System.out.print("Enter last name: ");
-               String lName = in.readLine();
-               System.out.print("Enter Date of Birth (YYYY-MM-DD): ");
-               String dob = in.readLine();
-               System.out.print("Enter Gender (M/F): ");
-               String gender = in.readLine();
-               System.out.print("Enter Address: ");
-               String address = in.readLine();
-               System.out.print("Enter Phone Number (###-###-####): ");
-               String phone = in.readLine();
-               System.out.print("Enter ZIP code: ");
-               String zip = in.readLine();
-
-               String insertCustomer = String.format(
-                  "INSERT INTO Customer (CustomerID, FirstName, LastName, Gender, DOB, Address, Phone, Zip) VALUES ('%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s')",
-                  Integer.parseInt(roleID), fName, lName, gender, dob, address, phone, zip
-               );
-               esql.executeUpdate(insertCustomer);
-               break;
-
-            case "management":
-               roleID = null; // no role-specific ID
+               String[] prompts = {"Enter first name: ", "Enter last name: ", "Enter Date of Birth (YYYY-MM-DD): ",
+                                   "Enter Gender (M/F): ", "Enter Address: ", "Enter Phone Number (###-###-####): ",
+                                   "Enter ZIP code: "};
+               answers = new String[prompts.length];
+               for (int i = 0; i < prompts.length; ++i) {
+                  System.out.print(prompts[i]);
+                  answers[i] = in.readLine();
+               }
+               dob = Date.valueOf(LocalDate.parse(answers[2].trim()));
+               roleID = Integer.toString(esql.getIdAllocator().nextCustomerID());
                break;
          }
+         String hash = esql.getSessions().getHasher().hash(password);
+         final String newID = roleID;
+
+         // the role row and the Users row commit together or not at all
+         try (UnitOfWork work = esql.beginWork()) {
+            switch (role.toLowerCase()) {
+               case "technician":
+                  String insertTech =
+                     "INSERT INTO Technician (TechnicianID, Name) VALUES (?, ?)";
+                  work.add(insertTech, roleID, roleName);
+                  work.afterCommit(() -> refreshQuietly(() -> esql.getReferenceCache().refreshTechnician(newID)));
+                  break;
 
-         String insertUser = String.format(
-            "INSERT INTO Users (username, password, role, role_id) VALUES ('%s', '%s', '%s', '%s')",
-            username, password, role.substring(0, 1).toUpperCase() + role.substring(1), roleID
-         );
-         esql.executeUpdate(insertUser);
+               case "pilot":
+                  String insertPilot =
+                     "INSERT INTO Pilot (PilotID, Name) VALUES (?, ?)";
+                  work.add(insertPilot, roleID, roleName);
+                  work.afterCommit(() -> refreshQuietly(() -> esql.getReferenceCache().refreshPilot(newID)));
+                  break;
+
+               case "customer":
+                  // first, last, DOB, gender, address, phone, zip as prompted
+                  String insertCustomer =
+                     "INSERT INTO Customer (CustomerID, FirstName, LastName, Gender, DOB, Address, Phone, Zip) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+                  work.add(insertCustomer,
+                     Integer.parseInt(roleID), answers[0], answers[1], answers[3],
+                     dob, answers[4], answers[5], answers[6]);
+                  break;
+            }
+
+            String insertUser =
+               "INSERT INTO Users (username, password, role, role_id) VALUES (?, ?, ?, ?)";
+            work.add(insertUser,
+               username, hash, role.substring(0, 1).toUpperCase() + role.substring(1).toLowerCase(), roleID);
+            work.commit();
+         }
 
          System.out.println("\nUser created successfully!");
 
@@ -507,11 +1077,24 @@ public class AirlineManagement {
 
 
 
+   // a cache refresh after a committed write; the write stands if it fails
+   private interface Refresh {
+      void run() throws SQLException;
+   }
+
+   private static void refreshQuietly(Refresh refresh) {
+      try {
+         refresh.run();
+      } catch (SQLException e) {
+         System.err.println("Cannot refresh the reference cache: " + e.getMessage());
+      }
+   }
+
    /*
     * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * @return the session of the user (role_id includes prefix ID like T001, C003), or null if the credentials are wrong
     **/
-   public static String[] LogIn(AirlineManagement esql){
+   public static SessionManager.Session LogIn(AirlineManagement esql){
    try {
       System.out.print("Enter username: ");
       String username = in.readLine();
@@ -519,19 +1102,10 @@ public class AirlineManagement {
       System.out.print("Enter password: ");
       String password = in.readLine();
 
-      String query = String.format(
-         "SELECT userID, role, role_id FROM Users WHERE username = '%s' AND password = '%s';",
-         username, password
-      );
-
-      List<List<String>> result = esql.executeQueryAndReturnResult(query);
-
-      if (result.size() > 0) {
+      SessionManager.Session session = esql.getSessions().login(username, password);
+      if (session != null) {
          System.out.println("\nLogin successful! Welcome, " + username);
-         String userID = result.get(0).get(0);
-         String role = result.get(0).get(1);
-         String roleID = result.get(0).get(2);
-         return new String[]{userID, role, roleID}; // Includes prefix ID like T001, C003
+         return session;
       } else {
          System.out.println("\nInvalid username or password.");
          return null;
@@ -543,35 +1117,58 @@ public class AirlineManagement {
 }//end
 
 // Rest of the functions definition go in here
+//
+// Every operation comes in two parts: a static method taking the database
+// handle and its parameters, which runs the SQL and streams any rows to the
+// given renderer, and an interactive method of the same name that prompts
+// for the parameters and prints the outcome.  Batch runs and benchmarks call
+// the first kind directly.
 
     /*
     * Management Features
     **/
 
 
+   public static int ScheduleFromFlightNum(AirlineManagement esql, String flNum, ResultRenderer out) throws SQLException, IOException {
+      ResultRenderer.Table table = out.begin("dayofweek", "departuretime", "arrivaltime");
+      for (ReferenceCache.Schedule s : esql.getReferenceCache().getSchedules(flNum)) {
+         table.cell(s.dayOfWeek).cell(s.departureTime).cell(s.arrivalTime);
+         table.endRow();
+      }
+      return table.end();
+   }
+
    public static void ScheduleFromFlightNum(AirlineManagement esql) {
       try {
          System.out.print("\tEnter Flight Number: ");
          String flNum = in.readLine();
 
-         String query = String.format(
-            "SELECT DayOfWeek, DepartureTime, ArrivalTime FROM schedule WHERE FlightNumber = '%s';",
-            flNum
-         );
-
-         List<List<String>> results = timeAndExecuteQuery(esql, query);
-
-         if (results.isEmpty()) {
+         int rows = esql.getMetrics().time("schedule", () ->
+            ScheduleFromFlightNum(esql, flNum, esql.getStdout()));
+         if (rows == 0) {
             System.out.println("No schdule found for flight number " + flNum);
-         } else {
-            for (List<String> row : results) {
-               System.out.println(row);
-            }
          }
       } catch (Exception e) {
          System.err.println("Error in ScheduleFromFlightNum: " + e.getMessage());
       }
    }
+
+   /*
+    * @return the seats sold, or remaining when remaining is true; null if
+    * the flight has no instance on that date
+    **/
+   public static Integer GetSeats(AirlineManagement esql, String flName, LocalDate date, boolean remaining) throws SQLException {
+      String query = remaining
+         ? "SELECT SeatsTotal - SeatsSold FROM FlightInstance WHERE FlightNumber = ? AND FlightDate = ?"
+         : "SELECT SeatsSold FROM FlightInstance WHERE FlightNumber = ? AND FlightDate = ?";
+      try (ResultCursor rs = esql.openCursor(0, query, flName, Date.valueOf(date))) {
+         if (!rs.next()) {
+            return null;
+         }
+         return Integer.valueOf(rs.getInt(1));
+      }
+   }
+
    public static void GetSeats(AirlineManagement esql) {
       try {
          System.out.print("\tEnter Flight: ");
@@ -579,47 +1176,74 @@ public class AirlineManagement {
          System.out.print("\tEnter Flight Date(YYYY-MM-DD): ");
          String dateInput = in.readLine().trim(); //get string of date
          LocalDate localDate = LocalDate.parse(dateInput); //parse string to LocalDate
-         Date sqlDate = Date.valueOf(localDate); //convert to java.sql.Date
 
          System.out.println("Do you want to view:");
          System.out.println("(1) Number of Seats Sold");
          System.out.println("(2) Number of Seats Remaining");
 
+         boolean remaining;
          switch (readChoice()) {
-            case 1: {
-               String query = String.format(
-                  "SELECT SeatsSold FROM FlightInstance WHERE FlightNumber = '%s' AND FlightDate = '%s';",
-                  flName, sqlDate
-               );
-               List<List<String>> results = timeAndExecuteQuery(esql, query);
-               if (results.isEmpty()) {
-                  System.out.println("No matching records found.");
-               } else {
-                  System.out.println("Seats Sold: " + results.get(0).get(0));
-               }
-               break;
-            }
-            case 2: {
-               String query = String.format(
-                  "SELECT SeatsTotal - SeatsSold FROM FlightInstance WHERE FlightNumber = '%s' AND FlightDate = '%s';", 
-                  flName, sqlDate
-                  );
-                  List<List<String>> results = timeAndExecuteQuery(esql, query);
-                  if (results.isEmpty()) {
-                     System.out.println("No matching records found.");
-                  } else {
-                     System.out.println("Seats Remaining: " + results.get(0).get(0));
-                  }
-                  break;
-            }
+            case 1: remaining = false; break;
+            case 2: remaining = true; break;
             default:
-            System.out.println("Invalid choice.");
-            break;
+               System.out.println("Invalid choice.");
+               return;
+         }
+
+         Integer seats = esql.getMetrics().time("seats", () ->
+            GetSeats(esql, flName, localDate, remaining));
+         if (seats == null) {
+            System.out.println("No matching records found.");
+         } else if (remaining) {
+            System.out.println("Seats Remaining: " + seats);
+         } else {
+            System.out.println("Seats Sold: " + seats);
          }
       } catch (Exception e) {
          System.err.println("Error in GetSeats: " + e.getMessage());
       }
    }
+
+   /*
+    * Departure or arrival status of a flight instance; UNKNOWN when the
+    * flag is NULL, e.g. the flight has not flown yet.
+    **/
+   public enum OnTimeStatus { ON_TIME, LATE, UNKNOWN }
+
+   /*
+    * @return whether the flight departed (or arrived, when arrival is true)
+    * on time; null if the flight has no instance on that date
+    **/
+   public static OnTimeStatus OnTime(AirlineManagement esql, String flName, LocalDate date, boolean arrival) throws SQLException {
+      String query = arrival
+         ? "SELECT ArrivedOnTime FROM FlightInstance WHERE FlightNumber = ? AND FlightDate = ?"
+         : "SELECT DepartedOnTime FROM FlightInstance WHERE FlightNumber = ? AND FlightDate = ?";
+      try (ResultCursor rs = esql.openCursor(0, query, flName, Date.valueOf(date))) {
+         if (!rs.next()) {
+            return null;
+         }
+         boolean onTime = rs.getBoolean(1);
+         if (rs.wasNull()) {
+            return OnTimeStatus.UNKNOWN;
+         }
+         return onTime ? OnTimeStatus.ON_TIME : OnTimeStatus.LATE;
+      }
+   }
+
+   /*
+    * @return the line printed for an OnTime result
+    **/
+   public static String OnTimeMessage(OnTimeStatus status, boolean arrival) {
+      if (status == null) {
+         return "No matching records found.";
+      }
+      switch (status) {
+         case ON_TIME: return arrival ? "Arrived on time" : "Departed on time";
+         case LATE: return arrival ? "Did not arrive on time" : "Did not depart on time";
+         default: return arrival ? "Unknown arrival status" : "Unknown departure status";
+      }
+   }
+
    public static void OnTime(AirlineManagement esql) {
       try {
          System.out.print("\tEnter Flight: ");
@@ -627,82 +1251,77 @@ public class AirlineManagement {
          System.out.print("\tEnter Flight Date(YYYY-MM-DD): ");
          String dateInput = in.readLine().trim(); //get string of date
          LocalDate localDate = LocalDate.parse(dateInput); //parse string to LocalDate
-         Date sqlDate = Date.valueOf(localDate); //convert to java.sql.Date
 
          System.out.println("Do you want to view:");
          System.out.println("(1) Departure");
          System.out.println("(2) Arrival");
 
+         boolean arrival;
          switch (readChoice()) {
-            case 1: {
-               String query = String.format(
-                  "SELECT DepartedOnTime FROM FlightInstance WHERE FlightNumber = '%s' AND FlightDate = '%s';",
-                  flName, sqlDate
-               );
-               List<List<String>> results = timeAndExecuteQuery(esql, query);
-               if (results.isEmpty()) {
-                  System.out.println("No matching records found.");
-               } else {
-                  String departedStr = results.get(0).get(0);
-                  if (departedStr.equals("f")) {
-                     System.out.println("Did not depart on time");
-                  } else if (departedStr.equals("t")) {
-                     System.out.println("Departed on time");
-                  } else {
-                     System.out.println("Unknown departure status: " + departedStr);
-                  }
-               }
-               break;
-            }
-            case 2: {
-               String query = String.format(
-                  "SELECT ArrivedOnTime FROM FlightInstance WHERE FlightNumber = '%s' AND FlightDate = '%s';",
-                  flName, sqlDate
-               );
-               List<List<String>> results = timeAndExecuteQuery(esql, query);
-               if (results.isEmpty()) {
-                  System.out.println("No matching records found.");
-               } else {
-                  String arrivedStr = results.get(0).get(0);
-                  if (arrivedStr.equals("f")) {
-                     System.out.println("Did not arrive on time");
-                  } else if (arrivedStr.equals("t")) {
-                     System.out.println("Arrived on time");
-                  } else {
-                     System.out.println("Unknown arrival status: " + arrivedStr);
-                  }
-               }
-               break;
-            }
+            case 1: arrival = false; break;
+            case 2: arrival = true; break;
+            default:
+               System.out.println("Invalid choice.");
+               return;
          }
+
+         OnTimeStatus onTime = esql.getMetrics().time("ontime", () ->
+            OnTime(esql, flName, localDate, arrival));
+         System.out.println(OnTimeMessage(onTime, arrival));
       } catch (Exception e) {
-         System.err.println("Error in GetSeats: " + e.getMessage());
+         System.err.println("Error in OnTime: " + e.getMessage());
+      }
+   }
+
+   public static int FlightsOfTheDay(AirlineManagement esql, LocalDate date, ResultRenderer out) throws SQLException, IOException {
+      String query =
+         "SELECT FlightNumber AS \"Flight\" FROM FlightInstance WHERE FlightDate = ?";
+      try (ResultCursor rs = esql.openCursor(query, Date.valueOf(date))) {
+         return out.render(rs);
+      }
+   }
+
+   /*
+    * Same as FlightsOfTheDay, read from the FlightInstance snapshot.
+    **/
+   public static int FlightsOfTheDayFromSnapshot(AirlineManagement esql, LocalDate date, ResultRenderer out) throws IOException {
+      ResultRenderer.Table table = out.begin("Flight");
+      for (String flight : esql.getSnapshot().flightsOfTheDay(date)) {
+         table.cell(flight);
+         table.endRow();
       }
+      return table.end();
    }
+
    public static void FlightsOfTheDay(AirlineManagement esql) {
       try {
          System.out.print("\tEnter Flight Date(YYYY-MM-DD): ");
          String dateInput = in.readLine().trim(); //get string of date
          LocalDate localDate = LocalDate.parse(dateInput); //parse string to LocalDate
-         Date sqlDate = Date.valueOf(localDate); //convert to java.sql.Date
-
-         String query = String.format(
-            "SELECT FlightNumber FROM FlightInstance WHERE FlightDate = '%s';", 
-            sqlDate
-            );
-         List<List<String>> results = timeAndExecuteQuery(esql, query);
-         if (results.isEmpty()) {
+
+         int rows = esql.getMetrics().time("flights", () ->
+            FlightsOfTheDay(esql, localDate, esql.getStdout()));
+         if (rows == 0) {
             System.out.println("No matching records found.");
-         } else {
-            for (List<String> row : results) {
-               System.out.println("Flight: "+ row);
-            }
          }
       } catch (Exception e) {
          System.err.println("Error in FlightsOfTheDay: "+  e.getMessage());
       }
    }
 
+   public static int ListPassangers(AirlineManagement esql, String flName, LocalDate date, String status, ResultRenderer out) throws SQLException, IOException {
+      String query =
+         "SELECT c.FirstName AS \"First Name\", c.LastName AS \"Last Name\" " + 
+         "FROM Reservation r " +
+         "JOIN Customer c ON r.CustomerID = c.CustomerID " +
+         "JOIN FlightInstance fi ON r.FlightInstanceID = fi.FlightInstanceID " +
+         "JOIN Flight f ON fi.FlightNumber = f.FlightNumber " +
+         "WHERE f.FlightNumber = ? AND fi.FlightDate = ? AND r.Status = ?";
+      try (ResultCursor rs = esql.openCursor(query, flName, Date.valueOf(date), status)) {
+         return out.render(rs);
+      }
+   }
+
    public static void ListPassangers(AirlineManagement esql) {
       try {
          System.out.print("\tEnter Flight: ");
@@ -710,7 +1329,6 @@ public class AirlineManagement {
          System.out.print("\tEnter Flight Date(YYYY-MM-DD): ");
          String dateInput = in.readLine().trim(); //get string of date
          LocalDate localDate = LocalDate.parse(dateInput); //parse string to LocalDate
-         Date sqlDate = Date.valueOf(localDate); //convert to java.sql.Date
 
          System.out.println("Would you like to view: ");
          System.out.println("(1) Passangers with reservations");
@@ -727,112 +1345,144 @@ public class AirlineManagement {
                return;
          }
 
-         String query = String.format(
-            "SELECT c.FirstName, c.LastName " + 
-            "FROM Reservation r " +
-            "JOIN Customer c ON r.CustomerID = c.CustomerID " +
-            "JOIN FlightInstance fi ON r.FlightInstanceID = fi.FlightInstanceID " +
-            "JOIN Flight f ON fi.FlightNumber = f.FlightNumber " +
-            "WHERE f.FlightNumber = '%s' AND fi.FlightDate = '%s' AND r.Status = '%s';",
-            flName, sqlDate, status
-         );
-         List<List<String>> results = timeAndExecuteQuery(esql, query);
-         if (results.isEmpty()) {
+         final String wanted = status;
+         int rows = esql.getMetrics().time("passengers", () ->
+            ListPassangers(esql, flName, localDate, wanted, esql.getStdout()));
+         if (rows == 0) {
             System.out.println("No passanger found with status: " + status);
-         } else {
-            for (List<String> row : results) {
-               System.out.println("First Name | Last Name");
-               System.out.println(String.join(" | ", row));
-            }
          }
-
       } catch (Exception e) {
          System.err.println("Error is ListPassanger: " + e.getMessage());
       }
    }
 
+   // every reservation of a flight instance, statuses grouped
+   static final KeysetPager MANIFEST = new KeysetPager(
+      new String[]{"r.Status", "r.CustomerID", "r.ReservationID",
+                   "c.FirstName AS \"First Name\"", "c.LastName AS \"Last Name\""},
+      "FROM FlightInstance fi " +
+      "JOIN Reservation r ON r.FlightInstanceID = fi.FlightInstanceID " +
+      "JOIN Customer c ON c.CustomerID = r.CustomerID " +
+      "WHERE fi.FlightNumber = ? AND fi.FlightDate = ?",
+      new String[]{"r.Status", "r.CustomerID", "r.ReservationID"},
+      new Class<?>[]{String.class, Integer.class, String.class});
+
+   /*
+    * One page of the manifest of a flight: every reservation whatever its
+    * status, ordered by (Status, CustomerID, ReservationID) so the statuses
+    * come grouped.
+    **/
+   public static KeysetPager.Page PassengerManifest(AirlineManagement esql, String flName, LocalDate date, Object[] from, KeysetPager.Direction direction, int size, ResultRenderer out) throws SQLException, IOException {
+      return MANIFEST.page(esql, new Object[]{flName, Date.valueOf(date)}, from, direction, size, out);
+   }
+
+   public static void PassengerManifest(AirlineManagement esql) {
+      try {
+         System.out.print("\tEnter Flight: ");
+         String flName = in.readLine();
+         System.out.print("\tEnter Flight Date(YYYY-MM-DD): ");
+         LocalDate localDate = LocalDate.parse(in.readLine().trim());
+
+         KeysetPager.Page first = browse((from, direction) -> esql.getMetrics().time("manifest", () ->
+            PassengerManifest(esql, flName, localDate, from, direction, esql.getPageSize(), esql.getStdout())));
+         if (first.rows == 0) {
+            System.out.println("No passanger found on " + flName + " on " + localDate);
+         }
+      } catch (Exception e) {
+         System.err.println("Error in PassengerManifest: " + e.getMessage());
+      }
+   }
+
+   public static int PassengerInfo(AirlineManagement esql, String resID, ResultRenderer out) throws SQLException, IOException {
+      String query =
+         "SELECT c.FirstName AS \"First Name\", c.LastName AS \"Last Name\", c.Gender, c.DOB, c.Address, c.Phone, c.Zip " + 
+         "FROM Reservation r " + 
+         "JOIN Customer c ON r.CustomerID = c.CustomerID " + 
+         "WHERE r.ReservationID = ?";
+      try (ResultCursor rs = esql.openCursor(query, resID)) {
+         return out.render(rs);
+      }
+   }
+
    public static void PassengerInfo(AirlineManagement esql) {
       try {
          System.out.print("\tEnter reservation number: ");
          String resID = in.readLine();
 
-         String query = String.format(
-            "SELECT c.FirstName, c.LastName, c.Gender, c.DOB, c.Address, c.Phone, c.Zip " + 
-            "FROM Reservation r " + 
-            "JOIN Customer c ON r.CustomerID = c.CustomerID " + 
-            "WHERE r.ReservationID = '%s';",
-            resID
-         );
-
-         List<List<String>> results = timeAndExecuteQuery(esql, query);
-         if (results.isEmpty()) {
+         int rows = esql.getMetrics().time("passenger", () ->
+            PassengerInfo(esql, resID, esql.getStdout()));
+         if (rows == 0) {
             System.out.println("No Passanger with reservation: " + resID);
-         } else {
-            System.out.println("First Name | Last Name | Gender | DOB | Address | Phone | Zip");
-            for (List<String> row : results) {
-               System.out.println(String.join(" | ", row));
-            }
          }
-
       } catch (Exception e) {
          System.err.println("Error in PassengerInfo: " + e.getMessage());
       }
    }
 
+   public static int FindPlaneInfo(AirlineManagement esql, String pNum, ResultRenderer out) throws SQLException, IOException {
+      ReferenceCache.Plane p = esql.getReferenceCache().getPlane(pNum);
+      ResultRenderer.Table table = out.begin("make", "model", "age", "LastRepairDate");
+      if (p != null) {
+         // whole years since January 1st of the build year
+         String age = p.year == null ? null : Integer.toString(LocalDate.now().getYear() - p.year);
+         table.cell(p.make).cell(p.model).cell(age).cell(p.lastRepairDate);
+         table.endRow();
+      }
+      return table.end();
+   }
+
    public static void FindPlaneInfo(AirlineManagement esql) {
       try {
          System.out.print("\tEnter plane number: ");
          String pNum = in.readLine();
 
-         String query = String.format(
-            "SELECT p.Make, p.Model, DATE_PART('year', AGE(CURRENT_DATE, MAKE_DATE(p.Year, 1, 1))) AS Age, p.LastRepairDate " +
-            "FROM Plane p " +
-            "WHERE p.PlaneID = '%s';",
-            pNum
-         );
-
-         List<List<String>> results = timeAndExecuteQuery(esql, query);
-         if (results.isEmpty()) {
+         int rows = esql.getMetrics().time("plane", () ->
+            FindPlaneInfo(esql, pNum, esql.getStdout()));
+         if (rows == 0) {
             System.out.println("No Plane: " + pNum);
-         } else {
-            System.out.println("Make | Model | Age | LastRepairDate ");
-            for (List<String> row : results) {
-               System.out.println(String.join(" | ", row));
-            }
          }
-
       } catch (Exception e) {
          System.err.println("Error in FindPlaneInfo: " + e.getMessage());
       }
    }
 
+   // repairs of a technician, oldest first
+   static final KeysetPager REPAIRS_BY = new KeysetPager(
+      new String[]{"r.RepairID AS \"RepairID\"", "r.PlaneID AS \"PlaneID\"",
+                   "r.RepairCode AS \"RepairCode\"", "r.RepairDate AS \"RepairDate\""},
+      "FROM Repair r WHERE TechnicianID = ?",
+      new String[]{"r.RepairDate", "r.RepairID"},
+      new Class<?>[]{LocalDate.class, Integer.class});
+
+   public static KeysetPager.Page RepairsOfPerson(AirlineManagement esql, String techID, Object[] from, KeysetPager.Direction direction, int size, ResultRenderer out) throws SQLException, IOException {
+      return REPAIRS_BY.page(esql, new Object[]{techID}, from, direction, size, out);
+   }
+
    public static void RepairsOfPerson(AirlineManagement esql) {
       try {
          System.out.print("\tEnter technician ID: ");
          String techID = in.readLine();
 
-         String query = String.format(
-            "SELECT r.RepairID, r.PlaneID, r.RepairCode, r.RepairDate " +
-            "FROM Repair r " + 
-            "WHERE TechnicianID = '%s';", 
-            techID
-         );
-
-         List<List<String>> results = timeAndExecuteQuery(esql, query);
-         if (results.isEmpty()) {
+         KeysetPager.Page first = browse((from, direction) -> esql.getMetrics().time("repairs-by", () ->
+            RepairsOfPerson(esql, techID, from, direction, esql.getPageSize(), esql.getStdout())));
+         if (first.rows == 0) {
             System.out.println("No repair by technician: " + techID);
-         } else {
-            System.out.println("RepairID | PlaneID | RepairCode | RepairDate ");
-            for (List<String> row : results) {
-               System.out.println(String.join(" | ", row));
-            }
          }
-
       } catch (Exception e) {
          System.err.println("Error in RepairsOfPerson: " + e.getMessage());
       }
    }
 
+   public static int RepairsOnDates(AirlineManagement esql, String pID, LocalDate from, LocalDate to, ResultRenderer out) throws SQLException, IOException {
+      String query =
+         "SELECT r.RepairDate AS \"RepairDate\", r.RepairCode AS \"RepairCode\" " +
+         "FROM Repair r " + 
+         "WHERE PlaneID = ? AND RepairDate BETWEEN ? AND ?";
+      try (ResultCursor rs = esql.openCursor(query, pID, Date.valueOf(from), Date.valueOf(to))) {
+         return out.render(rs);
+      }
+   }
+
    public static void RepairsOnDates(AirlineManagement esql) {
       try {
          System.out.print("\tEnter Plane ID: ");
@@ -842,29 +1492,27 @@ public class AirlineManagement {
          System.out.print("\tEnter end date (YYYY-MM-DD): ");
          String end = in.readLine().trim();
 
-         String query = String.format(
-            "SELECT r.RepairDate, r.RepairCode " +
-            "FROM Repair r " + 
-            "WHERE PlaneID = '%s' AND RepairDate BETWEEN '%s' AND '%s';",
-            pID, start, end
-            
-         );
-
-         List<List<String>> results = timeAndExecuteQuery(esql, query);
-         if (results.isEmpty()) {
+         int rows = esql.getMetrics().time("repairs-on", () ->
+            RepairsOnDates(esql, pID, LocalDate.parse(start), LocalDate.parse(end), esql.getStdout()));
+         if (rows == 0) {
             System.out.println("No repairs found for Plane ID: " + pID + " in the given date range.");
-         } else {
-            System.out.println("RepairDate | RepairCode");
-            for (List<String> row : results) {
-               System.out.println(String.join(" | ", row));
-            }
          }
-
       } catch (Exception e) {
          System.err.println("Error in RepairsOnDate: " + e.getMessage());
       }
    }
 
+   public static FlightStatsRollup.Stats ShowFlightStats(AirlineManagement esql, String flNum, LocalDate from, LocalDate to) throws SQLException {
+      return esql.getFlightStats().query(flNum, from, to);
+   }
+
+   /*
+    * Same as ShowFlightStats, scanned from the FlightInstance snapshot.
+    **/
+   public static FlightStatsRollup.Stats ShowFlightStatsFromSnapshot(AirlineManagement esql, String flNum, LocalDate from, LocalDate to) throws IOException {
+      return esql.getSnapshot().stats(flNum, from, to);
+   }
+
    public static void ShowFlightStats(AirlineManagement esql) {
       try {
          System.out.print("\tEnter flight: ");
@@ -874,25 +1522,15 @@ public class AirlineManagement {
          System.out.print("\tEnter end date (YYYY-MM-DD): ");
          String end = in.readLine().trim();
 
-         String query = String.format(
-            "SELECT " + 
-            "  COUNT(CASE WHEN DepartedOnTime THEN 1 END) AS NumDeparted, " + 
-            "  COUNT(CASE WHEN ArrivedOnTime THEN 1 END) AS NumArrived, " +
-            "  SUM(SeatsSold) AS TotalSold, " +
-            "  SUM(SeatsTotal - SeatsSold) AS TotalUnsold " +
-            "FROM FlightInstance " +
-            "WHERE FlightNumber = '%s' AND FlightDate BETWEEN '%s' AND '%s';", 
-            flNum, start, end
-         );
-
-         List<List<String>> results = timeAndExecuteQuery(esql, query);
-         if (results.isEmpty()) {
+         FlightStatsRollup.Stats stats = esql.getMetrics().time("stats", () ->
+            ShowFlightStats(esql, flNum, LocalDate.parse(start), LocalDate.parse(end)));
+         if (stats.instances == 0) {
             System.out.println("No flight statistics found.");
          } else {
-            System.out.println("Departed | Arrived | Sold | Unsold");
-            for (List<String> row : results) {
-               System.out.println(String.join(" | ", row));
-            }
+            List<String[]> rows = new ArrayList<String[]>();
+            rows.add(new String[]{Long.toString(stats.departedOnTime), Long.toString(stats.arrivedOnTime),
+                                  Long.toString(stats.seatsSold), Long.toString(stats.seatsUnsold)});
+            esql.printRows(new String[]{"Departed", "Arrived", "Sold", "Unsold"}, rows);
          }
 
       } catch (Exception e) {
@@ -900,11 +1538,40 @@ public class AirlineManagement {
       }
    }
 
+   /*
+    * On-time rates, load factor and unsold seats of every route and flight
+    * between two dates, from the database or the FlightInstance snapshot.
+    **/
+   public static int FleetReport(AirlineManagement esql, LocalDate from, LocalDate to, boolean snapshot, ResultRenderer out) throws SQLException, IOException {
+      return new FleetReport(esql, snapshot ? esql.getSnapshot() : null).run(from, to, out);
+   }
+
+   public static void FleetReport(AirlineManagement esql) {
+      try {
+         System.out.print("\tEnter start date(YYYY-MM-DD): ");
+         String start = in.readLine().trim();
+         System.out.print("\tEnter end date (YYYY-MM-DD): ");
+         String end = in.readLine().trim();
+
+         int rows = esql.getMetrics().time("fleet-report", () ->
+            FleetReport(esql, LocalDate.parse(start), LocalDate.parse(end), false, esql.getStdout()));
+         if (rows == 0) {
+            System.out.println("No matching records found.");
+         }
+      } catch (Exception e) {
+         System.err.println("Error in FleetReport: " + e.getMessage());
+      }
+   }
+
    /*
     * Customer Features
     **/
 
 // Return departure and arrival time, number of stops scheduled, and on-time record (as a percentage)
+   public static List<RouteIndex.Result> FindFlightsOnDate(AirlineManagement esql, String depCity, String arrCity, LocalDate date) throws SQLException {
+      return esql.getRouteIndex().search(depCity, arrCity, date);
+   }
+
    public static void FindFlightsOnDate(AirlineManagement esql){
       try {
          System.out.print("\tEnter departure city: ");
@@ -914,104 +1581,91 @@ public class AirlineManagement {
          System.out.print("\tEnter flight date (YYYY-MM-DD): ");
          String flightDate = in.readLine();
 
-      String query = String.format(
-         "SELECT s.DepartureTime, s.ArrivalTime, fi.NumOfStops, " +
-         "AVG(CASE " +
-         "WHEN fi.DepartedOnTime AND fi.ArrivedOnTime THEN 100 " +
-         "WHEN fi.DepartedOnTime OR fi.ArrivedOnTime THEN 50 " +
-         "ELSE 0 END) AS OnTimePercentage " +
-         "FROM Flight f " +
-         "JOIN Schedule s ON f.FlightNumber = s.FlightNumber " +
-         "JOIN FlightInstance fi ON fi.FlightNumber = f.FlightNumber " +
-         "WHERE f.DepartureCity = '%s' " +
-         "AND f.ArrivalCity = '%s' " +
-         "AND fi.FlightDate = '%s' " +
-         "GROUP BY s.DepartureTime, s.ArrivalTime, fi.NumOfStops",
-         depCity, arrCity, flightDate
-      );
+         List<RouteIndex.Result> results = esql.getMetrics().time("search", () ->
+            FindFlightsOnDate(esql, depCity, arrCity, LocalDate.parse(flightDate.trim())));
 
          System.out.println("\n");
 
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         List<String[]> rows = new ArrayList<String[]>();
+         for (RouteIndex.Result r : results) {
+            rows.add(new String[]{r.departureTime, r.arrivalTime, Integer.toString(r.numOfStops),
+                                  String.format("%.2f", r.onTimePercentage)});
+         }
+         int rowCount = esql.printRows(
+            new String[]{"departuretime", "arrivaltime", "numofstops", "ontimepercentage"}, rows);
          System.out.println("Total row(s): " + rowCount);
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
    }
 
+   // ticket costs of the instances of a flight, earliest first
+   static final KeysetPager TICKET_COSTS = new KeysetPager(
+      new String[]{"TicketCost", "FlightDate", "FlightInstanceID"},
+      "FROM FlightInstance WHERE FlightNumber = ?",
+      new String[]{"FlightDate", "FlightInstanceID"},
+      new Class<?>[]{LocalDate.class, Integer.class});
+
+   public static KeysetPager.Page GetTicketCost(AirlineManagement esql, String flightNumber, Object[] from, KeysetPager.Direction direction, int size, ResultRenderer out) throws SQLException, IOException {
+      return TICKET_COSTS.page(esql, new Object[]{flightNumber}, from, direction, size, out);
+   }
+
    public static void GetTicketCost(AirlineManagement esql){
       try {
          System.out.print("\tEnter flight number: ");
          String flightNumber = in.readLine();
-         String query = 
-            "Select TicketCost, FlightDate FROM FlightInstance WHERE FlightNumber = '" + flightNumber + "'";
 
          System.out.println("\n");
 
-         int rowCount = esql.executeQueryAndPrintResult(query);
-         System.out.println("Total row(s): " + rowCount);
+         KeysetPager.Page first = browse((from, direction) -> esql.getMetrics().time("cost", () ->
+            GetTicketCost(esql, flightNumber, from, direction, esql.getPageSize(), esql.getStdout())));
+         if (first.rows == 0) {
+            System.out.println("No flight instance of " + flightNumber);
+         }
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
    }
 
+   public static int GetAirplaneType(AirlineManagement esql, String flightNumber, ResultRenderer out) throws SQLException, IOException {
+      ReferenceCache refs = esql.getReferenceCache();
+      ReferenceCache.Flight f = refs.getFlight(flightNumber);
+      ReferenceCache.Plane p = f == null || f.planeID == null ? null : refs.getPlane(f.planeID);
+      ResultRenderer.Table table = out.begin("make", "model");
+      if (p != null) {
+         table.cell(p.make).cell(p.model);
+         table.endRow();
+      }
+      return table.end();
+   }
+
    public static void GetAirplaneType(AirlineManagement esql) {
       try {
          System.out.print("\tEnter flight number: ");
          String flightNumber = in.readLine();
 
-         String query =  
-         "SELECT p.make, p.Model from Flight f " + 
-         "JOIN Plane p ON f.PlaneID = p.PlaneID " +
-         "WHERE f.FlightNumber = '" + flightNumber + "'";
-
          System.out.println("\n");
 
-         esql.executeQueryAndPrintResult(query);
+         esql.getMetrics().time("airplane", () ->
+            GetAirplaneType(esql, flightNumber, esql.getStdout()));
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
    } 
 
+   public static SeatInventory.Booking MakeReservation(AirlineManagement esql, int customerID, int flightInstanceID) throws SQLException {
+      return esql.getSeatInventory().reserve(customerID, flightInstanceID);
+   }
+
    public static void MakeReservation(AirlineManagement esql, int customerID) {
       try {
          System.out.print("\tEnter flight instance ID: ");
-         String flightInstanceID = in.readLine();
-
-         String checkSeats = 
-         "SELECT SeatsTotal, SeatsSold " +
-         "FROM FlightInstance " +
-         "WHERE FlightInstanceID = " + flightInstanceID;
-
-         List<List<String>> result = esql.executeQueryAndReturnResult(checkSeats);
-
-         int total = Integer.parseInt(result.get(0).get(0));
-         int sold = Integer.parseInt(result.get(0).get(1));
-         String status = sold < total ? "reserved" : "waitlist";
-
-         String countQuery = "SELECT COUNT(*) FROM Reservation";
-         List<List<String>> countResult = esql.executeQueryAndReturnResult(countQuery);
-         int count = Integer.parseInt(countResult.get(0).get(0));
-
-         String parsedCount = "";
-         if (count < 10) {
-            parsedCount = "000" + (count + 1);
-         } else if (count < 100) {
-            parsedCount = "00" + (count + 1);
-         } else if (count < 1000) {
-            parsedCount = "0" + (count + 1);
-         } else {
-            parsedCount = Integer.toString(count + 1);
-         }
-         String reservationID = "R" + (parsedCount);
-
-         String insert = String.format(
-            "INSERT INTO Reservation (ReservationID, CustomerID, FlightInstanceID, Status) " + 
-            "VALUES ('%s', %s, %s, '%s')",
-            reservationID, customerID, flightInstanceID, status
-         );
+         int flightInstanceID = Integer.parseInt(in.readLine().trim());
 
-         esql.executeUpdate(insert);
+         SeatInventory.Booking booking = esql.getMetrics().time("reserve", () ->
+            MakeReservation(esql, customerID, flightInstanceID));
+         String status = booking.getStatus();
+         String reservationID = booking.reservationID;
 
          if (status.equals("waitlist")) {
             System.out.println("\nFlight " + flightInstanceID + " is full. You are now on the waitlist for this flight.");
@@ -1026,9 +1680,82 @@ public class AirlineManagement {
       }
    }
 
+   /*
+    * Cancels a reservation of the customer, or of anyone if customerID is
+    * null; a freed seat goes to the waitlist of the flight instance.
+    *
+    * @return the cancelled booking, or null if there was none to cancel
+    **/
+   public static SeatInventory.Booking CancelReservation(AirlineManagement esql, String reservationID, Integer customerID) throws SQLException {
+      return esql.getSeatInventory().cancel(reservationID, customerID);
+   }
+
+   public static void CancelReservation(AirlineManagement esql, int customerID) {
+      try {
+         System.out.print("\tEnter reservation number: ");
+         String reservationID = in.readLine().trim();
+
+         SeatInventory.Booking booking = esql.getMetrics().time("cancel", () ->
+            CancelReservation(esql, reservationID, customerID));
+         if (booking == null)
+            System.out.println("\nNo reservation " + reservationID + " to cancel.");
+         else
+            System.out.println("\nReservation " + reservationID + " on flight " + booking.flightInstanceID + " cancelled.");
+      } catch(Exception e) {
+         System.out.println("Failed to cancel the reservation");
+         System.err.println(e.getMessage());
+      }
+   }
+
+   /*
+    * Books every (customer, flight instance) pair in one transaction.
+    *
+    * @return one booking per passenger, in the order given
+    **/
+   public static List<SeatInventory.Booking> MakeGroupReservation(AirlineManagement esql, int[] customerIDs, int[] flightInstanceIDs) throws SQLException {
+      return esql.getSeatInventory().reserveGroup(customerIDs, flightInstanceIDs);
+   }
+
+   public static void MakeGroupReservation(AirlineManagement esql) {
+      try {
+         System.out.print("\tEnter flight instance ID: ");
+         int flightInstanceID = Integer.parseInt(in.readLine().trim());
+         System.out.print("\tEnter customer IDs, separated by commas: ");
+         String[] parts = in.readLine().split(",");
+         int[] customerIDs = new int[parts.length];
+         int[] instanceIDs = new int[parts.length];
+         for (int i = 0; i < parts.length; ++i) {
+            customerIDs[i] = Integer.parseInt(parts[i].trim());
+            instanceIDs[i] = flightInstanceID;
+         }
+
+         List<SeatInventory.Booking> bookings = esql.getMetrics().time("group-reserve", () ->
+            MakeGroupReservation(esql, customerIDs, instanceIDs));
+         ResultRenderer.Table table = esql.getStdout().begin("reservationid", "customerid", "status");
+         for (SeatInventory.Booking b : bookings) {
+            table.cell(b.reservationID).cell(Integer.toString(b.customerID)).cell(b.getStatus());
+            table.endRow();
+         }
+         table.end();
+      } catch(Exception e) {
+         System.out.println("Failed to create the group reservation");
+         System.err.println(e.getMessage());
+      }
+   }
+
    /*
     * Technician Features
     **/
+   public static int GetRepairsForPlane(AirlineManagement esql, String planeID, LocalDate from, LocalDate to, ResultRenderer out) throws SQLException, IOException {
+      String query =
+         "SELECT RepairDate, RepairCode " +
+         "FROM Repair " +
+         "WHERE PlaneID = ? AND RepairDate BETWEEN ? AND ?";
+      try (ResultCursor rs = esql.openCursor(query, planeID, Date.valueOf(from), Date.valueOf(to))) {
+         return out.render(rs);
+      }
+   }
+
    public static void GetRepairsForPlane(AirlineManagement esql) {
       try {
          System.out.print("\tEnter plane ID: ");
@@ -1038,59 +1765,91 @@ public class AirlineManagement {
          System.out.print("\tEnter end date (YYYY-MM-DD): ");
          String end = in.readLine();
 
-         String query = String.format(
-            "SELECT RepairDate, RepairCode " +
-            "FROM Repair " +
-            "WHERE PlaneID = '%s' AND RepairDate BETWEEN '%s' AND '%s'",
-            planeID, start, end
-         );
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         int rowCount = esql.getMetrics().time("plane-repairs", () ->
+            GetRepairsForPlane(esql, planeID,
+               LocalDate.parse(start.trim()), LocalDate.parse(end.trim()), esql.getStdout()));
          System.out.println("Total row(s): " + rowCount);
       } catch(Exception e) {
          System.err.println(e.getMessage());
       }
    }
 
+   // maintenance requests of a pilot, oldest first
+   static final KeysetPager PILOT_REQUESTS = new KeysetPager(
+      new String[]{"RequestDate", "RepairCode", "PlaneID", "RequestID"},
+      "FROM MaintenanceRequest WHERE PilotID = ?",
+      new String[]{"RequestDate", "RequestID"},
+      new Class<?>[]{LocalDate.class, Integer.class});
+
+   public static KeysetPager.Page GetPilotRequests(AirlineManagement esql, String pilotID, Object[] from, KeysetPager.Direction direction, int size, ResultRenderer out) throws SQLException, IOException {
+      return PILOT_REQUESTS.page(esql, new Object[]{pilotID}, from, direction, size, out);
+   }
+
    public static void GetPilotRequests(AirlineManagement esql) {
       try {
          System.out.print("\tEnter pilot ID: ");
          String pilotID = in.readLine();
 
-         String query =
-            "SELECT RequestDate, RepairCode, PlaneID " +
-            "FROM MaintenanceRequest " + 
-            "WHERE PilotID = '" + pilotID + "'";
-
          System.out.println("\n");
 
-         int rowCount = esql.executeQueryAndPrintResult(query);
-         System.out.println("Total row(s): " + rowCount);
+         KeysetPager.Page first = browse((from, direction) -> esql.getMetrics().time("requests", () ->
+            GetPilotRequests(esql, pilotID, from, direction, esql.getPageSize(), esql.getStdout())));
+         if (first.rows == 0) {
+            System.out.println("No maintenance request by pilot " + pilotID);
+         }
       } catch(Exception e) {
          System.err.println(e.getMessage());
       }
    }
 
+   /*
+    * @return the id of the new Repair row
+    **/
+   public static int LogRepair(AirlineManagement esql, String techID, String planeID, String repairCode) throws SQLException {
+      esql.getReferenceCache().requireTechnician(techID);
+      esql.getReferenceCache().requirePlane(planeID);
+      Date repairDate = Date.valueOf(LocalDate.now());
+
+      int repairID = esql.getIdAllocator().nextRepairID();
+
+      // group committed with concurrent writes, Plane.LastRepairDate included
+      WriteBehind.await(esql.getWriteBehind().logRepair(repairID, planeID, repairCode, repairDate, techID));
+      return repairID;
+   }
+
+   /*
+    * Logs the repair asked for by a maintenance request the technician
+    * claimed, closing the request.
+    *
+    * @return the id of the new Repair row
+    **/
+   public static int LogRepair(AirlineManagement esql, String techID, int requestID) throws SQLException {
+      esql.getReferenceCache().requireTechnician(techID);
+      int repairID = esql.getIdAllocator().nextRepairID();
+      WriteBehind.await(esql.getWriteBehind().completeRequest(repairID, requestID, techID));
+      return repairID;
+   }
+
    public static void LogRepair(AirlineManagement esql, String techID) {
       try {
+         System.out.print("\tEnter claimed request ID (blank for none): ");
+         String request = in.readLine().trim();
+         if (!request.isEmpty()) {
+            int requestID = Integer.parseInt(request);
+            esql.getMetrics().time("log-repair", () ->
+               LogRepair(esql, techID, requestID));
+
+            System.out.println("\nMaintenance request " + requestID + " marked as completed.");
+            return;
+         }
+
          System.out.print("\tEnter plane ID: ");
          String planeID = in.readLine();
          System.out.print("\tEnter repair code: ");
          String repairCode = in.readLine();
 
-         LocalDate today = LocalDate.now();
-         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-         String repairDate = today.format(formatter);
-
-         String countQuery = "SELECT COUNT(*) FROM Repair";
-         List<List<String>> countResult = esql.executeQueryAndReturnResult(countQuery);
-         int repairID = Integer.parseInt(countResult.get(0).get(0)) + 1;
-
-         String insert = String.format(
-            "INSERT INTO Repair (RepairID, PlaneID, RepairCode, RepairDate, TechnicianID) " + 
-            "VALUES (%s, '%s', '%s', '%s', '%s')",
-            repairID, planeID, repairCode, repairDate, techID
-         );
-         esql.executeUpdate(insert);
+         esql.getMetrics().time("log-repair", () ->
+            LogRepair(esql, techID, planeID, repairCode));
 
          System.out.println("\n");
 
@@ -1100,9 +1859,93 @@ public class AirlineManagement {
       }
    }
 
+   /*
+    * Claims the most urgent open maintenance requests for a technician.
+    *
+    * @return the requests claimed, none if the queue is empty
+    **/
+   public static List<WorkQueue.Request> ClaimRequests(AirlineManagement esql, String techID, int count, ResultRenderer out) throws SQLException, IOException {
+      esql.getReferenceCache().requireTechnician(techID);
+      List<WorkQueue.Request> claimed = esql.getWorkQueue().claim(techID, count);
+      WorkQueue.render(claimed, out);
+      return claimed;
+   }
+
+   public static void ClaimRequests(AirlineManagement esql, String techID) {
+      try {
+         List<WorkQueue.Request> claimed = esql.getMetrics().time("claim", () ->
+            ClaimRequests(esql, techID, 1, esql.getStdout()));
+         if (claimed.isEmpty()) {
+            System.out.println("No open maintenance request to claim");
+         }
+      } catch(Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   public static List<WorkQueue.Request> GetClaimedRequests(AirlineManagement esql, String techID, ResultRenderer out) throws SQLException, IOException {
+      List<WorkQueue.Request> claimed = esql.getWorkQueue().getClaimed(techID);
+      WorkQueue.render(claimed, out);
+      return claimed;
+   }
+
+   public static void GetClaimedRequests(AirlineManagement esql, String techID) {
+      try {
+         List<WorkQueue.Request> claimed = esql.getMetrics().time("claimed", () ->
+            GetClaimedRequests(esql, techID, esql.getStdout()));
+         if (claimed.isEmpty()) {
+            System.out.println("You have no claimed request open");
+         }
+      } catch(Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   /*
+    * Gives a claimed maintenance request back to the queue.
+    *
+    * @return false if the technician had no open claim on it
+    **/
+   public static boolean ReleaseRequest(AirlineManagement esql, String techID, int requestID) throws SQLException {
+      return esql.getWorkQueue().release(techID, requestID);
+   }
+
+   public static void ReleaseRequest(AirlineManagement esql, String techID) {
+      try {
+         System.out.print("\tEnter request ID: ");
+         int requestID = Integer.parseInt(in.readLine().trim());
+
+         boolean released = esql.getMetrics().time("release", () ->
+            ReleaseRequest(esql, techID, requestID));
+         if (released) {
+            System.out.println("\nMaintenance request " + requestID + " is back in the queue.");
+         } else {
+            System.out.println("\nYou have no open claim on request " + requestID);
+         }
+      } catch(Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+
    /*
     * Pilot Features
     **/
+
+   /*
+    * @return the id of the new MaintenanceRequest row
+    **/
+   public static int SubmitMaintenanceRequest(AirlineManagement esql, String pilotID, String planeID, String repairCode) throws SQLException {
+      esql.getReferenceCache().requirePilot(pilotID);
+      esql.getReferenceCache().requirePlane(planeID);
+      Date requestDate = Date.valueOf(LocalDate.now());
+
+      int requestID = esql.getIdAllocator().nextRequestID();
+
+      // queued for the technicians, due at the plane's next departure
+      WriteBehind.await(esql.getWriteBehind().submitRequest(requestID, planeID, repairCode, requestDate, pilotID));
+      return requestID;
+   }
+
    public static void SubmitMaintenanceRequest(AirlineManagement esql, String pilotID) {
       try {
          System.out.print("\tEnter plane ID: ");
@@ -1110,35 +1953,15 @@ public class AirlineManagement {
          System.out.print("\tEnter repair code: ");
          String repairCode = in.readLine();
 
-         LocalDate today = LocalDate.now();
-         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-         String requestDate = today.format(formatter);
-
-         String countQuery = "SELECT COUNT(*) FROM MaintenanceRequest";
-         List<List<String>> countResult = esql.executeQueryAndReturnResult(countQuery);
-         int requestID = Integer.parseInt(countResult.get(0).get(0)) + 1;
-
-         String insert = String.format("INSERT INTO MaintenanceRequest (RequestID, PlaneID, RepairCode, RequestDate, PilotID) " + 
-         "VALUES (%s, '%s', '%s', '%s', '%s')",
-         requestID, planeID, repairCode, requestDate, pilotID
-         );
-
-         esql.executeUpdate(insert);
+         esql.getMetrics().time("request", () ->
+            SubmitMaintenanceRequest(esql, pilotID, planeID, repairCode));
          System.out.println("\nMaintenance Request for " + planeID + " with Repair Code: " + repairCode + " has been submitted.");
       } catch(Exception e) {
          System.err.println(e.getMessage());
       }
    }
 
-   public static List<List<String>> timeAndExecuteQuery(AirlineManagement esql, String query) throws Exception {
-      long start = System.nanoTime();
-      List<List<String>> results = esql.executeQueryAndReturnResult(query);
-      long end = System.nanoTime();
-      long ms = (end - start) / 1_000_000;
-      System.out.println("Query executed in " + ms + " ms.");
-      return results;
-  }
 
 
-}//end AirlineManagement
 
+}//end AirlineManagement
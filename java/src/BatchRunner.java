@@ -0,0 +1,204 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a stream of Operations commands, one per line, without the menu.
+ *
+ * Commands are read ahead and run on a fixed number of threads, at most
+ * WINDOW_PER_THREAD per thread in flight, while their output is printed in
+ * input order.  Each command renders into its own buffer, so concurrent
+ * commands never interleave.  With one thread the commands run strictly
+ * in order, which a script that reads its own writes needs.  At the end a
+ * summary of count, errors and latency per verb and the overall throughput
+ * is printed.
+ *
+ */
+public class BatchRunner {
+
+   // commands in flight per thread; bounds the memory held by buffered output
+   private static final int WINDOW_PER_THREAD = 8;
+
+   // the outcome of one command
+   private static class Outcome {
+      final int line;
+      final String verb;
+      final String output;
+      final String error;
+      final long nanos;
+
+      Outcome(int line, String verb, String output, String error, long nanos) {
+         this.line = line;
+         this.verb = verb;
+         this.output = output;
+         this.error = error;
+         this.nanos = nanos;
+      }//end Outcome
+   }//end Outcome
+
+   // latencies of one verb
+   private static class VerbStats {
+      long errors = 0;
+      long[] nanos = new long[16];
+      int count = 0;
+
+      void add(Outcome o) {
+         if (o.error != null) {
+            ++this.errors;
+            return;
+         }//end if
+         if (this.count == this.nanos.length)
+            this.nanos = Arrays.copyOf(this.nanos, this.count * 2);
+         this.nanos[this.count++] = o.nanos;
+      }//end add
+   }//end VerbStats
+
+   private final AirlineManagement _esql;
+   private final int _threads;
+   private final ResultRenderer.Format _format;
+   private final PrintStream _out;
+
+   public BatchRunner(AirlineManagement esql, int threads, ResultRenderer.Format format, PrintStream out) {
+      this._esql = esql;
+      this._threads = Math.max(1, threads);
+      this._format = format;
+      this._out = out;
+   }//end BatchRunner
+
+   /**
+    * Runs every command of the input and prints the summary.
+    *
+    * @param in the commands, one per line; blank lines and # comments are skipped
+    * @return the number of commands that failed
+    * @throws java.io.IOException when failed to read the input
+    */
+   public long run(BufferedReader in) throws IOException {
+      ExecutorService pool = Executors.newFixedThreadPool(this._threads);
+      Deque<Future<Outcome>> inFlight = new ArrayDeque<Future<Outcome>>();
+      Map<String, VerbStats> stats = new LinkedHashMap<String, VerbStats>();
+      int window = this._threads * WINDOW_PER_THREAD;
+      long start = System.nanoTime();
+      try {
+         String text;
+         int lineNo = 0;
+         while ((text = in.readLine()) != null) {
+            final int line = ++lineNo;
+            final String command = text;
+            if (this._threads == 1) {
+               print(execute(line, command), stats);
+               continue;
+            }//end if
+            inFlight.addLast(pool.submit(() -> execute(line, command)));
+            while (inFlight.size() >= window)
+               print(take(inFlight), stats);
+         }//end while
+         while (!inFlight.isEmpty())
+            print(take(inFlight), stats);
+      } finally {
+         pool.shutdown();
+      }//end try
+      double seconds = (System.nanoTime() - start) / 1e9;
+      return summary(stats, seconds);
+   }//end run
+
+   // runs one line; never throws, failures are part of the outcome
+   private Outcome execute(int line, String text) {
+      Operations.Command command;
+      try {
+         command = Operations.parse(text);
+      } catch (IllegalArgumentException e) {
+         return new Outcome(line, "?", "", e.getMessage(), 0);
+      }//end try
+      if (command == null)
+         return null;
+
+      StringWriter buffer = new StringWriter();
+      ResultRenderer out = new ResultRenderer(buffer, this._format);
+      long begin = System.nanoTime();
+      try {
+         Operations.run(this._esql, command, out);
+         return new Outcome(line, command.verb, buffer.toString(), null, System.nanoTime() - begin);
+      } catch (Exception e) {
+         return new Outcome(line, command.verb, buffer.toString(), e.getMessage(), System.nanoTime() - begin);
+      }//end try
+   }//end execute
+
+   private static Outcome take(Deque<Future<Outcome>> inFlight) {
+      try {
+         return inFlight.removeFirst().get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("interrupted");
+      } catch (ExecutionException e) {
+         // execute catches everything, so this is a bug
+         throw new IllegalStateException(e.getCause());
+      }//end try
+   }//end take
+
+   private void print(Outcome o, Map<String, VerbStats> stats) {
+      if (o == null)
+         return;
+      this._out.print(o.output);
+      if (o.error != null)
+         this._out.println("ERROR line " + o.line + ": " + o.error);
+      VerbStats s = stats.get(o.verb);
+      if (s == null) {
+         s = new VerbStats();
+         stats.put(o.verb, s);
+      }//end if
+      s.add(o);
+   }//end print
+
+   // prints count, errors and latency per verb; returns the error count
+   private long summary(Map<String, VerbStats> stats, double seconds) throws IOException {
+      long total = 0;
+      long errors = 0;
+      this._out.flush();
+      ResultRenderer out = new ResultRenderer(new OutputStreamWriter(this._out), this._format);
+      out.println("");
+      ResultRenderer.Table table = out.begin("operation", "count", "errors", "avg ms", "p50 ms", "p99 ms", "max ms");
+      for (Map.Entry<String, VerbStats> e : stats.entrySet()) {
+         VerbStats s = e.getValue();
+         long[] sorted = Arrays.copyOf(s.nanos, s.count);
+         Arrays.sort(sorted);
+         long sum = 0;
+         for (long n : sorted)
+            sum += n;
+         table.cell(e.getKey()).cell(Integer.toString(s.count)).cell(Long.toString(s.errors))
+              .cell(millis(s.count == 0 ? 0 : sum / s.count))
+              .cell(millis(percentile(sorted, 50))).cell(millis(percentile(sorted, 99)))
+              .cell(millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1]));
+         table.endRow();
+         total += s.count + s.errors;
+         errors += s.errors;
+      }//end for
+      table.end();
+      out.println(String.format("%d command(s), %d error(s) in %.2f s: %.1f commands/s on %d thread(s)",
+                                total, errors, seconds, seconds > 0 ? total / seconds : 0, this._threads));
+      out.flush();
+      return errors;
+   }//end summary
+
+   private static long percentile(long[] sorted, double p) {
+      if (sorted.length == 0)
+         return 0;
+      int i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+      return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+   }//end percentile
+
+   private static String millis(long nanos) {
+      return String.format("%.3f", nanos / 1e6);
+   }//end millis
+
+}//end BatchRunner
@@ -0,0 +1,494 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the data/*.csv files into an empty schema, replacing the serial
+ * \copy calls of load_data.sql.
+ *
+ * The indexes of create_indexes.sql are dropped first and rebuilt once the
+ * data is in.  Tables are loaded in foreign key order, one level at a time;
+ * within a level every table is cut into chunks that are parsed and
+ * inserted in parallel.  A chunk is read through a memory mapping of its
+ * byte range and inserted with multi-row INSERT statements of BATCH_ROWS
+ * rows on a pooled connection, in one transaction per chunk or as the
+ * commit policy says (--commit, airline.load.commitPolicy, e.g.
+ * statements=20 to commit every 20 statements).  Each value
+ * is sent as text and cast to the column type, so dates, booleans and
+ * numbers are read exactly as \copy would read them.
+ *
+ * A chunk owns the records that start inside it, a record starting right
+ * after a line break.  Quoted values may hold commas and quotes but not
+ * line breaks, which none of the data files use.
+ *
+ * Usage:
+ *    java BulkLoader <dbname> <port> <user> [--data dir] [--sql dir]
+ *         [--threads N] [--batch rows] [--commit per-call|statements=N|window=MS]
+ *
+ */
+public class BulkLoader {
+
+   // tables in load order; a table only references tables of earlier levels
+   private static final String[][] LEVELS = {
+      {"Plane", "Customer", "Technician", "Pilot"},
+      {"Flight"},
+      {"Schedule", "FlightInstance", "Repair", "MaintenanceRequest"},
+      {"Reservation"}
+   };
+
+   // default rows per INSERT statement
+   public static final int DEFAULT_BATCH_ROWS = 500;
+
+   // bytes of a file parsed by one task
+   private static final long CHUNK_SIZE = 16L << 20;
+
+   // longest record expected; a chunk maps this much past its end
+   private static final long MAX_RECORD = 1L << 20;
+
+   // PostgreSQL accepts at most this many bind values per statement
+   private static final int MAX_PARAMS = 32767;
+
+   /**
+    * Rows and time spent on one table.
+    */
+   public static class TableStats {
+      public final String table;
+      public final AtomicLong rows = new AtomicLong();
+      volatile long startNanos;
+      volatile long endNanos;
+
+      TableStats(String table) {
+         this.table = table;
+      }//end TableStats
+
+      // called by every chunk when done; the last one sets the end time
+      synchronized void finished() {
+         this.endNanos = Math.max(this.endNanos, System.nanoTime());
+      }//end finished
+
+      public synchronized double seconds() {
+         return (this.endNanos - this.startNanos) / 1e9;
+      }//end seconds
+   }//end TableStats
+
+   // a table being loaded: its file, header and insert templates
+   private static class TableLoad {
+      final String table;
+      final File file;
+      final long dataStart;
+      final String[] columns;
+      final String[] types;
+      final TableStats stats;
+
+      TableLoad(String table, File file, long dataStart, String[] columns, String[] types) {
+         this.table = table;
+         this.file = file;
+         this.dataStart = dataStart;
+         this.columns = columns;
+         this.types = types;
+         this.stats = new TableStats(table);
+      }//end TableLoad
+
+      // INSERT INTO table (columns) VALUES (CAST(? AS type), ...), ... for rows rows
+      String insert(int rows) {
+         StringBuilder row = new StringBuilder("(");
+         for (int i = 0; i < this.columns.length; ++i) {
+            if (i > 0)
+               row.append(", ");
+            row.append("CAST(? AS ").append(this.types[i]).append(')');
+         }//end for
+         row.append(')');
+         StringBuilder sql = new StringBuilder("INSERT INTO ").append(this.table).append(" (");
+         sql.append(String.join(", ", this.columns)).append(") VALUES ");
+         for (int r = 0; r < rows; ++r) {
+            if (r > 0)
+               sql.append(", ");
+            sql.append(row);
+         }//end for
+         return sql.toString();
+      }//end insert
+   }//end TableLoad
+
+   private final AirlineManagement _esql;
+   private final File _dataDir;
+   private final File _sqlDir;
+   private final int _threads;
+   private final int _batchRows;
+   private final UnitOfWork.CommitPolicy _policy;
+
+   public BulkLoader(AirlineManagement esql, File dataDir, File sqlDir, int threads, int batchRows) {
+      this(esql, dataDir, sqlDir, threads, batchRows,
+           UnitOfWork.CommitPolicy.parse(System.getProperty("airline.load.commitPolicy")));
+   }//end BulkLoader
+
+   /**
+    * @param policy when a chunk commits besides at its end
+    */
+   public BulkLoader(AirlineManagement esql, File dataDir, File sqlDir, int threads, int batchRows,
+                     UnitOfWork.CommitPolicy policy) {
+      this._esql = esql;
+      this._dataDir = dataDir;
+      this._sqlDir = sqlDir;
+      this._threads = threads;
+      this._batchRows = batchRows;
+      this._policy = policy;
+   }//end BulkLoader
+
+   /**
+    * Drops the indexes, loads every table, rebuilds the indexes and moves
+    * the key sequences past the loaded ids.
+    *
+    * @return the statistics of each table in load order
+    * @throws java.lang.Exception when a file cannot be read or a row is rejected
+    */
+   public List<TableStats> load() throws Exception {
+      List<String> indexes = statements(new File(this._sqlDir, "create_indexes.sql"));
+      for (String create : indexes) {
+         String name = indexName(create);
+         if (name != null)
+            this._esql.executeUpdate("DROP INDEX IF EXISTS " + name);
+      }//end for
+
+      List<TableStats> stats = new ArrayList<TableStats>();
+      ExecutorService pool = Executors.newFixedThreadPool(this._threads);
+      try {
+         for (String[] level : LEVELS) {
+            List<Future<?>> tasks = new ArrayList<Future<?>>();
+            for (String table : level) {
+               File file = new File(this._dataDir, table + ".csv");
+               if (!file.exists())
+                  continue;
+               final TableLoad load = prepare(table, file);
+               stats.add(load.stats);
+               load.stats.startNanos = System.nanoTime();
+               long size = file.length();
+               for (long start = load.dataStart; start < size; start += CHUNK_SIZE) {
+                  final long from = start;
+                  final long to = Math.min(size, start + CHUNK_SIZE);
+                  tasks.add(pool.submit(() -> {
+                     loadChunk(load, from, to);
+                     load.stats.finished();
+                     return null;
+                  }));
+               }//end for
+            }//end for
+            for (Future<?> task : tasks)
+               task.get();
+         }//end for
+
+         // rebuild the indexes side by side
+         List<Future<?>> builds = new ArrayList<Future<?>>();
+         for (final String create : indexes)
+            builds.add(pool.submit(() -> {
+               this._esql.executeUpdate(create);
+               return null;
+            }));
+         for (Future<?> build : builds)
+            build.get();
+      } finally {
+         pool.shutdown();
+      }//end try
+
+      for (String stmt : statements(new File(this._sqlDir, "load_data.sql")))
+         if (stmt.toUpperCase().startsWith("SELECT SETVAL"))
+            this._esql.executeQuery(stmt);
+      // due dates of the loaded maintenance requests in the work queue
+      this._esql.getWorkQueue().reprioritize();
+      this._esql.executeUpdate("ANALYZE");
+      return stats;
+   }//end load
+
+   // reads the header of the file and the column types of the table
+   private TableLoad prepare(String table, File file) throws IOException, SQLException {
+      // the header is the bytes up to the first \n, whose \r if any is
+      // dropped like the parser drops it; the data starts right after it
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      long dataStart = 0;
+      try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+         int b;
+         while ((b = in.read()) != -1) {
+            ++dataStart;
+            if (b == '\n')
+               break;
+            if (b != '\r')
+               line.write(b);
+         }//end while
+      }//end try
+      String header = new String(line.toByteArray(), StandardCharsets.UTF_8);
+      // skip a byte order mark
+      if (header.startsWith("\uFEFF"))
+         header = header.substring(1);
+      String[] columns = header.split(",");
+      for (int i = 0; i < columns.length; ++i)
+         columns[i] = columns[i].trim();
+
+      Map<String, String> typeOf = new HashMap<String, String>();
+      PooledConnection pc = this._esql.acquireConnection();
+      boolean ok = false;
+      try {
+         Statement stmt = pc.getConnection().createStatement();
+         try {
+            ResultSetMetaData meta = stmt.executeQuery("SELECT * FROM " + table + " WHERE false").getMetaData();
+            for (int i = 1; i <= meta.getColumnCount(); ++i)
+               typeOf.put(meta.getColumnName(i).toLowerCase(), meta.getColumnTypeName(i));
+         } finally {
+            stmt.close();
+         }//end try
+         ok = true;
+      } finally {
+         this._esql.releaseConnection(pc, ok);
+      }//end try
+
+      String[] types = new String[columns.length];
+      for (int i = 0; i < columns.length; ++i) {
+         types[i] = typeOf.get(columns[i].toLowerCase());
+         if (types[i] == null)
+            throw new SQLException(file.getName() + ": " + table + " has no column " + columns[i]);
+      }//end for
+      return new TableLoad(table, file, dataStart, columns, types);
+   }//end prepare
+
+   // parses the records starting in [from, to) and inserts them
+   private void loadChunk(TableLoad load, long from, long to) throws IOException, SQLException {
+      int columns = load.columns.length;
+      int batchRows = Math.max(1, Math.min(this._batchRows, MAX_PARAMS / columns));
+      String fullBatch = load.insert(batchRows);
+
+      MappedByteBuffer buf;
+      try (FileChannel ch = FileChannel.open(load.file.toPath(), StandardOpenOption.READ)) {
+         long mapStart = from == load.dataStart ? from : from - 1;
+         long mapEnd = Math.min(ch.size(), to + MAX_RECORD);
+         buf = ch.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+      }//end try
+      int limit = buf.limit();
+      int ownedEnd = (int) (to - (from == load.dataStart ? from : from - 1));
+      int pos = 0;
+      if (from != load.dataStart) {
+         // records start after a line break; finish the one in progress
+         while (pos < limit && buf.get(pos) != '\n')
+            ++pos;
+         ++pos;
+      }//end if
+
+      Object[] params = new Object[batchRows * columns];
+      int rows = 0;
+      // statements since the last commit, and when the first of them ran
+      int uncommitted = 0;
+      long firstUncommitted = 0;
+      PooledConnection pc = this._esql.acquireConnection();
+      boolean ok = false;
+      try {
+         Connection conn = pc.getConnection();
+         conn.setAutoCommit(false);
+         CsvRecord record = new CsvRecord(columns);
+         while (pos < ownedEnd && pos < limit) {
+            pos = record.parse(buf, pos, limit);
+            if (record.blank)
+               continue;
+            System.arraycopy(record.values, 0, params, rows * columns, columns);
+            if (++rows == batchRows) {
+               insert(pc, fullBatch, params);
+               load.stats.rows.addAndGet(rows);
+               rows = 0;
+               if (uncommitted++ == 0)
+                  firstUncommitted = System.nanoTime();
+               if (this._policy.isDue(uncommitted, firstUncommitted)) {
+                  conn.commit();
+                  uncommitted = 0;
+               }//end if
+            }//end if
+         }//end while
+         if (rows > 0) {
+            Object[] rest = new Object[rows * columns];
+            System.arraycopy(params, 0, rest, 0, rest.length);
+            insert(pc, load.insert(rows), rest);
+            load.stats.rows.addAndGet(rows);
+         }//end if
+         conn.commit();
+         conn.setAutoCommit(true);
+         ok = true;
+      } finally {
+         this._esql.releaseConnection(pc, ok);
+      }//end try
+   }//end loadChunk
+
+   private static void insert(PooledConnection pc, String sql, Object[] params) throws SQLException {
+      StatementCache cache = pc.getStatementCache();
+      PreparedStatement stmt = cache.prepare(sql);
+      try {
+         StatementCache.bind(stmt, params);
+         stmt.executeUpdate();
+      } finally {
+         cache.done(sql, stmt);
+      }//end try
+   }//end insert
+
+   /**
+    * One CSV record parsed in place from the mapped bytes, with the CSV
+    * rules of COPY: an empty unquoted value is NULL, a quoted one is the
+    * empty string, and "" inside quotes is one quote.
+    */
+   private static class CsvRecord {
+      final String[] values;
+      boolean blank;
+      private byte[] scratch = new byte[256];
+
+      CsvRecord(int columns) {
+         this.values = new String[columns];
+      }//end CsvRecord
+
+      // parses the record starting at pos; returns the start of the next one
+      int parse(MappedByteBuffer buf, int pos, int limit) throws IOException {
+         int col = 0;
+         this.blank = true;
+         while (true) {
+            int len = 0;
+            boolean quoted = false;
+            if (pos < limit && buf.get(pos) == '"') {
+               quoted = true;
+               ++pos;
+               while (pos < limit) {
+                  byte b = buf.get(pos++);
+                  if (b == '"') {
+                     if (pos < limit && buf.get(pos) == '"') {
+                        ++pos;
+                     } else {
+                        break;
+                     }//end if
+                  }//end if
+                  len = put(len, b);
+               }//end while
+            }//end if
+            while (pos < limit) {
+               byte b = buf.get(pos);
+               if (b == ',' || b == '\n')
+                  break;
+               ++pos;
+               if (b != '\r')
+                  len = put(len, b);
+            }//end while
+
+            String value = len == 0 && !quoted ? null : new String(this.scratch, 0, len, StandardCharsets.UTF_8);
+            if (value != null || col > 0)
+               this.blank = false;
+            if (col < this.values.length)
+               this.values[col] = value;
+            ++col;
+
+            if (pos >= limit || buf.get(pos) == '\n') {
+               ++pos;
+               break;
+            }//end if
+            ++pos; // the comma
+         }//end while
+         if (!this.blank && col != this.values.length)
+            throw new IOException("expected " + this.values.length + " values, found " + col);
+         return pos;
+      }//end parse
+
+      private int put(int len, byte b) {
+         if (len == this.scratch.length)
+            this.scratch = java.util.Arrays.copyOf(this.scratch, len * 2);
+         this.scratch[len] = b;
+         return len + 1;
+      }//end put
+   }//end CsvRecord
+
+   // the statements of a script, without comments and psql meta commands
+   private static List<String> statements(File script) throws IOException {
+      List<String> result = new ArrayList<String>();
+      if (!script.exists())
+         return result;
+      StringBuilder current = new StringBuilder();
+      for (String line : Files.readAllLines(script.toPath(), StandardCharsets.UTF_8)) {
+         String trimmed = line.trim();
+         if (trimmed.startsWith("--") || trimmed.startsWith("\\") || trimmed.startsWith("/*"))
+            continue;
+         current.append(line).append('\n');
+         if (trimmed.endsWith(";")) {
+            String stmt = current.toString().trim();
+            result.add(stmt.substring(0, stmt.length() - 1).trim());
+            current.setLength(0);
+         }//end if
+      }//end for
+      return result;
+   }//end statements
+
+   // the name in CREATE [UNIQUE] INDEX name ON ...
+   private static String indexName(String create) {
+      String[] words = create.trim().split("\\s+");
+      for (int i = 0; i + 1 < words.length; ++i)
+         if (words[i].equalsIgnoreCase("INDEX") && !words[i + 1].equalsIgnoreCase("ON"))
+            return words[i + 1].equalsIgnoreCase("IF") && i + 4 < words.length ? words[i + 4] : words[i + 1];
+      return null;
+   }//end indexName
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println(
+            "Usage: java [-classpath <classpath>] " + BulkLoader.class.getName() +
+            " <dbname> <port> <user> [--data dir] [--sql dir] [--threads N] [--batch rows]" +
+            " [--commit per-call|statements=N|window=MS]");
+         return;
+      }//end if
+      File dataDir = new File("data");
+      File sqlDir = new File("sql/src");
+      int threads = Runtime.getRuntime().availableProcessors();
+      int batch = DEFAULT_BATCH_ROWS;
+      UnitOfWork.CommitPolicy policy = UnitOfWork.CommitPolicy.parse(System.getProperty("airline.load.commitPolicy"));
+      for (int i = 3; i < args.length; ++i) {
+         switch (args[i]) {
+            case "--data": dataDir = new File(args[++i]); break;
+            case "--sql": sqlDir = new File(args[++i]); break;
+            case "--threads": threads = Integer.parseInt(args[++i]); break;
+            case "--batch": batch = Integer.parseInt(args[++i]); break;
+            case "--commit": policy = UnitOfWork.CommitPolicy.parse(args[++i]); break;
+            default:
+               System.err.println("Unknown option: " + args[i]);
+               return;
+         }//end switch
+      }//end for
+
+      Class.forName("org.postgresql.Driver");
+      AirlineManagement esql = new AirlineManagement(args[0], args[1], args[2], "", threads);
+      try {
+         long start = System.nanoTime();
+         List<TableStats> stats = new BulkLoader(esql, dataDir, sqlDir, threads, batch, policy).load();
+         ResultRenderer out = ResultRenderer.toStdout(ResultRenderer.Format.parse(System.getProperty("airline.output")));
+         ResultRenderer.Table table = out.begin("table", "rows", "seconds", "rows/s");
+         for (TableStats s : stats) {
+            double secs = s.seconds();
+            table.cell(s.table).cell(Long.toString(s.rows.get()))
+                 .cell(String.format("%.2f", secs))
+                 .cell(String.format("%.0f", secs > 0 ? s.rows.get() / secs : 0));
+            table.endRow();
+         }//end for
+         table.end();
+         System.out.println("Loaded and indexed in " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+      } finally {
+         esql.cleanup();
+      }//end try
+   }//end main
+
+}//end BulkLoader
@@ -0,0 +1,289 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size pool of physical connections to the database.  Connections
+ * are opened lazily up to the pool size, validated when they have been idle
+ * for a while, and replaced when the server dropped them.  Callers borrow a
+ * connection with acquire() and must hand it back with release() (or
+ * invalidate() if it failed) in a finally block.
+ *
+ */
+public class ConnectionPool {
+
+   // default number of physical connections
+   public static final int DEFAULT_SIZE = 8;
+
+   // default time to wait for a free connection before failing
+   public static final long DEFAULT_ACQUIRE_TIMEOUT_MS = 5000;
+
+   // connections idle longer than this are validated before being handed out
+   public static final long DEFAULT_VALIDATE_AFTER_MS = 30000;
+
+   // longest single wait on the idle queue before re-checking for a free slot
+   private static final long POLL_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final int _size;
+   private final long _acquireTimeoutMs;
+   private final long _validateAfterMs;
+
+   // idle connections ready to be borrowed
+   private final BlockingQueue<PooledConnection> _idle;
+
+   // number of physical connections currently open (idle + borrowed)
+   private final AtomicInteger _open = new AtomicInteger(0);
+
+   private volatile boolean _closed = false;
+
+   // statements cached per connection, and hit/miss counters shared by all of them
+   private volatile int _statementCacheSize = StatementCache.DEFAULT_SIZE;
+   private final AtomicLong _cacheHits = new AtomicLong(0);
+   private final AtomicLong _cacheMisses = new AtomicLong(0);
+
+   /**
+    * Creates a pool with the default size and timeouts
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    */
+   public ConnectionPool(String url, String user, String passwd) {
+      this(url, user, passwd, DEFAULT_SIZE, DEFAULT_ACQUIRE_TIMEOUT_MS, DEFAULT_VALIDATE_AFTER_MS);
+   }//end ConnectionPool
+
+   /**
+    * Creates a pool of at most size connections
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param size the maximum number of physical connections
+    * @param acquireTimeoutMs how long acquire() waits for a free connection
+    * @param validateAfterMs idle time after which a connection is validated
+    */
+   public ConnectionPool(String url, String user, String passwd, int size,
+                         long acquireTimeoutMs, long validateAfterMs) {
+      if (size < 1)
+         throw new IllegalArgumentException("Pool size must be at least 1: " + size);
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._size = size;
+      this._acquireTimeoutMs = acquireTimeoutMs;
+      this._validateAfterMs = validateAfterMs;
+      this._idle = new ArrayBlockingQueue<PooledConnection>(size);
+   }//end ConnectionPool
+
+   /**
+    * Opens the first connection so that a bad URL or a stopped server is
+    * reported at startup instead of on the first query.
+    *
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public void warmUp() throws SQLException {
+      release(acquire());
+   }//end warmUp
+
+   /**
+    * Borrows a connection, opening a new one if the pool is not full yet and
+    * waiting up to the acquire timeout otherwise.
+    *
+    * @return a valid connection that must be given back to the pool
+    * @throws java.sql.SQLException when no connection became available in time
+    */
+   public PooledConnection acquire() throws SQLException {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this._acquireTimeoutMs);
+      while (true) {
+         if (this._closed)
+            throw new SQLException("Connection pool is closed");
+
+         PooledConnection pc = this._idle.poll();
+         if (pc == null) {
+            pc = tryOpen();
+         }//end if
+         if (pc == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+               throw new SQLException("Timed out after " + this._acquireTimeoutMs +
+                                      " ms waiting for a database connection (pool size " + this._size + ")");
+            // wait in short slices so a slot freed by a discarded connection is noticed
+            try {
+               pc = this._idle.poll(Math.min(remaining, POLL_SLICE_NANOS), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new SQLException("Interrupted while waiting for a database connection");
+            }//end try
+            if (pc == null)
+               continue;
+         }//end if
+
+         if (isUsable(pc))
+            return pc;
+         // the server dropped it: discard and loop to reconnect
+         discard(pc);
+      }//end while
+   }//end acquire
+
+   /**
+    * Returns a borrowed connection to the pool.
+    *
+    * @param pc the connection obtained from acquire()
+    */
+   public void release(PooledConnection pc) {
+      if (pc == null)
+         return;
+      if (this._closed) {
+         discard(pc);
+         return;
+      }//end if
+      try {
+         // leave no half finished transaction behind for the next borrower
+         if (!pc.getConnection().getAutoCommit()) {
+            pc.getConnection().rollback();
+            pc.getConnection().setAutoCommit(true);
+         }//end if
+      } catch (SQLException e) {
+         discard(pc);
+         return;
+      }//end try
+      pc.touch();
+      if (!this._idle.offer(pc))
+         discard(pc);
+   }//end release
+
+   /**
+    * Returns a connection whose last operation failed.  It is validated
+    * before being reused and closed if the server is no longer reachable.
+    *
+    * @param pc the connection obtained from acquire()
+    */
+   public void invalidate(PooledConnection pc) {
+      if (pc == null)
+         return;
+      if (!validate(pc)) {
+         discard(pc);
+         return;
+      }//end if
+      release(pc);
+   }//end invalidate
+
+   /**
+    * Sets how many prepared statements each connection keeps open.  Only
+    * affects connections opened afterwards.
+    *
+    * @param size the number of statements per connection, 0 disables caching
+    */
+   public void setStatementCacheSize(int size) {
+      this._statementCacheSize = size;
+   }//end setStatementCacheSize
+
+   /**
+    * @return the number of prepare calls answered from a statement cache
+    */
+   public long getStatementCacheHits() {
+      return this._cacheHits.get();
+   }//end getStatementCacheHits
+
+   /**
+    * @return the number of prepare calls that had to prepare a new statement
+    */
+   public long getStatementCacheMisses() {
+      return this._cacheMisses.get();
+   }//end getStatementCacheMisses
+
+   /**
+    * @return the maximum number of physical connections
+    */
+   public int getSize() {
+      return this._size;
+   }//end getSize
+
+   /**
+    * @return the number of physical connections currently open
+    */
+   public int getOpenCount() {
+      return this._open.get();
+   }//end getOpenCount
+
+   /**
+    * @return the number of open connections not currently borrowed
+    */
+   public int getIdleCount() {
+      return this._idle.size();
+   }//end getIdleCount
+
+   /**
+    * Closes every idle connection and refuses further acquires.  Borrowed
+    * connections are closed as they are released.
+    */
+   public void close() {
+      this._closed = true;
+      PooledConnection pc;
+      while ((pc = this._idle.poll()) != null)
+         discard(pc);
+   }//end close
+
+   // opens a new physical connection if the pool has room for one
+   private PooledConnection tryOpen() throws SQLException {
+      while (true) {
+         int open = this._open.get();
+         if (open >= this._size)
+            return null;
+         if (this._open.compareAndSet(open, open + 1))
+            break;
+      }//end while
+      try {
+         Connection conn = DriverManager.getConnection(this._url, this._user, this._passwd);
+         return new PooledConnection(conn, new StatementCache(conn, this._statementCacheSize,
+                                                              this._cacheHits, this._cacheMisses));
+      } catch (SQLException e) {
+         this._open.decrementAndGet();
+         throw e;
+      }//end try
+   }//end tryOpen
+
+   // idle connections are checked before reuse, fresh ones are trusted
+   private boolean isUsable(PooledConnection pc) {
+      try {
+         if (pc.getConnection().isClosed())
+            return false;
+      } catch (SQLException e) {
+         return false;
+      }//end try
+      if (pc.idleMillis() < this._validateAfterMs)
+         return true;
+      return validate(pc);
+   }//end isUsable
+
+   // round trip to the server; Connection.isValid is not available in the JDBC3 driver
+   private boolean validate(PooledConnection pc) {
+      try {
+         Statement stmt = pc.getConnection().createStatement();
+         try {
+            stmt.executeQuery("SELECT 1").close();
+         } finally {
+            stmt.close();
+         }//end try
+         pc.touch();
+         return true;
+      } catch (SQLException e) {
+         return false;
+      }//end try
+   }//end validate
+
+   private void discard(PooledConnection pc) {
+      this._open.decrementAndGet();
+      pc.closeQuietly();
+   }//end discard
+
+}//end ConnectionPool
@@ -0,0 +1,281 @@
+import java.io.IOException;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * On-time departure and arrival rates, load factor (SeatsSold/SeatsTotal)
+ * and unsold seats of every route and every flight over a period.
+ *
+ * The work is split on a fork/join pool: one task per route, forking one
+ * task per flight of the route, each splitting its date range in halves
+ * down to airline.report.leafDays days.  A leaf reads its flight and days
+ * either from the FlightInstance snapshot (a binary search and a scan of
+ * mapped columns) or from the database (one aggregate over the flight's
+ * range of idx_flightinstance_flightdate, on a pooled connection).  Leaves
+ * share nothing, so the report scales with the workers up to the memory
+ * bandwidth, or the connection pool.
+ *
+ * A route is written out, its total and then its flights, as soon as its
+ * task finishes, in the order routes finish; the caller's thread does all
+ * the rendering.
+ *
+ */
+public class FleetReport {
+
+   // default days read by one leaf task
+   public static final int DEFAULT_LEAF_DAYS = 366;
+
+   private static final String FLIGHTS =
+      "SELECT FlightNumber, DepartureCity, ArrivalCity FROM Flight ORDER BY FlightNumber";
+   private static final String FLIGHT_TOTALS =
+      "SELECT COUNT(*), " +
+      "COALESCE(SUM(CASE WHEN DepartedOnTime THEN 1 ELSE 0 END), 0), " +
+      "COALESCE(SUM(CASE WHEN ArrivedOnTime THEN 1 ELSE 0 END), 0), " +
+      "COALESCE(SUM(SeatsSold), 0), COALESCE(SUM(SeatsTotal - SeatsSold), 0) " +
+      "FROM FlightInstance WHERE FlightNumber = ? AND FlightDate BETWEEN ? AND ?";
+
+   // figures added up per flight and route, as FlightStatsRollup orders them
+   private static final int INSTANCES = 0;
+   private static final int DEPARTED = 1;
+   private static final int ARRIVED = 2;
+   private static final int SOLD = 3;
+   private static final int UNSOLD = 4;
+   private static final int FIGURES = 5;
+
+   // a route and the flights flying it
+   private static class Route {
+      final String name;
+      final List<String> flights = new ArrayList<String>();
+
+      Route(String name) {
+         this.name = name;
+      }//end Route
+   }//end Route
+
+   // the totals of a finished route, or what made it fail
+   private static class RouteResult {
+      final Route route;
+      final long[] totals;
+      final List<long[]> flights;
+      final Throwable error;
+
+      RouteResult(Route route, long[] totals, List<long[]> flights, Throwable error) {
+         this.route = route;
+         this.totals = totals;
+         this.flights = flights;
+         this.error = error;
+      }//end RouteResult
+   }//end RouteResult
+
+   private final AirlineManagement _esql;
+   private final FlightInstanceSnapshot _snapshot;
+   private final int _leafDays;
+   private final int _parallelism;
+
+   /**
+    * @param esql the database handle
+    * @param snapshot the snapshot to read, or null to read the database
+    */
+   public FleetReport(AirlineManagement esql, FlightInstanceSnapshot snapshot) {
+      this(esql, snapshot, Integer.getInteger("airline.report.leafDays", DEFAULT_LEAF_DAYS),
+           Integer.getInteger("airline.report.parallelism", Runtime.getRuntime().availableProcessors()));
+   }//end FleetReport
+
+   /**
+    * @param esql the database handle
+    * @param snapshot the snapshot to read, or null to read the database
+    * @param leafDays days read by one leaf task
+    * @param parallelism workers of the pool; at most the connection pool
+    *        size when reading the database
+    */
+   public FleetReport(AirlineManagement esql, FlightInstanceSnapshot snapshot, int leafDays, int parallelism) {
+      this._esql = esql;
+      this._snapshot = snapshot;
+      this._leafDays = Math.max(1, leafDays);
+      int workers = Math.max(1, parallelism);
+      if (snapshot == null)
+         workers = Math.min(workers, esql.getPool().getSize());
+      this._parallelism = workers;
+   }//end FleetReport
+
+   /**
+    * Renders the report between two dates, both included: one row per
+    * route (flight empty) followed by the rows of its flights.
+    *
+    * @return the number of rows rendered
+    * @throws java.sql.SQLException when a query failed
+    * @throws java.io.IOException when the snapshot cannot be read or failed to render
+    */
+   public int run(LocalDate from, LocalDate to, ResultRenderer out) throws SQLException, IOException {
+      if (to.isBefore(from))
+         throw new IllegalArgumentException("the period ends before it starts");
+      List<Route> routes = routes();
+      int fromDay = (int) from.toEpochDay();
+      int toDay = (int) to.toEpochDay();
+
+      LinkedBlockingQueue<RouteResult> finished = new LinkedBlockingQueue<RouteResult>();
+      ForkJoinPool pool = new ForkJoinPool(this._parallelism);
+      ResultRenderer.Table table = out.begin("route", "flight", "instances", "departed_on_time_pct",
+                                             "arrived_on_time_pct", "load_factor_pct", "seats_unsold");
+      try {
+         for (Route route : routes)
+            pool.execute(() -> finished.add(runRoute(route, fromDay, toDay)));
+         for (int i = 0; i < routes.size(); ++i) {
+            RouteResult r = finished.take();
+            if (r.error != null)
+               rethrow(r.error);
+            row(table, r.route.name, "", r.totals);
+            for (int f = 0; f < r.route.flights.size(); ++f)
+               row(table, r.route.name, r.route.flights.get(f), r.flights.get(f));
+         }//end for
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("interrupted while the report ran");
+      } finally {
+         pool.shutdownNow();
+      }//end try
+      return table.end();
+   }//end run
+
+   // the routes with the flights of the source, by route name
+   private List<Route> routes() throws SQLException {
+      Map<String, String> routeOf = new TreeMap<String, String>();
+      try (ResultCursor rs = this._esql.openCursor(FLIGHTS)) {
+         while (rs.next())
+            routeOf.put(rs.getString(1), rs.getString(2) + " - " + rs.getString(3));
+      }//end try
+      if (this._snapshot != null) {
+         // only the flights with exported instances, and any not in Flight
+         Map<String, String> exported = new TreeMap<String, String>();
+         for (int code = 0; code < this._snapshot.getFlightCount(); ++code) {
+            String flight = this._snapshot.getFlightNumber(code);
+            exported.put(flight, routeOf.getOrDefault(flight, "unknown"));
+         }//end for
+         routeOf = exported;
+      }//end if
+      Map<String, Route> routes = new TreeMap<String, Route>();
+      for (Map.Entry<String, String> e : routeOf.entrySet())
+         routes.computeIfAbsent(e.getValue(), Route::new).flights.add(e.getKey());
+      return new ArrayList<Route>(routes.values());
+   }//end routes
+
+   // runs on a pool worker; failures are handed to the caller's thread
+   private RouteResult runRoute(Route route, int fromDay, int toDay) {
+      try {
+         List<FlightSlice> tasks = new ArrayList<FlightSlice>();
+         for (String flight : route.flights)
+            tasks.add(new FlightSlice(flight, fromDay, toDay));
+         for (FlightSlice task : tasks)
+            task.fork();
+         long[] totals = new long[FIGURES];
+         List<long[]> flights = new ArrayList<long[]>();
+         for (FlightSlice task : tasks) {
+            long[] figures = task.join();
+            flights.add(figures);
+            add(totals, figures);
+         }//end for
+         return new RouteResult(route, totals, flights, null);
+      } catch (Throwable t) {
+         return new RouteResult(route, null, null, t);
+      }//end try
+   }//end runRoute
+
+   // the figures of one flight over [fromDay, toDay]
+   private class FlightSlice extends RecursiveTask<long[]> {
+      private static final long serialVersionUID = 1L;
+
+      private final String _flight;
+      private final int _fromDay;
+      private final int _toDay;
+
+      FlightSlice(String flight, int fromDay, int toDay) {
+         this._flight = flight;
+         this._fromDay = fromDay;
+         this._toDay = toDay;
+      }//end FlightSlice
+
+      @Override
+      protected long[] compute() {
+         if ((long) this._toDay - this._fromDay < FleetReport.this._leafDays)
+            return leaf(this._flight, this._fromDay, this._toDay);
+         int mid = (int) (((long) this._fromDay + this._toDay) >>> 1);
+         FlightSlice left = new FlightSlice(this._flight, this._fromDay, mid);
+         FlightSlice right = new FlightSlice(this._flight, mid + 1, this._toDay);
+         left.fork();
+         long[] figures = right.compute();
+         add(figures, left.join());
+         return figures;
+      }//end compute
+   }//end FlightSlice
+
+   private long[] leaf(String flight, int fromDay, int toDay) {
+      long[] figures = new long[FIGURES];
+      if (this._snapshot != null) {
+         int code = this._snapshot.getCode(flight);
+         if (code >= 0)
+            for (FlightInstanceSnapshot.Segment s : this._snapshot.getSegments())
+               s.aggregate(code, fromDay, toDay, figures);
+         return figures;
+      }//end if
+      try (ResultCursor rs = this._esql.openCursor(0, FLIGHT_TOTALS, flight,
+              Date.valueOf(LocalDate.ofEpochDay(fromDay)), Date.valueOf(LocalDate.ofEpochDay(toDay)))) {
+         if (rs.next())
+            for (int f = 0; f < FIGURES; ++f)
+               figures[f] = rs.getLong(f + 1);
+      } catch (SQLException e) {
+         throw new ReportFailure(e);
+      }//end try
+      return figures;
+   }//end leaf
+
+   // carries a SQLException out of a fork/join task
+   private static class ReportFailure extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      ReportFailure(SQLException cause) {
+         super(cause.getMessage(), cause);
+      }//end ReportFailure
+   }//end ReportFailure
+
+   private static void add(long[] into, long[] figures) {
+      for (int f = 0; f < FIGURES; ++f)
+         into[f] += figures[f];
+   }//end add
+
+   private static void row(ResultRenderer.Table table, String route, String flight, long[] t) throws IOException {
+      long seats = t[SOLD] + t[UNSOLD];
+      table.cell(route).cell(flight).cell(Long.toString(t[INSTANCES]))
+           .cell(percent(t[DEPARTED], t[INSTANCES])).cell(percent(t[ARRIVED], t[INSTANCES]))
+           .cell(percent(t[SOLD], seats)).cell(Long.toString(t[UNSOLD]));
+      table.endRow();
+   }//end row
+
+   private static String percent(long part, long whole) {
+      return whole == 0 ? "" : String.format("%.1f", 100.0 * part / whole);
+   }//end percent
+
+   // a task failure as the caller would have seen it had it run inline
+   private static void rethrow(Throwable error) throws SQLException, IOException {
+      Throwable t = error;
+      while (t instanceof RuntimeException && t.getCause() != null && !(t instanceof IllegalArgumentException))
+         t = t.getCause();
+      if (t instanceof SQLException)
+         throw (SQLException) t;
+      if (t instanceof IOException)
+         throw (IOException) t;
+      if (t instanceof RuntimeException)
+         throw (RuntimeException) t;
+      if (t instanceof Error)
+         throw (Error) t;
+      throw new IllegalStateException(t);
+   }//end rethrow
+
+}//end FleetReport
@@ -0,0 +1,608 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only columnar copy of FlightInstance in a file, memory mapped, for
+ * analytics that scan many instances: ShowFlightStats and FlightsOfTheDay
+ * over the snapshot, and the fleet report.
+ *
+ * The file is a header followed by segments of at most
+ * airline.snapshot.segmentRows instances each.  Within a segment the rows
+ * are sorted by flight, then date, and stored column by column:
+ *
+ *    FlightNumber   dictionary code, implied by the row ranges of codeStart
+ *    FlightDate     int epoch day
+ *    FlightInstanceID, SeatsTotal, SeatsSold   int
+ *    DepartedOnTime, ArrivedOnTime             one bit each (NULL is false)
+ *
+ * so the instances of a flight over a date range are one binary search and
+ * a sequential scan of primitive columns, with no row objects or strings.
+ * FlightNumbers are numbered in order of first appearance; a segment
+ * carries the dictionary entries it adds.
+ *
+ * export writes a whole new file aside and moves it in place.  Appending
+ * adds segments for the instances dated after the last day of the file,
+ * then rewrites the header, so a reader of the old header still sees a
+ * consistent file.  Neither sees later changes to instances already
+ * exported (e.g. seats sold since); export again to catch up.
+ *
+ * Usage (also the snapshot operation):
+ *    java FlightInstanceSnapshot <dbname> <port> <user> <file> [--append]
+ *
+ */
+public class FlightInstanceSnapshot {
+
+   // default instances per segment
+   public static final int DEFAULT_SEGMENT_ROWS = 1 << 20;
+
+   // keeps a segment, mapped as one buffer, under 2 GB
+   private static final int MAX_SEGMENT_ROWS = 1 << 26;
+
+   private static final int MAGIC = 0x414D4649;          // "AMFI"
+   private static final int SEGMENT_MAGIC = 0x5345474D;  // "SEGM"
+   private static final int VERSION = 1;
+   // magic, version, segments, dictionary size, rows, committed length
+   private static final int HEADER_BYTES = 32;
+   // magic, rows, codes, new entries, first and last day, length
+   private static final int SEGMENT_HEADER_BYTES = 32;
+
+   private static final String INSTANCE_COLUMNS =
+      "SELECT FlightInstanceID, FlightNumber, FlightDate, DepartedOnTime, ArrivedOnTime, SeatsTotal, SeatsSold " +
+      "FROM FlightInstance WHERE FlightNumber IS NOT NULL AND FlightDate IS NOT NULL ";
+   private static final String EXPORT_ALL = INSTANCE_COLUMNS + "ORDER BY FlightDate, FlightInstanceID";
+   private static final String EXPORT_AFTER =
+      INSTANCE_COLUMNS + "AND FlightDate > ? ORDER BY FlightDate, FlightInstanceID";
+
+   /**
+    * The rows of one segment, sorted by flight code then day.
+    */
+   public static class Segment {
+      public final int rows;
+      // flight codes 0 .. codes - 1 may have rows here
+      public final int codes;
+      public final int firstDay;
+      public final int lastDay;
+      private final IntBuffer _codeStart;
+      private final IntBuffer _day;
+      private final IntBuffer _instanceID;
+      private final IntBuffer _seatsTotal;
+      private final IntBuffer _seatsSold;
+      private final LongBuffer _departed;
+      private final LongBuffer _arrived;
+
+      Segment(ByteBuffer buf, int rows, int codes, int firstDay, int lastDay, int columnsAt) {
+         this.rows = rows;
+         this.codes = codes;
+         this.firstDay = firstDay;
+         this.lastDay = lastDay;
+         int words = (rows + 63) >>> 6;
+         int at = columnsAt;
+         this._codeStart = slice(buf, at, (codes + 1) * 4).asIntBuffer();
+         at += (codes + 1) * 4;
+         this._day = slice(buf, at, rows * 4).asIntBuffer();
+         at += rows * 4;
+         this._instanceID = slice(buf, at, rows * 4).asIntBuffer();
+         at += rows * 4;
+         this._seatsTotal = slice(buf, at, rows * 4).asIntBuffer();
+         at += rows * 4;
+         this._seatsSold = slice(buf, at, rows * 4).asIntBuffer();
+         at += rows * 4;
+         at = align8(at);
+         this._departed = slice(buf, at, words * 8).asLongBuffer();
+         at += words * 8;
+         this._arrived = slice(buf, at, words * 8).asLongBuffer();
+      }//end Segment
+
+      /**
+       * @return the first row of the flight; its rows end at start(code + 1)
+       */
+      public int start(int code) {
+         return code < this.codes ? this._codeStart.get(code) : this.rows;
+      }//end start
+
+      public int day(int row) {
+         return this._day.get(row);
+      }//end day
+
+      public int instanceID(int row) {
+         return this._instanceID.get(row);
+      }//end instanceID
+
+      public int seatsTotal(int row) {
+         return this._seatsTotal.get(row);
+      }//end seatsTotal
+
+      public int seatsSold(int row) {
+         return this._seatsSold.get(row);
+      }//end seatsSold
+
+      public boolean departedOnTime(int row) {
+         return ((this._departed.get(row >>> 6) >>> (row & 63)) & 1) != 0;
+      }//end departedOnTime
+
+      public boolean arrivedOnTime(int row) {
+         return ((this._arrived.get(row >>> 6) >>> (row & 63)) & 1) != 0;
+      }//end arrivedOnTime
+
+      /**
+       * @return the first row of the flight dated on or after the day
+       */
+      public int seek(int code, int day) {
+         int lo = start(code);
+         int hi = start(code + 1);
+         while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (this._day.get(mid) < day)
+               lo = mid + 1;
+            else
+               hi = mid;
+         }//end while
+         return lo;
+      }//end seek
+
+      /**
+       * Adds the figures of the flight's rows between two days, both
+       * included, to totals: instances, departed on time, arrived on time,
+       * seats sold and seats unsold.
+       */
+      public void aggregate(int code, int fromDay, int toDay, long[] totals) {
+         if (code >= this.codes || toDay < this.firstDay || fromDay > this.lastDay)
+            return;
+         int end = start(code + 1);
+         for (int row = seek(code, fromDay); row < end && this._day.get(row) <= toDay; ++row) {
+            int sold = this._seatsSold.get(row);
+            totals[0] += 1;
+            totals[1] += (this._departed.get(row >>> 6) >>> (row & 63)) & 1;
+            totals[2] += (this._arrived.get(row >>> 6) >>> (row & 63)) & 1;
+            totals[3] += sold;
+            totals[4] += this._seatsTotal.get(row) - sold;
+         }//end for
+      }//end aggregate
+   }//end Segment
+
+   private final File _file;
+   private final List<Segment> _segments;
+   private final String[] _flightNumbers;
+   private final Map<String, Integer> _codes;
+   private final long _rows;
+   private final int _lastDay;
+
+   private FlightInstanceSnapshot(File file, List<Segment> segments, List<String> flightNumbers, long rows) {
+      this._file = file;
+      this._segments = Collections.unmodifiableList(segments);
+      this._flightNumbers = flightNumbers.toArray(new String[0]);
+      this._codes = new HashMap<String, Integer>();
+      for (int i = 0; i < this._flightNumbers.length; ++i)
+         this._codes.put(this._flightNumbers[i], i);
+      this._rows = rows;
+      int last = Integer.MIN_VALUE;
+      for (Segment s : segments)
+         last = Math.max(last, s.lastDay);
+      this._lastDay = last;
+   }//end FlightInstanceSnapshot
+
+   /**
+    * Maps a snapshot file.  The segments are mapped one by one, so the file
+    * may exceed 2 GB; the mappings live as long as this object is reachable.
+    *
+    * @param file a file written by export
+    * @return the snapshot as of its header
+    * @throws java.io.IOException when the file cannot be read or is not a snapshot
+    */
+   public static FlightInstanceSnapshot open(File file) throws IOException {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+           FileChannel ch = raf.getChannel()) {
+         ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+         if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+            throw new IOException(file + " is not a flight instance snapshot");
+         int count = header.getInt(8);
+         long rows = header.getLong(16);
+         long length = header.getLong(24);
+
+         List<Segment> segments = new ArrayList<Segment>(count);
+         List<String> flightNumbers = new ArrayList<String>();
+         long at = HEADER_BYTES;
+         for (int i = 0; i < count; ++i) {
+            ByteBuffer head = ch.map(FileChannel.MapMode.READ_ONLY, at, SEGMENT_HEADER_BYTES);
+            long size = head.getLong(24);
+            if (head.getInt(0) != SEGMENT_MAGIC || at + size > length)
+               throw new IOException(file + ": damaged segment " + i);
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, at, size);
+            int entries = buf.getInt(12);
+            int pos = SEGMENT_HEADER_BYTES;
+            for (int e = 0; e < entries; ++e) {
+               int len = buf.getShort(pos) & 0xFFFF;
+               byte[] bytes = new byte[len];
+               ByteBuffer src = buf.duplicate();
+               src.position(pos + 2);
+               src.get(bytes);
+               flightNumbers.add(new String(bytes, StandardCharsets.UTF_8));
+               pos += 2 + len;
+            }//end for
+            segments.add(new Segment(buf, buf.getInt(4), buf.getInt(8), buf.getInt(16), buf.getInt(20), align8(pos)));
+            at += size;
+         }//end for
+         return new FlightInstanceSnapshot(file, segments, flightNumbers, rows);
+      }//end try
+   }//end open
+
+   /**
+    * @return the file mapped
+    */
+   public File getFile() {
+      return this._file;
+   }//end getFile
+
+   /**
+    * @return the number of instances
+    */
+   public long getRowCount() {
+      return this._rows;
+   }//end getRowCount
+
+   /**
+    * @return the segments, in file order
+    */
+   public List<Segment> getSegments() {
+      return this._segments;
+   }//end getSegments
+
+   /**
+    * @return the number of flight numbers; codes run from 0 to this - 1
+    */
+   public int getFlightCount() {
+      return this._flightNumbers.length;
+   }//end getFlightCount
+
+   /**
+    * @return the flight number of a code
+    */
+   public String getFlightNumber(int code) {
+      return this._flightNumbers[code];
+   }//end getFlightNumber
+
+   /**
+    * @return the code of a flight number, or -1 if it has no instance
+    */
+   public int getCode(String flightNumber) {
+      Integer code = this._codes.get(flightNumber);
+      return code == null ? -1 : code.intValue();
+   }//end getCode
+
+   /**
+    * @return the last day exported, or null if the snapshot is empty
+    */
+   public LocalDate getLastDate() {
+      return this._segments.isEmpty() ? null : LocalDate.ofEpochDay(this._lastDay);
+   }//end getLastDate
+
+   /**
+    * Totals of a flight between two dates, both included, as
+    * FlightStatsRollup.query gives them from the live table.
+    */
+   public FlightStatsRollup.Stats stats(String flightNumber, LocalDate from, LocalDate to) {
+      long[] totals = new long[5];
+      int code = getCode(flightNumber);
+      if (code >= 0 && !to.isBefore(from)) {
+         int fromDay = (int) from.toEpochDay();
+         int toDay = (int) to.toEpochDay();
+         for (Segment s : this._segments)
+            s.aggregate(code, fromDay, toDay, totals);
+      }//end if
+      return new FlightStatsRollup.Stats(totals);
+   }//end stats
+
+   /**
+    * @return the flight number of every instance of the day, one per
+    *         instance, in flight code order
+    */
+   public List<String> flightsOfTheDay(LocalDate date) {
+      int day = (int) date.toEpochDay();
+      List<String> flights = new ArrayList<String>();
+      for (Segment s : this._segments) {
+         if (day < s.firstDay || day > s.lastDay)
+            continue;
+         for (int code = 0; code < s.codes; ++code) {
+            int end = s.start(code + 1);
+            for (int row = s.seek(code, day); row < end && s.day(row) == day; ++row)
+               flights.add(this._flightNumbers[code]);
+         }//end for
+      }//end for
+      return flights;
+   }//end flightsOfTheDay
+
+   /**
+    * Writes every instance to a new snapshot file, replacing the file once
+    * complete, or appends the instances dated after its last day.
+    *
+    * @param esql the database handle
+    * @param file the snapshot file
+    * @param append true to append to an existing file; a missing file is exported whole
+    * @return the instances written
+    * @throws java.sql.SQLException when the table cannot be read
+    * @throws java.io.IOException when the file cannot be written
+    */
+   public static long export(AirlineManagement esql, File file, boolean append) throws SQLException, IOException {
+      int segmentRows = Math.max(1, Math.min(MAX_SEGMENT_ROWS,
+         Integer.getInteger("airline.snapshot.segmentRows", DEFAULT_SEGMENT_ROWS)));
+      if (append && file.exists())
+         return append(esql, open(file), segmentRows);
+
+      File dir = file.getAbsoluteFile().getParentFile();
+      File tmp = File.createTempFile("snapshot", ".tmp", dir);
+      try {
+         long rows = 0;
+         int segments = 0;
+         long length = HEADER_BYTES;
+         Writer writer = new Writer(new ArrayList<String>(), segmentRows);
+         try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+              ResultCursor rs = esql.openCursor(EXPORT_ALL)) {
+            out.write(new byte[HEADER_BYTES]);
+            while (rs.next()) {
+               writer.add(rs);
+               if (writer.size == segmentRows) {
+                  length += writer.write(out);
+                  rows += segmentRows;
+                  ++segments;
+               }//end if
+            }//end while
+            if (writer.size > 0) {
+               rows += writer.size;
+               length += writer.write(out);
+               ++segments;
+            }//end if
+         }//end try
+         try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            writeHeader(raf, segments, writer.dictionary.size(), rows, length);
+            raf.getFD().sync();
+         }//end try
+         Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+         return rows;
+      } finally {
+         tmp.delete();
+      }//end try
+   }//end export
+
+   // adds segments after the committed end, then commits them in the header
+   private static long append(AirlineManagement esql, FlightInstanceSnapshot old, int segmentRows)
+         throws SQLException, IOException {
+      long length;
+      try (RandomAccessFile raf = new RandomAccessFile(old._file, "rw")) {
+         raf.seek(24);
+         length = raf.readLong();
+         // drops what a failed append left past the committed end
+         raf.setLength(length);
+      }//end try
+
+      Writer writer = new Writer(new ArrayList<String>(Arrays.asList(old._flightNumbers)), segmentRows);
+      long rows = 0;
+      int segments = old._segments.size();
+      try (FileOutputStream file = new FileOutputStream(old._file, true);
+           DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+           ResultCursor rs = old._segments.isEmpty()
+              ? esql.openCursor(EXPORT_ALL)
+              : esql.openCursor(EXPORT_AFTER, Date.valueOf(old.getLastDate()))) {
+         while (rs.next()) {
+            writer.add(rs);
+            if (writer.size == segmentRows) {
+               length += writer.write(out);
+               rows += segmentRows;
+               ++segments;
+            }//end if
+         }//end while
+         if (writer.size > 0) {
+            rows += writer.size;
+            length += writer.write(out);
+            ++segments;
+         }//end if
+         out.flush();
+         // the segments are on disk before the header points at them
+         file.getFD().sync();
+      }//end try
+      if (rows == 0)
+         return 0;
+      try (RandomAccessFile raf = new RandomAccessFile(old._file, "rw")) {
+         writeHeader(raf, segments, writer.dictionary.size(), old._rows + rows, length);
+         raf.getFD().sync();
+      }//end try
+      return rows;
+   }//end append
+
+   private static void writeHeader(RandomAccessFile raf, int segments, int flights, long rows, long length)
+         throws IOException {
+      raf.seek(0);
+      raf.writeInt(MAGIC);
+      raf.writeInt(VERSION);
+      raf.writeInt(segments);
+      raf.writeInt(flights);
+      raf.writeLong(rows);
+      raf.writeLong(length);
+   }//end writeHeader
+
+   // the rows of the segment being built, in arrival order
+   private static class Writer {
+      final List<String> dictionary;
+      final Map<String, Integer> codes = new HashMap<String, Integer>();
+      final int[] code;
+      final int[] day;
+      final int[] instanceID;
+      final int[] seatsTotal;
+      final int[] seatsSold;
+      final boolean[] departed;
+      final boolean[] arrived;
+      int size = 0;
+      // dictionary entries not yet written
+      int written;
+
+      Writer(List<String> dictionary, int capacity) {
+         this.dictionary = dictionary;
+         for (int i = 0; i < dictionary.size(); ++i)
+            this.codes.put(dictionary.get(i), i);
+         this.written = dictionary.size();
+         this.code = new int[capacity];
+         this.day = new int[capacity];
+         this.instanceID = new int[capacity];
+         this.seatsTotal = new int[capacity];
+         this.seatsSold = new int[capacity];
+         this.departed = new boolean[capacity];
+         this.arrived = new boolean[capacity];
+      }//end Writer
+
+      // columns as selected by INSTANCE_COLUMNS
+      void add(ResultCursor rs) throws SQLException {
+         String flight = rs.getString(2);
+         Integer c = this.codes.get(flight);
+         if (c == null) {
+            c = this.dictionary.size();
+            this.dictionary.add(flight);
+            this.codes.put(flight, c);
+         }//end if
+         int i = this.size++;
+         this.instanceID[i] = rs.getInt(1);
+         this.code[i] = c;
+         this.day[i] = (int) rs.getLocalDate(3).toEpochDay();
+         this.departed[i] = rs.getBoolean(4);
+         this.arrived[i] = rs.getBoolean(5);
+         this.seatsTotal[i] = rs.getInt(6);
+         this.seatsSold[i] = rs.getInt(7);
+      }//end add
+
+      // writes the rows as a segment sorted by code then day; returns its length
+      long write(DataOutputStream out) throws IOException {
+         int n = this.size;
+         int codes = this.dictionary.size();
+         // counting sort by code; rows arrive in day order, which it keeps
+         int[] codeStart = new int[codes + 1];
+         for (int i = 0; i < n; ++i)
+            ++codeStart[this.code[i] + 1];
+         for (int c = 0; c < codes; ++c)
+            codeStart[c + 1] += codeStart[c];
+         int[] order = new int[n];
+         int[] next = Arrays.copyOf(codeStart, codes);
+         for (int i = 0; i < n; ++i)
+            order[next[this.code[i]]++] = i;
+
+         int firstDay = Integer.MAX_VALUE;
+         int lastDay = Integer.MIN_VALUE;
+         for (int i = 0; i < n; ++i) {
+            firstDay = Math.min(firstDay, this.day[i]);
+            lastDay = Math.max(lastDay, this.day[i]);
+         }//end for
+
+         List<byte[]> entries = new ArrayList<byte[]>();
+         int dictBytes = 0;
+         for (int c = this.written; c < codes; ++c) {
+            byte[] bytes = this.dictionary.get(c).getBytes(StandardCharsets.UTF_8);
+            entries.add(bytes);
+            dictBytes += 2 + bytes.length;
+         }//end for
+         int columnsAt = align8(SEGMENT_HEADER_BYTES + dictBytes);
+         int words = (n + 63) >>> 6;
+         long length = align8(columnsAt + (codes + 1) * 4L + n * 16L) + words * 16L;
+
+         out.writeInt(SEGMENT_MAGIC);
+         out.writeInt(n);
+         out.writeInt(codes);
+         out.writeInt(entries.size());
+         out.writeInt(firstDay);
+         out.writeInt(lastDay);
+         out.writeLong(length);
+         for (byte[] bytes : entries) {
+            out.writeShort(bytes.length);
+            out.write(bytes);
+         }//end for
+         pad(out, columnsAt - SEGMENT_HEADER_BYTES - dictBytes);
+         for (int c = 0; c <= codes; ++c)
+            out.writeInt(codeStart[c]);
+         for (int i : order)
+            out.writeInt(this.day[i]);
+         for (int i : order)
+            out.writeInt(this.instanceID[i]);
+         for (int i : order)
+            out.writeInt(this.seatsTotal[i]);
+         for (int i : order)
+            out.writeInt(this.seatsSold[i]);
+         long at = columnsAt + (codes + 1) * 4L + n * 16L;
+         pad(out, (int) (align8(at) - at));
+         writeBits(out, order, this.departed);
+         writeBits(out, order, this.arrived);
+
+         this.written = codes;
+         this.size = 0;
+         return length;
+      }//end write
+
+      private static void writeBits(DataOutputStream out, int[] order, boolean[] values) throws IOException {
+         for (int w = 0; w < order.length; w += 64) {
+            long word = 0;
+            for (int b = 0; b < 64 && w + b < order.length; ++b)
+               if (values[order[w + b]])
+                  word |= 1L << b;
+            out.writeLong(word);
+         }//end for
+      }//end writeBits
+
+      private static void pad(OutputStream out, int bytes) throws IOException {
+         for (int i = 0; i < bytes; ++i)
+            out.write(0);
+      }//end pad
+   }//end Writer
+
+   private static ByteBuffer slice(ByteBuffer buf, int at, int length) {
+      ByteBuffer dup = buf.duplicate();
+      dup.position(at);
+      dup.limit(at + length);
+      return dup.slice();
+   }//end slice
+
+   private static int align8(int at) {
+      return (at + 7) & ~7;
+   }//end align8
+
+   private static long align8(long at) {
+      return (at + 7) & ~7L;
+   }//end align8
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println(
+            "Usage: java [-classpath <classpath>] " + FlightInstanceSnapshot.class.getName() +
+            " <dbname> <port> <user> <file> [--append]");
+         return;
+      }//end if
+      boolean append = args.length > 4 && args[4].equals("--append");
+      Class.forName("org.postgresql.Driver");
+      AirlineManagement esql = new AirlineManagement(args[0], args[1], args[2], "");
+      try {
+         long start = System.nanoTime();
+         long rows = export(esql, new File(args[3]), append);
+         System.out.printf("%d instances %s in %.1f s%n", rows, append ? "appended" : "exported",
+                           (System.nanoTime() - start) / 1e9);
+      } finally {
+         esql.cleanup();
+      }//end try
+   }//end main
+
+}//end FlightInstanceSnapshot
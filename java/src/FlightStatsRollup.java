@@ -0,0 +1,353 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Per-flight, per-day prefix sums of the FlightInstance figures shown by
+ * ShowFlightStats: instances, departed on time, arrived on time, seats sold
+ * and seats unsold.  Each flight keeps one Fenwick tree per figure over a
+ * dense range of days, so the total over any date range is two prefix
+ * lookups and a changed instance is a logarithmic update instead of a
+ * rescan of the table.
+ *
+ * The store is rebuilt from FlightInstance on first use.  Inserts and
+ * updates, seat sales included, are polled at most every refresh interval
+ * by ChangeXid, the same way as RouteIndex, or pushed at once with
+ * refreshInstance.  SeatInventory and WaitlistPromoter call seatsChanged
+ * after a sale so the next query polls at once; the poll replaces what an
+ * instance contributed by the row as read, so no sale is counted twice.
+ *
+ */
+public class FlightStatsRollup {
+
+   // how often queries look for FlightInstance rows changed since the last build
+   public static final long DEFAULT_REFRESH_INTERVAL_MS = 5000;
+
+   // figures kept per day
+   private static final int INSTANCES = 0;
+   private static final int DEPARTED = 1;
+   private static final int ARRIVED = 2;
+   private static final int SOLD = 3;
+   private static final int UNSOLD = 4;
+   private static final int FIGURES = 5;
+
+   private static final String INSTANCE_COLUMNS =
+      "SELECT FlightInstanceID, FlightNumber, FlightDate, DepartedOnTime, ArrivedOnTime, SeatsSold, SeatsTotal " +
+      "FROM FlightInstance ";
+   private static final String LOAD_INSTANCES = INSTANCE_COLUMNS;
+   private static final String LOAD_CHANGED_INSTANCES = INSTANCE_COLUMNS + "WHERE ChangeXid >= ?";
+   private static final String LOAD_INSTANCE = INSTANCE_COLUMNS + "WHERE FlightInstanceID = ?";
+
+   /**
+    * Totals of one flight over a date range.
+    */
+   public static class Stats {
+      public final long instances;
+      public final long departedOnTime;
+      public final long arrivedOnTime;
+      public final long seatsSold;
+      public final long seatsUnsold;
+
+      Stats(long[] totals) {
+         this.instances = totals[INSTANCES];
+         this.departedOnTime = totals[DEPARTED];
+         this.arrivedOnTime = totals[ARRIVED];
+         this.seatsSold = totals[SOLD];
+         this.seatsUnsold = totals[UNSOLD];
+      }//end Stats
+   }//end Stats
+
+   // the figures one instance contributes to its day
+   private static class InstanceFigures {
+      final String flightNumber;
+      final long epochDay;
+      final long[] values;
+
+      InstanceFigures(String flightNumber, long epochDay, long[] values) {
+         this.flightNumber = flightNumber;
+         this.epochDay = epochDay;
+         this.values = values;
+      }//end InstanceFigures
+   }//end InstanceFigures
+
+   /**
+    * Fenwick trees of one flight over the days [firstDay, firstDay + capacity).
+    * The per-day values are kept too so the trees can be rebuilt when the
+    * range has to grow.
+    */
+   private static class FlightSeries {
+      long firstDay;
+      int capacity;
+      long[][] daily;
+      long[][] tree;
+
+      FlightSeries(long day) {
+         this.firstDay = day;
+         this.capacity = 0;
+         this.daily = new long[FIGURES][0];
+         this.tree = new long[FIGURES][1];
+      }//end FlightSeries
+
+      void add(long day, long[] delta) {
+         ensureRange(day);
+         int pos = (int) (day - this.firstDay);
+         for (int f = 0; f < FIGURES; ++f) {
+            if (delta[f] == 0)
+               continue;
+            this.daily[f][pos] += delta[f];
+            for (int i = pos + 1; i <= this.capacity; i += i & -i)
+               this.tree[f][i] += delta[f];
+         }//end for
+      }//end add
+
+      // sum of the days up to and including day
+      void prefix(long day, long[] into, int sign) {
+         if (this.capacity == 0 || day < this.firstDay)
+            return;
+         int pos = (int) Math.min(day - this.firstDay + 1, this.capacity);
+         for (int f = 0; f < FIGURES; ++f) {
+            long sum = 0;
+            for (int i = pos; i > 0; i -= i & -i)
+               sum += this.tree[f][i];
+            into[f] += sign * sum;
+         }//end for
+      }//end prefix
+
+      // grows the covered range (doubling) and rebuilds the trees in O(n)
+      private void ensureRange(long day) {
+         if (this.capacity > 0 && day >= this.firstDay && day < this.firstDay + this.capacity)
+            return;
+         long lo = this.capacity == 0 ? day : Math.min(day, this.firstDay);
+         long hi = this.capacity == 0 ? day : Math.max(day, this.firstDay + this.capacity - 1);
+         int size = Math.max(16, this.capacity);
+         while (size < hi - lo + 1)
+            size *= 2;
+         // leave room on the side that grew
+         if (this.capacity > 0 && day < this.firstDay)
+            lo = hi - size + 1;
+
+         long[][] daily = new long[FIGURES][size];
+         if (this.capacity > 0) {
+            int shift = (int) (this.firstDay - lo);
+            for (int f = 0; f < FIGURES; ++f)
+               System.arraycopy(this.daily[f], 0, daily[f], shift, this.capacity);
+         }//end if
+         long[][] tree = new long[FIGURES][size + 1];
+         for (int f = 0; f < FIGURES; ++f) {
+            for (int i = 1; i <= size; ++i) {
+               tree[f][i] += daily[f][i - 1];
+               int parent = i + (i & -i);
+               if (parent <= size)
+                  tree[f][parent] += tree[f][i];
+            }//end for
+         }//end for
+         this.firstDay = lo;
+         this.capacity = size;
+         this.daily = daily;
+         this.tree = tree;
+      }//end ensureRange
+   }//end FlightSeries
+
+   private final AirlineManagement _esql;
+   private final long _refreshIntervalMs;
+   private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+
+   // guarded by _lock
+   private Map<String, FlightSeries> _flights = new HashMap<String, FlightSeries>();
+   private Map<Integer, InstanceFigures> _instances = new HashMap<Integer, InstanceFigures>();
+   // the oldest transaction running when the table was last read; the next
+   // poll reads the rows it and later transactions wrote
+   private long _pollFrom = 0;
+   private volatile boolean _loaded = false;
+   private volatile long _lastRefreshMillis = 0;
+
+   public FlightStatsRollup(AirlineManagement esql) {
+      this(esql, Long.getLong("airline.stats.refreshIntervalMs", DEFAULT_REFRESH_INTERVAL_MS));
+   }//end FlightStatsRollup
+
+   public FlightStatsRollup(AirlineManagement esql, long refreshIntervalMs) {
+      this._esql = esql;
+      this._refreshIntervalMs = refreshIntervalMs;
+   }//end FlightStatsRollup
+
+   /**
+    * Totals of a flight between two dates, both included.
+    *
+    * @param flightNumber the flight
+    * @param from the first date
+    * @param to the last date
+    * @return the totals, all zero if the flight has no instances in the range
+    * @throws java.sql.SQLException when the store had to be built or refreshed and failed
+    */
+   public Stats query(String flightNumber, LocalDate from, LocalDate to) throws SQLException {
+      ensureFresh();
+      long[] totals = new long[FIGURES];
+      this._lock.readLock().lock();
+      try {
+         FlightSeries series = this._flights.get(flightNumber);
+         if (series != null && !to.isBefore(from)) {
+            series.prefix(to.toEpochDay(), totals, 1);
+            series.prefix(from.toEpochDay() - 1, totals, -1);
+         }//end if
+      } finally {
+         this._lock.readLock().unlock();
+      }//end try
+      return new Stats(totals);
+   }//end query
+
+   /**
+    * Rebuilds the store from FlightInstance.
+    *
+    * @throws java.sql.SQLException when failed to read the table
+    */
+   public void rebuild() throws SQLException {
+      Map<String, FlightSeries> flights = new HashMap<String, FlightSeries>();
+      Map<Integer, InstanceFigures> instances = new HashMap<Integer, InstanceFigures>();
+      long pollFrom = RouteIndex.oldestRunningXid(this._esql);
+      try (ResultCursor rs = this._esql.openCursor(LOAD_INSTANCES)) {
+         while (rs.next()) {
+            InstanceFigures fig = readInstance(rs);
+            if (fig == null)
+               continue;
+            instances.put(Integer.valueOf(rs.getInt(1)), fig);
+            add(flights, fig, 1);
+         }//end while
+      }//end try
+      this._lock.writeLock().lock();
+      try {
+         this._flights = flights;
+         this._instances = instances;
+         this._pollFrom = pollFrom;
+         this._loaded = true;
+         this._lastRefreshMillis = System.currentTimeMillis();
+      } finally {
+         this._lock.writeLock().unlock();
+      }//end try
+   }//end rebuild
+
+   /**
+    * Re-reads one instance after its row was inserted, updated or deleted.
+    *
+    * @param flightInstanceID the instance that changed
+    * @throws java.sql.SQLException when failed to read the row
+    */
+   public void refreshInstance(int flightInstanceID) throws SQLException {
+      if (!this._loaded)
+         return;
+      InstanceFigures fresh = null;
+      try (ResultCursor rs = this._esql.openCursor(0, LOAD_INSTANCE, flightInstanceID)) {
+         if (rs.next())
+            fresh = readInstance(rs);
+      }//end try
+      this._lock.writeLock().lock();
+      try {
+         apply(flightInstanceID, fresh);
+      } finally {
+         this._lock.writeLock().unlock();
+      }//end try
+   }//end refreshInstance
+
+   /**
+    * Applies the FlightInstance rows inserted or updated since the last
+    * build or refresh, including those whose transaction was still open then.
+    *
+    * @throws java.sql.SQLException when failed to read the rows
+    */
+   public void refreshChangedInstances() throws SQLException {
+      long since;
+      this._lock.readLock().lock();
+      try {
+         since = this._pollFrom;
+      } finally {
+         this._lock.readLock().unlock();
+      }//end try
+
+      // taken before the rows are read, so it is no newer than their snapshot
+      long pollFrom = RouteIndex.oldestRunningXid(this._esql);
+      List<Object[]> changed = new ArrayList<Object[]>();
+      try (ResultCursor rs = this._esql.openCursor(LOAD_CHANGED_INSTANCES, since)) {
+         while (rs.next()) {
+            changed.add(new Object[]{Integer.valueOf(rs.getInt(1)), readInstance(rs)});
+         }//end while
+      }//end try
+
+      this._lock.writeLock().lock();
+      try {
+         for (Object[] c : changed)
+            apply(((Integer) c[0]).intValue(), (InstanceFigures) c[1]);
+         this._pollFrom = Math.max(this._pollFrom, pollFrom);
+         this._lastRefreshMillis = System.currentTimeMillis();
+      } finally {
+         this._lock.writeLock().unlock();
+      }//end try
+   }//end refreshChangedInstances
+
+   /**
+    * Tells the store seats were sold or freed by this process, so the next
+    * query polls for changed instances without waiting for the interval.
+    */
+   public void seatsChanged() {
+      this._lastRefreshMillis = 0;
+   }//end seatsChanged
+
+   // builds on first use, then polls for changed instances once per interval
+   private void ensureFresh() throws SQLException {
+      if (!this._loaded) {
+         synchronized (this) {
+            if (!this._loaded)
+               rebuild();
+         }//end synchronized
+         return;
+      }//end if
+      if (System.currentTimeMillis() - this._lastRefreshMillis >= this._refreshIntervalMs) {
+         synchronized (this) {
+            if (System.currentTimeMillis() - this._lastRefreshMillis >= this._refreshIntervalMs)
+               refreshChangedInstances();
+         }//end synchronized
+      }//end if
+   }//end ensureFresh
+
+   // replaces what an instance contributed; fresh is null if the row is gone; under the write lock
+   private void apply(int flightInstanceID, InstanceFigures fresh) {
+      Integer key = Integer.valueOf(flightInstanceID);
+      InstanceFigures old = this._instances.remove(key);
+      if (old != null)
+         add(this._flights, old, -1);
+      if (fresh != null) {
+         this._instances.put(key, fresh);
+         add(this._flights, fresh, 1);
+      }//end if
+   }//end apply
+
+   private static void add(Map<String, FlightSeries> flights, InstanceFigures fig, int sign) {
+      FlightSeries series = flights.get(fig.flightNumber);
+      if (series == null) {
+         series = new FlightSeries(fig.epochDay);
+         flights.put(fig.flightNumber, series);
+      }//end if
+      long[] delta = new long[FIGURES];
+      for (int f = 0; f < FIGURES; ++f)
+         delta[f] = sign * fig.values[f];
+      series.add(fig.epochDay, delta);
+   }//end add
+
+   // columns as selected by INSTANCE_COLUMNS; null if the row has no flight or date
+   private static InstanceFigures readInstance(ResultCursor rs) throws SQLException {
+      String flightNumber = rs.getString(2);
+      LocalDate date = rs.getLocalDate(3);
+      if (flightNumber == null || date == null)
+         return null;
+      long[] values = new long[FIGURES];
+      values[INSTANCES] = 1;
+      values[DEPARTED] = rs.getBoolean(4) ? 1 : 0;
+      values[ARRIVED] = rs.getBoolean(5) ? 1 : 0;
+      values[SOLD] = rs.getInt(6);
+      values[UNSOLD] = rs.getInt(7) - values[SOLD];
+      return new InstanceFigures(flightNumber, date.toEpochDay(), values);
+   }//end readInstance
+
+}//end FlightStatsRollup
@@ -0,0 +1,310 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP/JSON front-end over the Operations, built on the JDK's embedded
+ * HttpServer.  Every operation is an endpoint under the role whose menu
+ * offers it, with its parameters in the query string or a form encoded
+ * body:
+ *
+ *    GET  /customer/search?from=New+York&to=Miami&date=2025-05-05
+ *    POST /customer/reserve   customer=12&instance=88
+ *    GET  /management/stats?flight=F100&from=2025-05-01&to=2025-05-31
+ *
+ * Operations that write must be POSTed.  Rows come back as a JSON array
+ * of objects, other outcomes as {"message": ...}, failures as {"error": ...}
+ * with status 400 for bad parameters and 500 otherwise.  GET /operations
+ * lists the endpoints, GET /metrics the latencies of operations and queries
+ * in the Prometheus text format.
+ *
+ * Callers log in once with POST /login (username, password) and send the
+ * returned token as "Authorization: Bearer <token>"; POST /logout ends the
+ * session.  An operation is only open to its role, and one acting for the
+ * user (a reservation, a repair, a request) always acts for the logged in
+ * user whatever the parameters say.  airline.http.auth=false turns the
+ * checks off, e.g. for load tests.
+ *
+ * Each exchange runs on a thread of its own: a virtual thread when the JVM
+ * has them, otherwise one of a fixed pool of airline.http.threads
+ * platform threads.  All of them share the connection pool of the
+ * AirlineManagement instance, which bounds the work reaching the database.
+ *
+ */
+public class HttpService {
+
+   // platform threads serving requests when virtual threads are unavailable
+   public static final int DEFAULT_THREADS = 256;
+
+   // connections queued by the kernel before accept
+   private static final int BACKLOG = 4096;
+
+   // largest request body read
+   private static final int MAX_BODY = 64 * 1024;
+
+   private final AirlineManagement _esql;
+   private final boolean _auth = !"false".equalsIgnoreCase(System.getProperty("airline.http.auth"));
+   private final HttpServer _server;
+   private final ExecutorService _executor;
+   private final boolean _virtual;
+
+   /**
+    * @param esql the database handle shared by every request
+    * @param port the TCP port to listen on
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public HttpService(AirlineManagement esql, int port) throws IOException {
+      this._esql = esql;
+      ExecutorService virtual = virtualThreadExecutor();
+      this._virtual = virtual != null;
+      this._executor = virtual != null ? virtual
+         : Executors.newFixedThreadPool(Integer.getInteger("airline.http.threads", DEFAULT_THREADS));
+      this._server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+      this._server.setExecutor(this._executor);
+      this._server.createContext("/", this::handle);
+   }//end HttpService
+
+   /**
+    * Starts accepting requests in the background.
+    */
+   public void start() {
+      this._server.start();
+   }//end start
+
+   /**
+    * Stops accepting requests, lets those running finish for up to the
+    * given delay and stops the threads.
+    *
+    * @param delaySeconds how long running requests may take to finish
+    */
+   public void stop(int delaySeconds) {
+      this._server.stop(delaySeconds);
+      this._executor.shutdown();
+      try {
+         this._executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end stop
+
+   /**
+    * @return the port the server listens on
+    */
+   public int getPort() {
+      return this._server.getAddress().getPort();
+   }//end getPort
+
+   /**
+    * @return true if requests run on virtual threads
+    */
+   public boolean usesVirtualThreads() {
+      return this._virtual;
+   }//end usesVirtualThreads
+
+   private void handle(HttpExchange exchange) throws IOException {
+      try {
+         String path = exchange.getRequestURI().getPath();
+         String method = exchange.getRequestMethod();
+         if (path.equals("/operations")) {
+            listOperations(exchange);
+            return;
+         }//end if
+         if (path.equals("/metrics")) {
+            StringWriter body = new StringWriter();
+            this._esql.getMetrics().writePrometheus(body);
+            send(exchange, 200, body.toString(), "text/plain; version=0.0.4; charset=utf-8");
+            return;
+         }//end if
+         if (path.equals("/login") || path.equals("/logout")) {
+            if (!method.equals("POST")) {
+               exchange.getResponseHeaders().set("Allow", "POST");
+               sendError(exchange, 405, path + " does not accept " + method);
+            } else if (path.equals("/login")) {
+               login(exchange);
+            } else {
+               this._esql.getSessions().logout(bearerToken(exchange));
+               send(exchange, 200, "{\"message\": \"logged out\"}\n");
+            }//end if
+            return;
+         }//end if
+
+         // /{role}/{verb}
+         String[] parts = path.split("/");
+         Operations.Entry entry = parts.length == 3 ? Operations.get(parts[2]) : null;
+         if (entry == null || !entry.role.equalsIgnoreCase(parts[1])) {
+            sendError(exchange, 404, "no operation at " + path);
+            return;
+         }//end if
+         if (entry.writes ? !method.equals("POST") : !(method.equals("GET") || method.equals("POST"))) {
+            exchange.getResponseHeaders().set("Allow", entry.writes ? "POST" : "GET, POST");
+            sendError(exchange, 405, entry.verb + " does not accept " + method);
+            return;
+         }//end if
+
+         SessionManager.Session session = null;
+         if (this._auth) {
+            session = this._esql.getSessions().get(bearerToken(exchange));
+            if (session == null) {
+               exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+               sendError(exchange, 401, "log in first");
+               return;
+            }//end if
+            if (!session.hasRole(entry.role)) {
+               sendError(exchange, 403, entry.verb + " is only open to " + entry.role);
+               return;
+            }//end if
+         }//end if
+
+         Map<String, String> params = new LinkedHashMap<String, String>();
+         parseForm(exchange.getRequestURI().getRawQuery(), params);
+         if (method.equals("POST"))
+            parseForm(readBody(exchange.getRequestBody()), params);
+         if (session != null && entry.owner != null)
+            params.put(entry.owner, session.roleID);
+         run(exchange, entry, new Operations.Params(params));
+      } catch (IllegalArgumentException e) {
+         sendError(exchange, 400, e.getMessage());
+      } catch (RuntimeException e) {
+         sendError(exchange, 500, e.toString());
+      } finally {
+         exchange.close();
+      }//end try
+   }//end handle
+
+   private void run(HttpExchange exchange, Operations.Entry entry, Operations.Params params) throws IOException {
+      StringWriter body = new StringWriter();
+      ResultRenderer out = new ResultRenderer(body, ResultRenderer.Format.JSON);
+      try {
+         Operations.run(this._esql, entry, params, out);
+      } catch (IllegalArgumentException e) {
+         sendError(exchange, 400, e.getMessage());
+         return;
+      } catch (Exception e) {
+         sendError(exchange, 500, e.getMessage());
+         return;
+      }//end try
+      send(exchange, 200, body.toString());
+   }//end run
+
+   private void login(HttpExchange exchange) throws IOException {
+      Map<String, String> params = new LinkedHashMap<String, String>();
+      parseForm(readBody(exchange.getRequestBody()), params);
+      Operations.Params p = new Operations.Params(params);
+      SessionManager.Session session;
+      try {
+         session = this._esql.getSessions().login(p.get("username"), p.get("password"));
+      } catch (SQLException e) {
+         sendError(exchange, 500, e.getMessage());
+         return;
+      }//end try
+      if (session == null) {
+         sendError(exchange, 401, "invalid username or password");
+         return;
+      }//end if
+      StringWriter body = new StringWriter();
+      ResultRenderer out = new ResultRenderer(body, ResultRenderer.Format.JSON);
+      ResultRenderer.Table table = out.begin("token", "role", "roleID");
+      table.cell(session.token).cell(session.role).cell(session.roleID);
+      table.endRow();
+      table.end();
+      send(exchange, 200, body.toString());
+   }//end login
+
+   // the token of an "Authorization: Bearer <token>" header, or null
+   private static String bearerToken(HttpExchange exchange) {
+      String header = exchange.getRequestHeaders().getFirst("Authorization");
+      if (header == null || !header.regionMatches(true, 0, "Bearer ", 0, 7))
+         return null;
+      return header.substring(7).trim();
+   }//end bearerToken
+
+   private void listOperations(HttpExchange exchange) throws IOException {
+      StringWriter body = new StringWriter();
+      ResultRenderer out = new ResultRenderer(body, ResultRenderer.Format.JSON);
+      ResultRenderer.Table table = out.begin("path", "method", "parameters");
+      for (Operations.Entry e : Operations.all()) {
+         table.cell("/" + e.role.toLowerCase() + "/" + e.verb)
+              .cell(e.writes ? "POST" : "GET")
+              .cell(e.usage);
+         table.endRow();
+      }//end for
+      table.end();
+      send(exchange, 200, body.toString());
+   }//end listOperations
+
+   private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+      StringWriter body = new StringWriter();
+      body.write("{\"error\": ");
+      ResultRenderer.writeJson(body, message == null ? "" : message);
+      body.write("}\n");
+      send(exchange, status, body.toString());
+   }//end sendError
+
+   private static void send(HttpExchange exchange, int status, String body) throws IOException {
+      send(exchange, status, body, "application/json; charset=utf-8");
+   }//end send
+
+   private static void send(HttpExchange exchange, int status, String body, String contentType) throws IOException {
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", contentType);
+      exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+      if (bytes.length > 0) {
+         try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+         }//end try
+      }//end if
+   }//end send
+
+   private static String readBody(InputStream in) throws IOException {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      byte[] chunk = new byte[4096];
+      int n;
+      while ((n = in.read(chunk)) > 0) {
+         if (buf.size() + n > MAX_BODY)
+            throw new IllegalArgumentException("request body larger than " + MAX_BODY + " bytes");
+         buf.write(chunk, 0, n);
+      }//end while
+      return new String(buf.toByteArray(), StandardCharsets.UTF_8);
+   }//end readBody
+
+   // application/x-www-form-urlencoded pairs into params; later values win
+   private static void parseForm(String form, Map<String, String> params) throws UnsupportedEncodingException {
+      if (form == null || form.isEmpty())
+         return;
+      for (String pair : form.split("&")) {
+         if (pair.isEmpty())
+            continue;
+         int eq = pair.indexOf('=');
+         String key = eq < 0 ? pair : pair.substring(0, eq);
+         String value = eq < 0 ? "" : pair.substring(eq + 1);
+         params.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+      }//end for
+   }//end parseForm
+
+   // Executors.newVirtualThreadPerTaskExecutor() where the JVM has it (21+)
+   private static ExecutorService virtualThreadExecutor() {
+      try {
+         Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService) m.invoke(null);
+      } catch (Exception e) {
+         return null;
+      }//end try
+   }//end virtualThreadExecutor
+
+}//end HttpService
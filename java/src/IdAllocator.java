@@ -0,0 +1,137 @@
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands out primary keys in blocks reserved from database sequences (hi/lo).
+ * One nextval call reserves BLOCK_SIZE consecutive ids which are then given
+ * out from memory, so writers never scan a table to find the next key and
+ * concurrent writers, in this process or another, never receive the same id.
+ * Ids left in a block when the program exits are simply skipped.
+ *
+ */
+public class IdAllocator {
+
+   // must match the INCREMENT BY of the sequences in create_tables.sql
+   public static final int BLOCK_SIZE = 50;
+
+   // sequences defined in create_tables.sql
+   public static final String RESERVATION_SEQ = "reservation_id_seq";
+   public static final String CUSTOMER_SEQ = "customer_id_seq";
+   public static final String TECHNICIAN_SEQ = "technician_id_seq";
+   public static final String PILOT_SEQ = "pilot_id_seq";
+   public static final String REPAIR_SEQ = "repair_id_seq";
+   public static final String REQUEST_SEQ = "request_id_seq";
+
+   // the range [next, limit) of ids still available for one sequence
+   private static class Block {
+      long next = 0;
+      long limit = 0;
+   }//end Block
+
+   private final AirlineManagement _esql;
+   private final ConcurrentHashMap<String, Block> _blocks = new ConcurrentHashMap<String, Block>();
+
+   public IdAllocator(AirlineManagement esql) {
+      this._esql = esql;
+   }//end IdAllocator
+
+   /**
+    * Returns the next id of the sequence, reserving a new block from the
+    * database only when the current one is used up.
+    *
+    * @param sequence name of the DB sequence
+    * @return an id no other caller has received
+    * @throws java.sql.SQLException when a new block could not be reserved
+    */
+   public long next(String sequence) throws SQLException {
+      Block block = this._blocks.get(sequence);
+      if (block == null) {
+         Block fresh = new Block();
+         block = this._blocks.putIfAbsent(sequence, fresh);
+         if (block == null)
+            block = fresh;
+      }//end if
+      synchronized (block) {
+         if (block.next >= block.limit) {
+            long hi = reserveBlock(sequence);
+            block.next = hi;
+            block.limit = hi + BLOCK_SIZE;
+         }//end if
+         return block.next++;
+      }//end synchronized
+   }//end next
+
+   /**
+    * Returns count ids of the sequence, for callers inserting many rows at once.
+    *
+    * @param sequence name of the DB sequence
+    * @param count the number of ids wanted
+    * @return the ids, in increasing order
+    * @throws java.sql.SQLException when a new block could not be reserved
+    */
+   public long[] next(String sequence, int count) throws SQLException {
+      long[] ids = new long[count];
+      for (int i = 0; i < count; ++i)
+         ids[i] = next(sequence);
+      return ids;
+   }//end next
+
+   /**
+    * @return the next reservation number, formatted like R0001
+    */
+   public String nextReservationID() throws SQLException {
+      return formatReservationID(next(RESERVATION_SEQ));
+   }//end nextReservationID
+
+   /**
+    * @return the next customer id
+    */
+   public int nextCustomerID() throws SQLException {
+      return (int) next(CUSTOMER_SEQ);
+   }//end nextCustomerID
+
+   /**
+    * @return the next technician id, formatted like T001
+    */
+   public String nextTechnicianID() throws SQLException {
+      return String.format("T%03d", next(TECHNICIAN_SEQ));
+   }//end nextTechnicianID
+
+   /**
+    * @return the next pilot id, formatted like P001
+    */
+   public String nextPilotID() throws SQLException {
+      return String.format("P%03d", next(PILOT_SEQ));
+   }//end nextPilotID
+
+   /**
+    * @return the next repair id
+    */
+   public int nextRepairID() throws SQLException {
+      return (int) next(REPAIR_SEQ);
+   }//end nextRepairID
+
+   /**
+    * @return the next maintenance request id
+    */
+   public int nextRequestID() throws SQLException {
+      return (int) next(REQUEST_SEQ);
+   }//end nextRequestID
+
+   /**
+    * @param id a number obtained from the reservation sequence
+    * @return the reservation number, zero padded to four digits like R0001
+    */
+   public static String formatReservationID(long id) {
+      return String.format("R%04d", id);
+   }//end formatReservationID
+
+   // nextval returns the first id of a block of BLOCK_SIZE ids
+   private long reserveBlock(String sequence) throws SQLException {
+      try (ResultCursor rs = this._esql.openCursor(0, "SELECT nextval('" + sequence + "')")) {
+         rs.next();
+         return rs.getLong(1);
+      }//end try
+   }//end reserveBlock
+
+}//end IdAllocator
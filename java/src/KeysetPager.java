@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pages through the rows of a query by keyset: the rows are ordered on key
+ * columns that are unique together, and a page is the rows strictly after
+ * (or before) the key of the last row shown, e.g.
+ *
+ *    ... WHERE TechnicianID = ? AND (RepairDate, RepairID) > (?, ?)
+ *        ORDER BY RepairDate, RepairID LIMIT ?
+ *
+ * With an index on the filter and key columns every page is one short range
+ * scan, so it costs the same on the first page and the thousandth, unlike
+ * OFFSET.  Pages going back are read in descending order and reversed.
+ *
+ * A pager is immutable and built once per listing; its four statements are
+ * fixed strings, so they stay in the statement cache.
+ *
+ */
+public class KeysetPager {
+
+   /**
+    * Which way a page goes from the key it starts at.
+    */
+   public enum Direction {
+      NEXT, PREVIOUS;
+
+      /**
+       * @param name next or previous, in any case; null for next
+       * @return the direction
+       * @throws java.lang.IllegalArgumentException for any other name
+       */
+      public static Direction parse(String name) {
+         if (name == null || name.equalsIgnoreCase("next"))
+            return NEXT;
+         if (name.equalsIgnoreCase("previous") || name.equalsIgnoreCase("prev"))
+            return PREVIOUS;
+         throw new IllegalArgumentException("direction must be next or previous: " + name);
+      }//end parse
+   }//end Direction
+
+   /**
+    * What a page showed and where the pages around it start.
+    */
+   public static class Page {
+      // keys of the first and last row shown, null when the page is empty
+      public final Object[] first;
+      public final Object[] last;
+      public final int rows;
+      // true if rows follow the last row, or precede the first one
+      public final boolean hasNext;
+      public final boolean hasPrevious;
+
+      Page(Object[] first, Object[] last, int rows, boolean hasNext, boolean hasPrevious) {
+         this.first = first;
+         this.last = last;
+         this.rows = rows;
+         this.hasNext = hasNext;
+         this.hasPrevious = hasPrevious;
+      }//end Page
+   }//end Page
+
+   private final String[] _columns;
+   private final Class<?>[] _keyTypes;
+   private final String _first;
+   private final String _firstBack;
+   private final String _after;
+   private final String _before;
+
+   /**
+    * @param columns the columns shown, as select list items
+    * @param from the FROM and WHERE clauses, with ? for the filter values
+    * @param keys the key columns, unique together; NULL keys are not supported
+    * @param keyTypes String, Integer or LocalDate for each key column
+    */
+   public KeysetPager(String[] columns, String from, String[] keys, Class<?>[] keyTypes) {
+      if (keys.length == 0 || keys.length != keyTypes.length)
+         throw new IllegalArgumentException("one type per key column");
+      this._columns = columns.clone();
+      this._keyTypes = keyTypes.clone();
+      String select = "SELECT " + String.join(", ", columns) + ", " + String.join(", ", keys) + " " + from;
+      String row = "(" + String.join(", ", keys) + ")";
+      String marks = "(" + String.join(", ", Collections.nCopies(keys.length, "?")) + ")";
+      String asc = " ORDER BY " + String.join(", ", keys) + " LIMIT ?";
+      String desc = " ORDER BY " + String.join(" DESC, ", keys) + " DESC LIMIT ?";
+      this._first = select + asc;
+      this._firstBack = select + desc;
+      this._after = select + " AND " + row + " > " + marks + asc;
+      this._before = select + " AND " + row + " < " + marks + desc;
+   }//end KeysetPager
+
+   /**
+    * Renders one page.
+    *
+    * @param esql the database handle
+    * @param filter the values of the ? of the FROM and WHERE clauses
+    * @param from the key to start from, excluded; null for the first page
+    *        going NEXT or the last page going PREVIOUS
+    * @param direction which way to go from the key
+    * @param size rows per page
+    * @param out where the rows are rendered, always in ascending key order
+    * @return what the page showed
+    * @throws java.sql.SQLException when the query failed
+    * @throws java.io.IOException when failed to render
+    */
+   public Page page(AirlineManagement esql, Object[] filter, Object[] from, Direction direction, int size,
+                    ResultRenderer out) throws SQLException, IOException {
+      if (size < 1)
+         throw new IllegalArgumentException("page size must be positive: " + size);
+      if (from != null && from.length != this._keyTypes.length)
+         throw new IllegalArgumentException("a key has " + this._keyTypes.length + " values");
+      boolean back = direction == Direction.PREVIOUS;
+      String sql = from == null ? (back ? this._firstBack : this._first) : (back ? this._before : this._after);
+
+      Object[] params = new Object[filter.length + (from == null ? 0 : from.length) + 1];
+      System.arraycopy(filter, 0, params, 0, filter.length);
+      if (from != null)
+         System.arraycopy(from, 0, params, filter.length, from.length);
+      // one row more than the page tells whether another page follows
+      params[params.length - 1] = size + 1;
+
+      int n = this._columns.length;
+      List<String[]> rows = new ArrayList<String[]>(Math.min(size, 1024));
+      List<Object[]> keys = new ArrayList<Object[]>(Math.min(size, 1024));
+      String[] names = new String[n];
+      boolean more = false;
+      try (ResultCursor rs = esql.openCursor(0, sql, params)) {
+         for (int i = 0; i < n; ++i)
+            names[i] = rs.getColumnName(i + 1);
+         while (rs.next()) {
+            if (rs.getRowCount() > size) {
+               more = true;
+               break;
+            }//end if
+            String[] row = new String[n];
+            for (int i = 0; i < n; ++i)
+               row[i] = rs.getString(i + 1);
+            rows.add(row);
+            keys.add(readKey(rs, n));
+         }//end while
+      }//end try
+      if (back) {
+         Collections.reverse(rows);
+         Collections.reverse(keys);
+      }//end if
+
+      ResultRenderer.Table table = out.begin(names);
+      for (String[] row : rows) {
+         for (String cell : row)
+            table.cell(cell);
+         table.endRow();
+      }//end for
+      table.end();
+
+      // the rows the key was taken from lie on the other side of the page
+      boolean empty = keys.isEmpty();
+      return new Page(empty ? null : keys.get(0), empty ? null : keys.get(keys.size() - 1), rows.size(),
+                      back ? from != null && !empty : more,
+                      back ? more : from != null && !empty);
+   }//end page
+
+   /**
+    * @param key a key as returned in a Page
+    * @return the key as text, for the after or before parameter of an operation
+    */
+   public static String encode(Object[] key) {
+      if (key == null)
+         return null;
+      StringBuilder sb = new StringBuilder();
+      try {
+         for (int i = 0; i < key.length; ++i) {
+            if (i > 0)
+               sb.append(',');
+            sb.append(URLEncoder.encode(String.valueOf(key[i]), "UTF-8"));
+         }//end for
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }//end try
+      return sb.toString();
+   }//end encode
+
+   /**
+    * @param text a key made by encode, or null
+    * @return the key with the types of this pager, or null if text is null
+    * @throws java.lang.IllegalArgumentException if the text is not a key of this pager
+    */
+   public Object[] decode(String text) {
+      if (text == null)
+         return null;
+      String[] parts = text.split(",", -1);
+      if (parts.length != this._keyTypes.length)
+         throw new IllegalArgumentException("a key has " + this._keyTypes.length + " values: " + text);
+      Object[] key = new Object[parts.length];
+      try {
+         for (int i = 0; i < parts.length; ++i) {
+            String value = URLDecoder.decode(parts[i], "UTF-8");
+            Class<?> type = this._keyTypes[i];
+            if (type == Integer.class)
+               key[i] = Integer.valueOf(value.trim());
+            else if (type == LocalDate.class)
+               key[i] = Date.valueOf(LocalDate.parse(value.trim()));
+            else
+               key[i] = value;
+         }//end for
+      } catch (RuntimeException | UnsupportedEncodingException e) {
+         throw new IllegalArgumentException("not a key of this listing: " + text);
+      }//end try
+      return key;
+   }//end decode
+
+   // the key columns follow the shown ones
+   private Object[] readKey(ResultCursor rs, int n) throws SQLException {
+      Object[] key = new Object[this._keyTypes.length];
+      for (int i = 0; i < key.length; ++i) {
+         Class<?> type = this._keyTypes[i];
+         if (type == Integer.class)
+            key[i] = rs.getInt(n + i + 1);
+         else if (type == LocalDate.class)
+            key[i] = Date.valueOf(rs.getLocalDate(n + i + 1));
+         else
+            key[i] = rs.getString(n + i + 1);
+      }//end for
+      return key;
+   }//end readKey
+
+}//end KeysetPager
@@ -0,0 +1,99 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in nanoseconds.  Buckets are log-linear:
+ * every power of two is split into SUB_BUCKETS equal buckets, so any value
+ * is known to within about 6% whatever its magnitude, from a nanosecond to
+ * centuries, in a fixed array of under a thousand counters.
+ *
+ */
+public class LatencyHistogram {
+
+   // 2^SUB_BITS buckets per power of two
+   private static final int SUB_BITS = 4;
+   private static final int SUB_BUCKETS = 1 << SUB_BITS;
+   private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong _count = new AtomicLong();
+   private final AtomicLong _sum = new AtomicLong();
+   private final AtomicLong _max = new AtomicLong();
+
+   /**
+    * @param nanos one latency; negative values count as 0
+    */
+   public void record(long nanos) {
+      long v = Math.max(0, nanos);
+      this._counts.incrementAndGet(index(v));
+      this._count.incrementAndGet();
+      this._sum.addAndGet(v);
+      long max;
+      while (v > (max = this._max.get()) && !this._max.compareAndSet(max, v)) {
+         // retry, another thread raised the max
+      }//end while
+   }//end record
+
+   /**
+    * @return the number of latencies recorded
+    */
+   public long getCount() {
+      return this._count.get();
+   }//end getCount
+
+   /**
+    * @return the sum of the latencies recorded, in nanoseconds
+    */
+   public long getSum() {
+      return this._sum.get();
+   }//end getSum
+
+   /**
+    * @return the largest latency recorded, in nanoseconds
+    */
+   public long getMax() {
+      return this._max.get();
+   }//end getMax
+
+   /**
+    * @param percentile between 0 and 100
+    * @return the latency below which that share of the values fall, in
+    * nanoseconds, to the precision of a bucket; 0 if nothing was recorded
+    */
+   public long getPercentile(double percentile) {
+      long total = this._count.get();
+      if (total == 0)
+         return 0;
+      long rank = (long) Math.ceil(percentile / 100.0 * total);
+      rank = Math.max(1, Math.min(rank, total));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+         seen += this._counts.get(i);
+         if (seen >= rank)
+            return Math.min(middle(i), this._max.get());
+      }//end for
+      return this._max.get();
+   }//end getPercentile
+
+   // values below SUB_BUCKETS have a bucket each; above, the top SUB_BITS
+   // bits after the leading one pick the bucket within its power of two
+   private static int index(long v) {
+      if (v < SUB_BUCKETS)
+         return (int) v;
+      int exp = 63 - Long.numberOfLeadingZeros(v);
+      int sub = (int) ((v >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+      return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+   }//end index
+
+   // the middle of the values falling in a bucket
+   private static long middle(int index) {
+      if (index < SUB_BUCKETS)
+         return index;
+      int exp = index / SUB_BUCKETS + SUB_BITS - 1;
+      long sub = index % SUB_BUCKETS;
+      long width = 1L << (exp - SUB_BITS);
+      long lower = (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+      return lower + width / 2;
+   }//end middle
+
+}//end LatencyHistogram
@@ -0,0 +1,330 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency histograms and error counts per operation and per SQL template,
+ * counters and gauges kept by other components (e.g. cache hits, queue
+ * depths), and a log of slow queries with the types of their bind values.
+ *
+ * Operations are timed by whoever runs them, through time(); queries by
+ * ResultCursor and the parameterized executeUpdate.  Everything can be
+ * written in the Prometheus text format on demand (writePrometheus, GET
+ * /metrics) and, when airline.metrics.file is set, to that file every
+ * airline.metrics.intervalMs and at shutdown.  Queries slower than
+ * airline.metrics.slowQueryMs are appended to airline.metrics.slowLog, or
+ * to standard error when no file is given.  The log never holds bind
+ * values, which include passwords and their hashes, only their types and,
+ * for text, lengths.
+ *
+ */
+public class Metrics {
+
+   // default threshold of the slow query log
+   public static final long DEFAULT_SLOW_QUERY_MS = 100;
+
+   // default period of the metrics file
+   public static final long DEFAULT_INTERVAL_MS = 60_000;
+
+   // quantiles exported for each series
+   private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+   /**
+    * A timed call.
+    */
+   public interface Call<T> {
+      T call() throws Exception;
+   }//end Call
+
+   /**
+    * Latencies and errors of one operation or SQL template.
+    */
+   public static class Series {
+      public final LatencyHistogram latency = new LatencyHistogram();
+      public final AtomicLong errors = new AtomicLong();
+   }//end Series
+
+   private final ConcurrentHashMap<String, Series> _operations = new ConcurrentHashMap<String, Series>();
+   private final ConcurrentHashMap<String, Series> _queries = new ConcurrentHashMap<String, Series>();
+   // counter name -> label value -> count
+   private final ConcurrentHashMap<String, ConcurrentHashMap<String, AtomicLong>> _counters =
+      new ConcurrentHashMap<String, ConcurrentHashMap<String, AtomicLong>>();
+   private final ConcurrentHashMap<String, String> _counterLabels = new ConcurrentHashMap<String, String>();
+   // gauges read when written out, by name and label value
+   private final ConcurrentHashMap<String, ConcurrentHashMap<String, LongSupplier>> _gauges =
+      new ConcurrentHashMap<String, ConcurrentHashMap<String, LongSupplier>>();
+   private final ConcurrentHashMap<String, String> _gaugeLabels = new ConcurrentHashMap<String, String>();
+   private final long _slowNanos;
+   private final PrintStream _slowLog;
+   private final File _file;
+   private ScheduledExecutorService _dumper = null;
+
+   public Metrics() {
+      this(Long.getLong("airline.metrics.slowQueryMs", DEFAULT_SLOW_QUERY_MS),
+           System.getProperty("airline.metrics.slowLog"),
+           System.getProperty("airline.metrics.file"),
+           Long.getLong("airline.metrics.intervalMs", DEFAULT_INTERVAL_MS));
+   }//end Metrics
+
+   /**
+    * @param slowQueryMs queries at least this slow are logged; negative to log none
+    * @param slowLog file the slow queries are appended to, null for standard error
+    * @param file file the metrics are written to periodically, or null
+    * @param intervalMs period of the metrics file
+    */
+   public Metrics(long slowQueryMs, String slowLog, String file, long intervalMs) {
+      this._slowNanos = slowQueryMs < 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(slowQueryMs);
+      PrintStream log = System.err;
+      if (slowLog != null) {
+         try {
+            log = new PrintStream(new FileOutputStream(slowLog, true), true, "UTF-8");
+         } catch (IOException e) {
+            System.err.println("Cannot open slow query log " + slowLog + ": " + e.getMessage());
+         }//end try
+      }//end if
+      this._slowLog = log;
+      this._file = file == null ? null : new File(file);
+      if (this._file != null && intervalMs > 0) {
+         this._dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+         });
+         this._dumper.scheduleAtFixedRate(this::dumpQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+      }//end if
+   }//end Metrics
+
+   /**
+    * Runs a call and records its latency, and an error if it throws, under
+    * the operation name.
+    *
+    * @param operation the operation name, e.g. the Operations verb
+    * @param call the work
+    * @return what the call returned
+    * @throws java.lang.Exception what the call threw
+    */
+   public <T> T time(String operation, Call<T> call) throws Exception {
+      long start = System.nanoTime();
+      boolean ok = false;
+      try {
+         T result = call.call();
+         ok = true;
+         return result;
+      } finally {
+         recordOperation(operation, System.nanoTime() - start, ok);
+      }//end try
+   }//end time
+
+   public void recordOperation(String operation, long nanos, boolean ok) {
+      record(this._operations, operation, nanos, ok);
+   }//end recordOperation
+
+   /**
+    * Records one execution of a SQL template, and logs it if slow.
+    *
+    * @param sql the SQL template
+    * @param params the values bound to it
+    * @param nanos the time from execution to the last row read
+    * @param ok false if it failed
+    */
+   public void recordQuery(String sql, Object[] params, long nanos, boolean ok) {
+      record(this._queries, sql, nanos, ok);
+      if (nanos >= this._slowNanos)
+         logSlow(sql, params, nanos, ok);
+   }//end recordQuery
+
+   /**
+    * Returns a counter exported as name{label="value"}; the same counter
+    * is returned for the same name and value.  A name always has the same
+    * label.
+    *
+    * @param name the metric name, ending in _total
+    * @param label the label name
+    * @param value the label value
+    * @return the counter to increment
+    */
+   public AtomicLong counter(String name, String label, String value) {
+      AtomicLong counter = this._counters.computeIfAbsent(name, k -> new ConcurrentHashMap<String, AtomicLong>())
+                                         .computeIfAbsent(value, k -> new AtomicLong());
+      this._counterLabels.putIfAbsent(name, label);
+      return counter;
+   }//end counter
+
+   /**
+    * Exports name{label="value"} as a gauge whose value is read from the
+    * supplier each time the metrics are written, e.g. a queue depth.  A
+    * later call for the same name and value replaces the supplier.
+    *
+    * @param name the metric name
+    * @param label the label name
+    * @param value the label value
+    * @param supplier the current value
+    */
+   public void gauge(String name, String label, String value, LongSupplier supplier) {
+      this._gauges.computeIfAbsent(name, k -> new ConcurrentHashMap<String, LongSupplier>()).put(value, supplier);
+      this._gaugeLabels.putIfAbsent(name, label);
+   }//end gauge
+
+   /**
+    * @return the series of every operation by name
+    */
+   public Map<String, Series> getOperations() {
+      return new TreeMap<String, Series>(this._operations);
+   }//end getOperations
+
+   /**
+    * @return the series of every SQL template
+    */
+   public Map<String, Series> getQueries() {
+      return new TreeMap<String, Series>(this._queries);
+   }//end getQueries
+
+   /**
+    * Writes every series in the Prometheus text exposition format.
+    *
+    * @param out where to write
+    * @throws java.io.IOException when failed to write
+    */
+   public void writePrometheus(Writer out) throws IOException {
+      writeSeries(out, "airline_operation", "operation", getOperations());
+      writeSeries(out, "airline_query", "sql", getQueries());
+      for (String name : new TreeMap<String, String>(this._counterLabels).keySet()) {
+         String label = this._counterLabels.get(name);
+         out.write("# TYPE " + name + " counter\n");
+         for (Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(this._counters.get(name)).entrySet())
+            out.write(name + "{" + label + "=\"" + escape(e.getKey()) + "\"} " + e.getValue().get() + "\n");
+      }//end for
+      for (String name : new TreeMap<String, String>(this._gaugeLabels).keySet()) {
+         String label = this._gaugeLabels.get(name);
+         out.write("# TYPE " + name + " gauge\n");
+         for (Map.Entry<String, LongSupplier> e : new TreeMap<String, LongSupplier>(this._gauges.get(name)).entrySet())
+            out.write(name + "{" + label + "=\"" + escape(e.getKey()) + "\"} " + e.getValue().getAsLong() + "\n");
+      }//end for
+      out.flush();
+   }//end writePrometheus
+
+   /**
+    * Replaces the metrics file, if one is configured, with the current
+    * metrics.  The file is written aside and moved in place, so readers
+    * never see half of it.
+    *
+    * @throws java.io.IOException when failed to write
+    */
+   public void dump() throws IOException {
+      if (this._file == null)
+         return;
+      File dir = this._file.getAbsoluteFile().getParentFile();
+      File tmp = File.createTempFile("metrics", ".tmp", dir);
+      try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+         writePrometheus(out);
+      }//end try
+      Files.move(tmp.toPath(), this._file.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }//end dump
+
+   /**
+    * Stops the periodic dump and writes the file one last time.
+    */
+   public void close() {
+      if (this._dumper != null)
+         this._dumper.shutdownNow();
+      dumpQuietly();
+      if (this._slowLog != System.err)
+         this._slowLog.close();
+   }//end close
+
+   private void dumpQuietly() {
+      try {
+         dump();
+      } catch (IOException e) {
+         System.err.println("Cannot write metrics to " + this._file + ": " + e.getMessage());
+      }//end try
+   }//end dumpQuietly
+
+   private static void record(ConcurrentHashMap<String, Series> map, String key, long nanos, boolean ok) {
+      Series s = map.get(key);
+      if (s == null)
+         s = map.computeIfAbsent(key, k -> new Series());
+      if (ok)
+         s.latency.record(nanos);
+      else
+         s.errors.incrementAndGet();
+   }//end record
+
+   private void logSlow(String sql, Object[] params, long nanos, boolean ok) {
+      StringBuilder line = new StringBuilder();
+      line.append(Instant.now()).append(' ');
+      line.append(String.format("%.3f ms", nanos / 1e6)).append(ok ? " " : " FAILED ");
+      line.append(sql.replaceAll("\\s+", " ").trim());
+      if (params != null && params.length > 0) {
+         line.append(" [");
+         for (int i = 0; i < params.length; ++i) {
+            if (i > 0)
+               line.append(", ");
+            line.append(redact(params[i]));
+         }//end for
+         line.append(']');
+      }//end if
+      synchronized (this._slowLog) {
+         this._slowLog.println(line);
+      }//end synchronized
+   }//end logSlow
+
+   // what the slow log shows of a bind value, e.g. String(12) or Date
+   private static String redact(Object value) {
+      if (value == null)
+         return "null";
+      String type = value.getClass().getSimpleName();
+      return value instanceof String ? type + "(" + ((String) value).length() + ")" : type;
+   }//end redact
+
+   private static void writeSeries(Writer out, String name, String label, Map<String, Series> series) throws IOException {
+      out.write("# HELP " + name + "_latency_seconds Latency of successful calls.\n");
+      out.write("# TYPE " + name + "_latency_seconds summary\n");
+      for (Map.Entry<String, Series> e : series.entrySet()) {
+         String key = label + "=\"" + escape(e.getKey()) + "\"";
+         LatencyHistogram h = e.getValue().latency;
+         for (double q : QUANTILES)
+            out.write(name + "_latency_seconds{" + key + ",quantile=\"" + q + "\"} "
+                      + seconds(h.getPercentile(q * 100)) + "\n");
+         out.write(name + "_latency_seconds_sum{" + key + "} " + seconds(h.getSum()) + "\n");
+         out.write(name + "_latency_seconds_count{" + key + "} " + h.getCount() + "\n");
+      }//end for
+      out.write("# HELP " + name + "_latency_seconds_max Slowest successful call.\n");
+      out.write("# TYPE " + name + "_latency_seconds_max gauge\n");
+      for (Map.Entry<String, Series> e : series.entrySet())
+         out.write(name + "_latency_seconds_max{" + label + "=\"" + escape(e.getKey()) + "\"} "
+                   + seconds(e.getValue().latency.getMax()) + "\n");
+      out.write("# HELP " + name + "_errors_total Failed calls.\n");
+      out.write("# TYPE " + name + "_errors_total counter\n");
+      for (Map.Entry<String, Series> e : series.entrySet())
+         out.write(name + "_errors_total{" + label + "=\"" + escape(e.getKey()) + "\"} "
+                   + e.getValue().errors.get() + "\n");
+   }//end writeSeries
+
+   // label values escape backslash, quote and line feed; SQL is put on one line
+   private static String escape(String value) {
+      return value.replaceAll("\\s+", " ").trim()
+                  .replace("\\", "\\\\").replace("\"", "\\\"");
+   }//end escape
+
+   private static String seconds(long nanos) {
+      return Double.toString(nanos / 1e9);
+   }//end seconds
+
+}//end Metrics
@@ -0,0 +1,406 @@
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The menu operations of AirlineManagement by verb, for callers that are
+ * not the interactive menu.  A command is a verb followed by key=value
+ * parameters, values with spaces in double quotes:
+ *
+ *    reserve customer=12 instance=88
+ *    stats flight=F100 from=2025-05-01 to=2025-05-31
+ *    search from="New York" to=Miami date=2025-05-05
+ *
+ * Rows are written to the renderer given to run; operations without rows
+ * write one line of text.
+ *
+ */
+public class Operations {
+
+   /**
+    * One operation bound to its verb.
+    */
+   public interface Operation {
+      void run(AirlineManagement esql, Params params, ResultRenderer out) throws Exception;
+   }//end Operation
+
+   /**
+    * A registered operation with the role whose menu offers it and the
+    * parameters it takes.  For operations acting on behalf of the user, as
+    * a reservation does for a customer, owner names the parameter that
+    * holds the user's role_id.
+    */
+   public static class Entry {
+      public final String role;
+      public final String verb;
+      public final String usage;
+      public final boolean writes;
+      // the parameter naming the acting user (e.g. customer), or null
+      public final String owner;
+      public final Operation operation;
+
+      Entry(String role, String verb, String usage, boolean writes, String owner, Operation operation) {
+         this.role = role;
+         this.verb = verb;
+         this.usage = usage;
+         this.writes = writes;
+         this.owner = owner;
+         this.operation = operation;
+      }//end Entry
+   }//end Entry
+
+   /**
+    * Parameters of a command by name.
+    */
+   public static class Params {
+      private final Map<String, String> _values;
+
+      public Params(Map<String, String> values) {
+         this._values = values;
+      }//end Params
+
+      /**
+       * @param name the parameter name
+       * @return the value
+       * @throws java.lang.IllegalArgumentException if the parameter is missing
+       */
+      public String get(String name) {
+         String value = this._values.get(name);
+         if (value == null)
+            throw new IllegalArgumentException("missing parameter " + name);
+         return value;
+      }//end get
+
+      public String get(String name, String defaultValue) {
+         String value = this._values.get(name);
+         return value == null ? defaultValue : value;
+      }//end get
+
+      public int getInt(String name) {
+         String value = get(name);
+         try {
+            return Integer.parseInt(value.trim());
+         } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number: " + value);
+         }//end try
+      }//end getInt
+
+      public int getInt(String name, int defaultValue) {
+         return this._values.get(name) == null ? defaultValue : getInt(name);
+      }//end getInt
+
+      public LocalDate getDate(String name) {
+         String value = get(name);
+         try {
+            return LocalDate.parse(value.trim());
+         } catch (RuntimeException e) {
+            throw new IllegalArgumentException(name + " must be a date (YYYY-MM-DD): " + value);
+         }//end try
+      }//end getDate
+
+      public boolean getBoolean(String name, boolean defaultValue) {
+         String value = this._values.get(name);
+         return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+      }//end getBoolean
+
+      public Map<String, String> asMap() {
+         return Collections.unmodifiableMap(this._values);
+      }//end asMap
+   }//end Params
+
+   /**
+    * A parsed command line.
+    */
+   public static class Command {
+      public final String verb;
+      public final Params params;
+
+      Command(String verb, Params params) {
+         this.verb = verb;
+         this.params = params;
+      }//end Command
+   }//end Command
+
+   private static final Map<String, Entry> REGISTRY = new LinkedHashMap<String, Entry>();
+
+   static {
+      // Management
+      register("Management", "schedule", "flight=", false, null, (esql, p, out) ->
+         AirlineManagement.ScheduleFromFlightNum(esql, p.get("flight"), out));
+      register("Management", "seats", "flight= date= [remaining=true]", false, null, (esql, p, out) -> {
+         boolean remaining = p.getBoolean("remaining", false);
+         Integer seats = AirlineManagement.GetSeats(esql, p.get("flight"), p.getDate("date"), remaining);
+         out.println(seats == null ? "No matching records found."
+                                   : (remaining ? "Seats Remaining: " : "Seats Sold: ") + seats);
+      });
+      register("Management", "ontime", "flight= date= [arrival=true]", false, null, (esql, p, out) -> {
+         boolean arrival = p.getBoolean("arrival", false);
+         out.println(AirlineManagement.OnTimeMessage(
+            AirlineManagement.OnTime(esql, p.get("flight"), p.getDate("date"), arrival), arrival));
+      });
+      register("Management", "flights", "date= [snapshot=true]", false, null, (esql, p, out) -> {
+         if (p.getBoolean("snapshot", false))
+            AirlineManagement.FlightsOfTheDayFromSnapshot(esql, p.getDate("date"), out);
+         else
+            AirlineManagement.FlightsOfTheDay(esql, p.getDate("date"), out);
+      });
+      register("Management", "passengers", "flight= date= status=reserved|waitlist|flown", false, null, (esql, p, out) ->
+         AirlineManagement.ListPassangers(esql, p.get("flight"), p.getDate("date"), p.get("status"), out));
+      register("Management", "manifest", "flight= date= " + pageUsage("status,customerid,reservationid"), false, null, (esql, p, out) ->
+         AirlineManagement.PassengerManifest(esql, p.get("flight"), p.getDate("date"),
+            pageKey(AirlineManagement.MANIFEST, p), pageDirection(p), pageSize(esql, p), out));
+      register("Management", "passenger", "reservation=", false, null, (esql, p, out) ->
+         AirlineManagement.PassengerInfo(esql, p.get("reservation"), out));
+      register("Management", "plane", "plane=", false, null, (esql, p, out) ->
+         AirlineManagement.FindPlaneInfo(esql, p.get("plane"), out));
+      register("Management", "repairs-by", "technician= " + pageUsage("RepairDate,RepairID"), false, null, (esql, p, out) ->
+         AirlineManagement.RepairsOfPerson(esql, p.get("technician"),
+            pageKey(AirlineManagement.REPAIRS_BY, p), pageDirection(p), pageSize(esql, p), out));
+      register("Management", "repairs-on", "plane= from= to=", false, null, (esql, p, out) ->
+         AirlineManagement.RepairsOnDates(esql, p.get("plane"), p.getDate("from"), p.getDate("to"), out));
+      register("Management", "stats", "flight= from= to= [snapshot=true]", false, null, (esql, p, out) -> {
+         FlightStatsRollup.Stats s = p.getBoolean("snapshot", false)
+            ? AirlineManagement.ShowFlightStatsFromSnapshot(esql, p.get("flight"), p.getDate("from"), p.getDate("to"))
+            : AirlineManagement.ShowFlightStats(esql, p.get("flight"), p.getDate("from"), p.getDate("to"));
+         if (s.instances == 0) {
+            out.println("No flight statistics found.");
+            return;
+         }//end if
+         ResultRenderer.Table t = out.begin("Departed", "Arrived", "Sold", "Unsold");
+         t.cell(Long.toString(s.departedOnTime)).cell(Long.toString(s.arrivedOnTime))
+          .cell(Long.toString(s.seatsSold)).cell(Long.toString(s.seatsUnsold));
+         t.endRow();
+         t.end();
+      });
+
+      register("Management", "fleet-report", "from= to= [snapshot=true]", false, null, (esql, p, out) ->
+         AirlineManagement.FleetReport(esql, p.getDate("from"), p.getDate("to"), p.getBoolean("snapshot", false), out));
+      register("Management", "snapshot", "[append=true]", true, null, (esql, p, out) ->
+         out.println(esql.exportSnapshot(p.getBoolean("append", false)) + " instances written to " + esql.getSnapshotFile()));
+
+      // Customer
+      register("Customer", "search", "from= to= date=", false, null, (esql, p, out) -> {
+         List<RouteIndex.Result> results =
+            AirlineManagement.FindFlightsOnDate(esql, p.get("from"), p.get("to"), p.getDate("date"));
+         ResultRenderer.Table t = out.begin("departuretime", "arrivaltime", "numofstops", "ontimepercentage");
+         for (RouteIndex.Result r : results) {
+            t.cell(r.departureTime).cell(r.arrivalTime).cell(Integer.toString(r.numOfStops))
+             .cell(String.format("%.2f", r.onTimePercentage));
+            t.endRow();
+         }//end for
+         t.end();
+      });
+      register("Customer", "cost", "flight= " + pageUsage("FlightDate,FlightInstanceID"), false, null, (esql, p, out) ->
+         AirlineManagement.GetTicketCost(esql, p.get("flight"),
+            pageKey(AirlineManagement.TICKET_COSTS, p), pageDirection(p), pageSize(esql, p), out));
+      register("Customer", "airplane", "flight=", false, null, (esql, p, out) ->
+         AirlineManagement.GetAirplaneType(esql, p.get("flight"), out));
+      register("Customer", "reserve", "customer= instance=", true, "customer", (esql, p, out) -> {
+         SeatInventory.Booking b =
+            AirlineManagement.MakeReservation(esql, p.getInt("customer"), p.getInt("instance"));
+         out.println(b.getStatus() + " " + b.reservationID);
+      });
+      register("Customer", "cancel", "customer= reservation=", true, "customer", (esql, p, out) -> {
+         SeatInventory.Booking b =
+            AirlineManagement.CancelReservation(esql, p.get("reservation"), p.getInt("customer"));
+         if (b == null)
+            throw new IllegalArgumentException("no reservation " + p.get("reservation") + " to cancel");
+         out.println("cancelled " + b.reservationID);
+      });
+      register("Management", "group-reserve", "bookings=customer@instance,... | customers=id,... instance=", true, null, (esql, p, out) -> {
+         int[][] group = parseGroup(p);
+         ResultRenderer.Table table = out.begin("reservationid", "customerid", "flightinstanceid", "status");
+         for (SeatInventory.Booking b : AirlineManagement.MakeGroupReservation(esql, group[0], group[1])) {
+            table.cell(b.reservationID).cell(Integer.toString(b.customerID))
+                 .cell(Integer.toString(b.flightInstanceID)).cell(b.getStatus());
+            table.endRow();
+         }//end for
+         table.end();
+      });
+
+      // Technician
+      register("Technician", "plane-repairs", "plane= from= to=", false, null, (esql, p, out) ->
+         AirlineManagement.GetRepairsForPlane(esql, p.get("plane"), p.getDate("from"), p.getDate("to"), out));
+      register("Technician", "requests", "pilot= " + pageUsage("RequestDate,RequestID"), false, null, (esql, p, out) ->
+         AirlineManagement.GetPilotRequests(esql, p.get("pilot"),
+            pageKey(AirlineManagement.PILOT_REQUESTS, p), pageDirection(p), pageSize(esql, p), out));
+      register("Technician", "log-repair", "technician= plane= code= | technician= request=", true, "technician", (esql, p, out) -> {
+         int id = p.get("request", null) != null
+            ? AirlineManagement.LogRepair(esql, p.get("technician"), p.getInt("request"))
+            : AirlineManagement.LogRepair(esql, p.get("technician"), p.get("plane"), p.get("code"));
+         out.println("repair " + id);
+      });
+      register("Technician", "claim", "technician= [count=1]", true, "technician", (esql, p, out) ->
+         AirlineManagement.ClaimRequests(esql, p.get("technician"), p.getInt("count", 1), out));
+      register("Technician", "claimed", "technician=", false, "technician", (esql, p, out) ->
+         AirlineManagement.GetClaimedRequests(esql, p.get("technician"), out));
+      register("Technician", "release", "technician= request=", true, "technician", (esql, p, out) -> {
+         if (!AirlineManagement.ReleaseRequest(esql, p.get("technician"), p.getInt("request")))
+            throw new IllegalArgumentException("no open claim on request " + p.get("request"));
+         out.println("released " + p.get("request"));
+      });
+      register("Management", "reprioritize", "", true, null, (esql, p, out) ->
+         out.println("updated " + esql.getWorkQueue().reprioritize()));
+
+      // Pilot
+      register("Pilot", "request", "pilot= plane= code=", true, "pilot", (esql, p, out) -> {
+         int id = AirlineManagement.SubmitMaintenanceRequest(esql, p.get("pilot"), p.get("plane"), p.get("code"));
+         out.println("request " + id);
+      });
+   }
+
+   private static void register(String role, String verb, String usage, boolean writes,
+                                String owner, Operation operation) {
+      REGISTRY.put(verb, new Entry(role, verb, usage, writes, owner, operation));
+   }//end register
+
+   // parameters of a keyset paged listing; the key is the named columns of
+   // the last row of a page (after=) or of the first one (before=)
+   private static String pageUsage(String key) {
+      return "[limit=] [after=" + key + " | before=" + key + " | direction=previous]";
+   }//end pageUsage
+
+   private static Object[] pageKey(KeysetPager pager, Params p) {
+      String after = p.get("after", null);
+      String before = p.get("before", null);
+      if (after != null && before != null)
+         throw new IllegalArgumentException("give after or before, not both");
+      return pager.decode(before != null ? before : after);
+   }//end pageKey
+
+   private static KeysetPager.Direction pageDirection(Params p) {
+      if (p.get("before", null) != null)
+         return KeysetPager.Direction.PREVIOUS;
+      return KeysetPager.Direction.parse(p.get("direction", null));
+   }//end pageDirection
+
+   // the customers and instances of a group booking, from bookings=12@88,13@90
+   // or from customers=12,13 instance=88
+   private static int[][] parseGroup(Params p) {
+      String bookings = p.get("bookings", null);
+      String[] items = (bookings != null ? bookings : p.get("customers")).split(",");
+      int[] customers = new int[items.length];
+      int[] instances = new int[items.length];
+      int instance = bookings != null ? 0 : p.getInt("instance");
+      try {
+         for (int i = 0; i < items.length; ++i) {
+            String item = items[i].trim();
+            int at = item.indexOf('@');
+            if (bookings != null && at < 0)
+               throw new IllegalArgumentException("bookings are customer@instance: " + item);
+            customers[i] = Integer.parseInt(bookings != null ? item.substring(0, at).trim() : item);
+            instances[i] = bookings != null ? Integer.parseInt(item.substring(at + 1).trim()) : instance;
+         }//end for
+      } catch (NumberFormatException e) {
+         throw new IllegalArgumentException("customer and instance ids must be numbers: " + e.getMessage());
+      }//end try
+      return new int[][]{customers, instances};
+   }//end parseGroup
+
+   private static int pageSize(AirlineManagement esql, Params p) {
+      return Math.max(1, p.getInt("limit", esql.getPageSize()));
+   }//end pageSize
+
+   /**
+    * @param verb the verb of a command
+    * @return the operation, or null if the verb is unknown
+    */
+   public static Entry get(String verb) {
+      return REGISTRY.get(verb);
+   }//end get
+
+   /**
+    * @return every operation in menu order
+    */
+   public static List<Entry> all() {
+      return new ArrayList<Entry>(REGISTRY.values());
+   }//end all
+
+   /**
+    * Runs one command.
+    *
+    * @param esql the database handle
+    * @param command the parsed command
+    * @param out where rows or the outcome are written
+    * @throws java.lang.IllegalArgumentException if the verb is unknown or a parameter is missing
+    * @throws java.lang.Exception when the operation failed
+    */
+   public static void run(AirlineManagement esql, Command command, ResultRenderer out) throws Exception {
+      Entry entry = get(command.verb);
+      if (entry == null)
+         throw new IllegalArgumentException("unknown operation " + command.verb);
+      run(esql, entry, command.params, out);
+   }//end run
+
+   /**
+    * Runs one operation, recording its latency under its verb.
+    *
+    * @param esql the database handle
+    * @param entry the operation
+    * @param params its parameters
+    * @param out where rows or the outcome are written
+    * @throws java.lang.IllegalArgumentException if a parameter is missing
+    * @throws java.lang.Exception when the operation failed
+    */
+   public static void run(AirlineManagement esql, Entry entry, Params params, ResultRenderer out) throws Exception {
+      esql.getMetrics().time(entry.verb, () -> {
+         entry.operation.run(esql, params, out);
+         return null;
+      });
+      out.flush();
+   }//end run
+
+   /**
+    * Splits a command line into its verb and key=value parameters.
+    *
+    * @param line the command, e.g. reserve customer=12 instance=88
+    * @return the command, or null if the line is blank or a # comment
+    * @throws java.lang.IllegalArgumentException if the line is malformed
+    */
+   public static Command parse(String line) {
+      List<String> words = split(line);
+      if (words.isEmpty() || words.get(0).startsWith("#"))
+         return null;
+      Map<String, String> values = new LinkedHashMap<String, String>();
+      for (int i = 1; i < words.size(); ++i) {
+         String word = words.get(i);
+         int eq = word.indexOf('=');
+         if (eq <= 0)
+            throw new IllegalArgumentException("expected key=value, found " + word);
+         values.put(word.substring(0, eq), word.substring(eq + 1));
+      }//end for
+      return new Command(words.get(0), new Params(values));
+   }//end parse
+
+   // words separated by blanks; double quotes group blanks into one word
+   private static List<String> split(String line) {
+      List<String> words = new ArrayList<String>();
+      StringBuilder word = new StringBuilder();
+      boolean quoted = false;
+      boolean inWord = false;
+      for (int i = 0; i < line.length(); ++i) {
+         char c = line.charAt(i);
+         if (c == '"') {
+            quoted = !quoted;
+            inWord = true;
+         } else if (!quoted && Character.isWhitespace(c)) {
+            if (inWord)
+               words.add(word.toString());
+            word.setLength(0);
+            inWord = false;
+         } else {
+            word.append(c);
+            inWord = true;
+         }//end if
+      }//end for
+      if (quoted)
+         throw new IllegalArgumentException("unterminated quote");
+      if (inWord)
+         words.add(word.toString());
+      return words;
+   }//end split
+
+}//end Operations
@@ -0,0 +1,115 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2 password hashes as stored in Users.password:
+ *
+ *    pbkdf2$<iterations>$<base64 salt>$<base64 hash>
+ *
+ * The iteration count is the cost of one verification and can be tuned
+ * with airline.password.iterations; hashes made with another count keep
+ * verifying and are reported by needsRehash so they can be upgraded on
+ * the next login.
+ *
+ */
+public class PasswordHasher {
+
+   // default PBKDF2 iterations; tens of milliseconds per verification
+   public static final int DEFAULT_ITERATIONS = 100_000;
+
+   private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+   private static final String PREFIX = "pbkdf2$";
+   private static final int SALT_BYTES = 16;
+   private static final int HASH_BITS = 256;
+
+   private static final SecureRandom RANDOM = new SecureRandom();
+
+   private final int _iterations;
+
+   public PasswordHasher() {
+      this(Integer.getInteger("airline.password.iterations", DEFAULT_ITERATIONS));
+   }//end PasswordHasher
+
+   /**
+    * @param iterations the PBKDF2 iterations of new hashes
+    */
+   public PasswordHasher(int iterations) {
+      this._iterations = Math.max(1, iterations);
+   }//end PasswordHasher
+
+   /**
+    * @param password the password in clear
+    * @return the salted hash to store
+    */
+   public String hash(String password) {
+      byte[] salt = new byte[SALT_BYTES];
+      RANDOM.nextBytes(salt);
+      Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+      return PREFIX + this._iterations + "$" + b64.encodeToString(salt) + "$"
+         + b64.encodeToString(derive(password, salt, this._iterations));
+   }//end hash
+
+   /**
+    * Checks a password against a stored value.  Values not made by hash
+    * are legacy plaintext passwords and are compared as they are.
+    *
+    * @param password the password in clear
+    * @param stored the value of Users.password
+    * @return true if the password matches
+    */
+   public boolean verify(String password, String stored) {
+      if (password == null || stored == null)
+         return false;
+      if (!isHashed(stored))
+         return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8),
+                                      stored.getBytes(StandardCharsets.UTF_8));
+      String[] parts = stored.split("\\$");
+      if (parts.length != 4)
+         return false;
+      try {
+         int iterations = Integer.parseInt(parts[1]);
+         byte[] salt = Base64.getDecoder().decode(parts[2]);
+         byte[] expected = Base64.getDecoder().decode(parts[3]);
+         return MessageDigest.isEqual(expected, derive(password, salt, iterations));
+      } catch (IllegalArgumentException e) {
+         return false;
+      }//end try
+   }//end verify
+
+   /**
+    * @param stored the value of Users.password
+    * @return true if the value is plaintext or hashed with another cost
+    */
+   public boolean needsRehash(String stored) {
+      if (!isHashed(stored))
+         return true;
+      String[] parts = stored.split("\\$");
+      return parts.length != 4 || !parts[1].equals(Integer.toString(this._iterations));
+   }//end needsRehash
+
+   /**
+    * @param stored the value of Users.password
+    * @return true if the value was made by hash
+    */
+   public static boolean isHashed(String stored) {
+      return stored != null && stored.startsWith(PREFIX);
+   }//end isHashed
+
+   private static byte[] derive(String password, byte[] salt, int iterations) {
+      PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+      try {
+         return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+      } catch (GeneralSecurityException e) {
+         throw new IllegalStateException(ALGORITHM + " is not available", e);
+      } finally {
+         spec.clearPassword();
+      }//end try
+   }//end derive
+
+}//end PasswordHasher
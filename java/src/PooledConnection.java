@@ -0,0 +1,57 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A physical connection owned by a ConnectionPool together with the
+ * bookkeeping the pool needs to decide whether it is still usable.
+ *
+ */
+public class PooledConnection {
+
+   // reference to physical database connection.
+   private final Connection _connection;
+
+   // prepared statements kept open on this connection
+   private final StatementCache _statements;
+
+   // last time the connection was returned to the pool or validated
+   private volatile long _lastUsedMillis;
+
+   PooledConnection(Connection connection, StatementCache statements) {
+      this._connection = connection;
+      this._statements = statements;
+      this._lastUsedMillis = System.currentTimeMillis();
+   }//end PooledConnection
+
+   /**
+    * @return the underlying JDBC connection
+    */
+   public Connection getConnection() {
+      return this._connection;
+   }//end getConnection
+
+   /**
+    * @return the prepared statement cache of this connection
+    */
+   public StatementCache getStatementCache() {
+      return this._statements;
+   }//end getStatementCache
+
+   void touch() {
+      this._lastUsedMillis = System.currentTimeMillis();
+   }//end touch
+
+   long idleMillis() {
+      return System.currentTimeMillis() - this._lastUsedMillis;
+   }//end idleMillis
+
+   void closeQuietly() {
+      this._statements.clear();
+      try {
+         this._connection.close();
+      } catch (SQLException e) {
+         // ignored.
+      }//end try
+   }//end closeQuietly
+
+}//end PooledConnection
@@ -0,0 +1,465 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of the small reference tables: Plane, Flight,
+ * Schedule, Technician and Pilot.  Each table is loaded whole on first use
+ * and then answers lookups from memory, including lookups of keys that do
+ * not exist.
+ *
+ * Every table holds at most airline.refcache.maxEntries keys, least
+ * recently used first out.  A table that did not fit, or lost a key to the
+ * bound, goes to the database for the keys it does not hold.  Writers keep
+ * the cache fresh by calling refresh with the key they changed once their
+ * write is committed; changes made by other processes are picked up when
+ * the table is reloaded, every airline.refcache.ttlMs.  Hits and misses
+ * are counted per table in the Metrics of the owner.
+ *
+ */
+public class ReferenceCache {
+
+   // default number of keys held per table
+   public static final int DEFAULT_MAX_ENTRIES = 100_000;
+
+   // default time after which a table is reloaded
+   public static final long DEFAULT_TTL_MS = 5 * 60 * 1000L;
+
+   /**
+    * A row of Plane.
+    */
+   public static class Plane {
+      public final String planeID;
+      public final String make;
+      public final String model;
+      public final Integer year;
+      public final String lastRepairDate;
+
+      Plane(ResultCursor rs) throws SQLException {
+         this.planeID = rs.getString(1);
+         this.make = rs.getString(2);
+         this.model = rs.getString(3);
+         int year = rs.getInt(4);
+         this.year = rs.wasNull() ? null : year;
+         this.lastRepairDate = rs.getString(5);
+      }//end Plane
+   }//end Plane
+
+   /**
+    * A row of Flight.
+    */
+   public static class Flight {
+      public final String flightNumber;
+      public final String planeID;
+      public final String departureCity;
+      public final String arrivalCity;
+
+      Flight(ResultCursor rs) throws SQLException {
+         this.flightNumber = rs.getString(1);
+         this.planeID = rs.getString(2);
+         this.departureCity = rs.getString(3);
+         this.arrivalCity = rs.getString(4);
+      }//end Flight
+   }//end Flight
+
+   /**
+    * A row of Schedule.
+    */
+   public static class Schedule {
+      public final String dayOfWeek;
+      public final String departureTime;
+      public final String arrivalTime;
+
+      Schedule(ResultCursor rs) throws SQLException {
+         this.dayOfWeek = rs.getString(2);
+         this.departureTime = rs.getString(3);
+         this.arrivalTime = rs.getString(4);
+      }//end Schedule
+   }//end Schedule
+
+   /**
+    * One cached table.  The key is the first column of its queries;
+    * several rows may share a key, and are then kept together in a list.
+    */
+   private abstract class Table<V> {
+      final String _name;
+      final String _loadAll;
+      final String _loadOne;
+      final AtomicLong _hits;
+      final AtomicLong _misses;
+
+      // guarded by this; access ordered so the eldest entry is the least recently used
+      final LinkedHashMap<String, V> _rows = new LinkedHashMap<String, V>(16, 0.75f, true);
+      // true while _rows holds every key of the table
+      boolean _complete = false;
+      long _loadedAt = 0;
+      boolean _loaded = false;
+
+      Table(String name, String loadAll, String loadOne) {
+         this._name = name;
+         this._loadAll = loadAll;
+         this._loadOne = loadOne;
+         Metrics metrics = ReferenceCache.this._esql.getMetrics();
+         this._hits = metrics.counter("airline_refcache_hits_total", "table", name);
+         this._misses = metrics.counter("airline_refcache_misses_total", "table", name);
+      }//end Table
+
+      // adds the row under the cursor to what is held for its key
+      abstract V add(V held, ResultCursor rs) throws SQLException;
+
+      /**
+       * @param key the key
+       * @return what is held for the key, or null if the table has no such key
+       */
+      synchronized V get(String key) throws SQLException {
+         ensureLoaded();
+         V value = this._rows.get(key);
+         if (value != null || this._complete) {
+            this._hits.incrementAndGet();
+            return value;
+         }//end if
+         this._misses.incrementAndGet();
+         value = fetch(key);
+         if (value != null)
+            put(key, value);
+         return value;
+      }//end get
+
+      /**
+       * Same as get, except that a key the table is believed not to have is
+       * looked up in the database anyway, in case another process added it.
+       */
+      synchronized V getConfirmed(String key) throws SQLException {
+         V value = get(key);
+         if (value == null && this._complete) {
+            this._misses.incrementAndGet();
+            value = fetch(key);
+            if (value != null)
+               put(key, value);
+         }//end if
+         return value;
+      }//end getConfirmed
+
+      /**
+       * Replaces what is held for a key by what the database holds now.
+       */
+      synchronized void refresh(String key) throws SQLException {
+         if (!this._loaded)
+            return;
+         V value = fetch(key);
+         if (value != null)
+            put(key, value);
+         else
+            this._rows.remove(key);
+      }//end refresh
+
+      /**
+       * Forgets a key without reading the database; it is fetched again on
+       * next use.
+       */
+      synchronized void invalidate(String key) {
+         this._rows.remove(key);
+         // the key must not be taken for missing from the table
+         this._complete = false;
+      }//end invalidate
+
+      // loads the table if it never was or is older than the ttl
+      synchronized void ensureLoaded() throws SQLException {
+         long now = System.currentTimeMillis();
+         if (!this._loaded || now - this._loadedAt >= ReferenceCache.this._ttlMs)
+            load(now);
+      }//end ensureLoaded
+
+      synchronized void clear() {
+         this._rows.clear();
+         this._complete = false;
+         this._loaded = false;
+      }//end clear
+
+      synchronized int size() {
+         return this._rows.size();
+      }//end size
+
+      private void load(long now) throws SQLException {
+         LinkedHashMap<String, V> rows = new LinkedHashMap<String, V>(16, 0.75f, true);
+         boolean complete = true;
+         try (ResultCursor rs = ReferenceCache.this._esql.openCursor(this._loadAll)) {
+            while (rs.next()) {
+               String key = rs.getString(1);
+               V held = rows.get(key);
+               if (held == null && rows.size() >= ReferenceCache.this._maxEntries) {
+                  complete = false;
+                  continue;
+               }//end if
+               rows.put(key, add(held, rs));
+            }//end while
+         }//end try
+         this._rows.clear();
+         this._rows.putAll(rows);
+         this._complete = complete;
+         this._loaded = true;
+         this._loadedAt = now;
+      }//end load
+
+      private V fetch(String key) throws SQLException {
+         V value = null;
+         try (ResultCursor rs = ReferenceCache.this._esql.openCursor(0, this._loadOne, key)) {
+            while (rs.next())
+               value = add(value, rs);
+         }//end try
+         return value;
+      }//end fetch
+
+      private void put(String key, V value) {
+         this._rows.put(key, value);
+         if (this._rows.size() > ReferenceCache.this._maxEntries) {
+            String eldest = this._rows.keySet().iterator().next();
+            this._rows.remove(eldest);
+            this._complete = false;
+         }//end if
+      }//end put
+   }//end Table
+
+   // a table with one row per key
+   private abstract class RowTable<V> extends Table<V> {
+      RowTable(String name, String loadAll, String loadOne) {
+         super(name, loadAll, loadOne);
+      }//end RowTable
+
+      V add(V held, ResultCursor rs) throws SQLException {
+         return read(rs);
+      }//end add
+
+      abstract V read(ResultCursor rs) throws SQLException;
+   }//end RowTable
+
+   private static final String PLANE_COLUMNS = "SELECT PlaneID, Make, Model, Year, LastRepairDate FROM Plane";
+   private static final String FLIGHT_COLUMNS = "SELECT FlightNumber, PlaneID, DepartureCity, ArrivalCity FROM Flight";
+   private static final String SCHEDULE_COLUMNS =
+      "SELECT FlightNumber, DayOfWeek, DepartureTime, ArrivalTime FROM Schedule";
+   private static final String TECHNICIAN_COLUMNS = "SELECT TechnicianID, Name FROM Technician";
+   private static final String PILOT_COLUMNS = "SELECT PilotID, Name FROM Pilot";
+
+   private final AirlineManagement _esql;
+   private final int _maxEntries;
+   private final long _ttlMs;
+
+   private final Table<Plane> _planes;
+   private final Table<Flight> _flights;
+   private final Table<List<Schedule>> _schedules;
+   private final Table<String> _technicians;
+   private final Table<String> _pilots;
+
+   public ReferenceCache(AirlineManagement esql) {
+      this(esql, Integer.getInteger("airline.refcache.maxEntries", DEFAULT_MAX_ENTRIES),
+           Long.getLong("airline.refcache.ttlMs", DEFAULT_TTL_MS));
+   }//end ReferenceCache
+
+   /**
+    * @param esql the database handle
+    * @param maxEntries keys held per table
+    * @param ttlMs time after which a table is reloaded
+    */
+   public ReferenceCache(AirlineManagement esql, int maxEntries, long ttlMs) {
+      this._esql = esql;
+      this._maxEntries = Math.max(1, maxEntries);
+      this._ttlMs = ttlMs;
+      this._planes = new RowTable<Plane>("Plane", PLANE_COLUMNS, PLANE_COLUMNS + " WHERE PlaneID = ?") {
+         Plane read(ResultCursor rs) throws SQLException {
+            return new Plane(rs);
+         }//end read
+      };
+      this._flights = new RowTable<Flight>("Flight", FLIGHT_COLUMNS, FLIGHT_COLUMNS + " WHERE FlightNumber = ?") {
+         Flight read(ResultCursor rs) throws SQLException {
+            return new Flight(rs);
+         }//end read
+      };
+      this._schedules = new Table<List<Schedule>>("Schedule", SCHEDULE_COLUMNS + " ORDER BY ScheduleID",
+                                                  SCHEDULE_COLUMNS + " WHERE FlightNumber = ? ORDER BY ScheduleID") {
+         List<Schedule> add(List<Schedule> held, ResultCursor rs) throws SQLException {
+            List<Schedule> list = held == null ? new ArrayList<Schedule>(2) : held;
+            list.add(new Schedule(rs));
+            return list;
+         }//end add
+      };
+      this._technicians = new RowTable<String>("Technician", TECHNICIAN_COLUMNS,
+                                               TECHNICIAN_COLUMNS + " WHERE TechnicianID = ?") {
+         String read(ResultCursor rs) throws SQLException {
+            return rs.getString(2);
+         }//end read
+      };
+      this._pilots = new RowTable<String>("Pilot", PILOT_COLUMNS, PILOT_COLUMNS + " WHERE PilotID = ?") {
+         String read(ResultCursor rs) throws SQLException {
+            return rs.getString(2);
+         }//end read
+      };
+   }//end ReferenceCache
+
+   /**
+    * Loads every table now instead of on first use.
+    *
+    * @throws java.sql.SQLException when failed to read a table
+    */
+   public void preload() throws SQLException {
+      for (Table<?> t : tables())
+         t.ensureLoaded();
+   }//end preload
+
+   /**
+    * @param planeID the plane
+    * @return the plane, or null if there is none
+    */
+   public Plane getPlane(String planeID) throws SQLException {
+      return this._planes.get(planeID);
+   }//end getPlane
+
+   /**
+    * @param flightNumber the flight
+    * @return the flight, or null if there is none
+    */
+   public Flight getFlight(String flightNumber) throws SQLException {
+      return this._flights.get(flightNumber);
+   }//end getFlight
+
+   /**
+    * @param flightNumber the flight
+    * @return the schedules of the flight in ScheduleID order, possibly none
+    */
+   public List<Schedule> getSchedules(String flightNumber) throws SQLException {
+      List<Schedule> list = this._schedules.get(flightNumber);
+      return list == null ? Collections.<Schedule>emptyList() : Collections.unmodifiableList(list);
+   }//end getSchedules
+
+   /**
+    * @param technicianID the technician
+    * @return the name of the technician, or null if there is none
+    */
+   public String getTechnicianName(String technicianID) throws SQLException {
+      return this._technicians.get(technicianID);
+   }//end getTechnicianName
+
+   /**
+    * @param pilotID the pilot
+    * @return the name of the pilot, or null if there is none
+    */
+   public String getPilotName(String pilotID) throws SQLException {
+      return this._pilots.get(pilotID);
+   }//end getPilotName
+
+   /**
+    * Checks that a plane exists before writing a row that references it;
+    * a plane unknown to the cache is looked up in the database.
+    *
+    * @param planeID the plane
+    * @throws java.lang.IllegalArgumentException if there is no such plane
+    */
+   public void requirePlane(String planeID) throws SQLException {
+      if (this._planes.getConfirmed(planeID) == null)
+         throw new IllegalArgumentException("no plane " + planeID);
+   }//end requirePlane
+
+   /**
+    * Same as requirePlane for a technician.
+    */
+   public void requireTechnician(String technicianID) throws SQLException {
+      if (this._technicians.getConfirmed(technicianID) == null)
+         throw new IllegalArgumentException("no technician " + technicianID);
+   }//end requireTechnician
+
+   /**
+    * Same as requirePlane for a pilot.
+    */
+   public void requirePilot(String pilotID) throws SQLException {
+      if (this._pilots.getConfirmed(pilotID) == null)
+         throw new IllegalArgumentException("no pilot " + pilotID);
+   }//end requirePilot
+
+   /**
+    * Re-reads a plane after a committed write to it.
+    */
+   public void refreshPlane(String planeID) throws SQLException {
+      this._planes.refresh(planeID);
+   }//end refreshPlane
+
+   /**
+    * Forgets a plane after a committed write to it, when it cannot be
+    * re-read right away; it is read again on next use.
+    */
+   public void invalidatePlane(String planeID) {
+      this._planes.invalidate(planeID);
+   }//end invalidatePlane
+
+   /**
+    * Re-reads a flight after a committed write to it.
+    */
+   public void refreshFlight(String flightNumber) throws SQLException {
+      this._flights.refresh(flightNumber);
+   }//end refreshFlight
+
+   /**
+    * Re-reads the schedules of a flight after a committed write to them.
+    */
+   public void refreshSchedules(String flightNumber) throws SQLException {
+      this._schedules.refresh(flightNumber);
+   }//end refreshSchedules
+
+   /**
+    * Re-reads a technician after a committed write to it.
+    */
+   public void refreshTechnician(String technicianID) throws SQLException {
+      this._technicians.refresh(technicianID);
+   }//end refreshTechnician
+
+   /**
+    * Re-reads a pilot after a committed write to it.
+    */
+   public void refreshPilot(String pilotID) throws SQLException {
+      this._pilots.refresh(pilotID);
+   }//end refreshPilot
+
+   /**
+    * Drops everything; tables are loaded again on next use.
+    */
+   public void clear() {
+      for (Table<?> t : tables())
+         t.clear();
+   }//end clear
+
+   /**
+    * @return the share of lookups answered from memory, by table
+    */
+   public Map<String, Double> getHitRatios() {
+      Map<String, Double> ratios = new LinkedHashMap<String, Double>();
+      for (Table<?> t : tables()) {
+         long hits = t._hits.get();
+         long total = hits + t._misses.get();
+         ratios.put(t._name, total == 0 ? 1.0 : (double) hits / total);
+      }//end for
+      return ratios;
+   }//end getHitRatios
+
+   /**
+    * @return the number of keys held, by table
+    */
+   public Map<String, Integer> getSizes() {
+      Map<String, Integer> sizes = new LinkedHashMap<String, Integer>();
+      for (Table<?> t : tables())
+         sizes.put(t._name, t.size());
+      return sizes;
+   }//end getSizes
+
+   private List<Table<?>> tables() {
+      List<Table<?>> list = new ArrayList<Table<?>>(5);
+      list.add(this._planes);
+      list.add(this._flights);
+      list.add(this._schedules);
+      list.add(this._technicians);
+      list.add(this._pilots);
+      return list;
+   }//end tables
+
+}//end ReferenceCache
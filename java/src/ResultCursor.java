@@ -0,0 +1,279 @@
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+
+/**
+ * Forward only cursor over the rows of a query.  Rows are fetched from the
+ * server in batches of the fetch size instead of being copied into memory
+ * up front, and values are read through typed accessors.  The bundled
+ * driver does not implement setFetchSize, so a SELECT with a fetch size is
+ * run as a server side cursor, DECLARE ... CURSOR then FETCH n, inside a
+ * read transaction; anything else, and a fetch size of 0, runs as a plain
+ * statement whose rows the driver reads all at once.  The cursor holds a
+ * pooled connection until it is closed, so it must always be closed,
+ * preferably with try-with-resources.  The time from execution to close
+ * is recorded in the Metrics of the owner under the SQL template.
+ *
+ */
+public class ResultCursor implements AutoCloseable {
+
+   // default number of rows fetched per round trip
+   public static final int DEFAULT_FETCH_SIZE = 500;
+
+   // the cursor is alone on its connection until closed, so one name does
+   private static final String CURSOR = "airline_cursor";
+   private static final String DECLARE = "DECLARE " + CURSOR + " NO SCROLL CURSOR FOR ";
+   private static final String CLOSE = "CLOSE " + CURSOR;
+
+   private final AirlineManagement _esql;
+   private final PooledConnection _pc;
+   private final String _sql;
+   private final Object[] _params;
+   private final long _started;
+   private final PreparedStatement _stmt;
+   private final String _stmtSql;
+   private ResultSet _rs;
+
+   // FETCH statement and rows per fetch, or null and 0 for a plain statement
+   private final String _fetchSql;
+   private final int _fetchSize;
+   private int _fetched = 0;
+
+   // true if the cursor switched autocommit off to declare its cursor
+   private final boolean _ownsTransaction;
+
+   private ResultSetMetaData _meta = null;
+   private String[] _columnNames = null;
+   private int _rowCount = 0;
+   private boolean _failed = false;
+   private boolean _closed = false;
+
+   /**
+    * Runs the query on a borrowed connection.  On failure the connection is
+    * given back before the exception propagates.
+    *
+    * @param esql the owner of the connection pool
+    * @param fetchSize rows fetched per round trip, 0 to read them all at once
+    * @param sql the SQL template with ? placeholders
+    * @param params the typed values bound to the placeholders in order
+    * @return an open cursor positioned before the first row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   static ResultCursor open(AirlineManagement esql, int fetchSize, String sql, Object... params) throws SQLException {
+      long started = System.nanoTime();
+      PooledConnection pc = esql.acquireConnection();
+      StatementCache cache = pc.getStatementCache();
+      String stmtSql = sql;
+      PreparedStatement stmt = null;
+      boolean ownsTransaction = false;
+      try {
+         if (fetchSize <= 0 || !streamable(sql)) {
+            stmt = cache.prepare(sql);
+            StatementCache.bind(stmt, params);
+            ResultSet rs = stmt.executeQuery();
+            return new ResultCursor(esql, pc, sql, params, started, stmt, stmtSql, rs, null, 0, false);
+         }//end if
+         // a cursor only lives as long as its transaction; DECLARE and FETCH
+         // cannot be the body of a PREPARE, so they never get a server plan
+         if (pc.getConnection().getAutoCommit()) {
+            pc.getConnection().setAutoCommit(false);
+            ownsTransaction = true;
+         }//end if
+         String declare = DECLARE + sql;
+         PreparedStatement ps = cache.prepare(declare, false);
+         try {
+            StatementCache.bind(ps, params);
+            ps.execute();
+         } finally {
+            cache.done(declare, ps);
+         }//end try
+         String fetchSql = "FETCH FORWARD " + fetchSize + " FROM " + CURSOR;
+         stmtSql = fetchSql;
+         stmt = cache.prepare(fetchSql, false);
+         ResultSet rs = stmt.executeQuery();
+         return new ResultCursor(esql, pc, sql, params, started, stmt, stmtSql, rs, fetchSql, fetchSize, ownsTransaction);
+      } catch (SQLException e) {
+         if (stmt != null)
+            cache.done(stmtSql, stmt);
+         esql.releaseConnection(pc, false);
+         esql.getMetrics().recordQuery(sql, params, System.nanoTime() - started, false);
+         throw e;
+      }//end try
+   }//end open
+
+   // DECLARE takes a SELECT or VALUES only, without data-modifying WITH
+   private static boolean streamable(String sql) {
+      String s = sql.trim();
+      return s.regionMatches(true, 0, "SELECT", 0, 6) || s.regionMatches(true, 0, "VALUES", 0, 6);
+   }//end streamable
+
+   private ResultCursor(AirlineManagement esql, PooledConnection pc, String sql, Object[] params, long started,
+                        PreparedStatement stmt, String stmtSql, ResultSet rs, String fetchSql, int fetchSize,
+                        boolean ownsTransaction) {
+      this._esql = esql;
+      this._pc = pc;
+      this._sql = sql;
+      this._params = params;
+      this._started = started;
+      this._stmt = stmt;
+      this._stmtSql = stmtSql;
+      this._rs = rs;
+      this._fetchSql = fetchSql;
+      this._fetchSize = fetchSize;
+      this._ownsTransaction = ownsTransaction;
+   }//end ResultCursor
+
+   /**
+    * Advances to the next row.
+    *
+    * @return false when there are no more rows
+    * @throws java.sql.SQLException when failed to fetch the next batch
+    */
+   public boolean next() throws SQLException {
+      try {
+         while (!this._rs.next()) {
+            // a short batch was the last one
+            if (this._fetchSql == null || this._fetched < this._fetchSize)
+               return false;
+            this._rs.close();
+            this._rs = this._stmt.executeQuery();
+            this._fetched = 0;
+         }//end while
+         ++this._fetched;
+         ++this._rowCount;
+         return true;
+      } catch (SQLException e) {
+         this._failed = true;
+         throw e;
+      }//end try
+   }//end next
+
+   /**
+    * @return the number of rows read so far
+    */
+   public int getRowCount() {
+      return this._rowCount;
+   }//end getRowCount
+
+   /**
+    * @return the number of columns of the result
+    */
+   public int getColumnCount() throws SQLException {
+      return meta().getColumnCount();
+   }//end getColumnCount
+
+   /**
+    * @param column the 1-based column index
+    * @return the name of the column as returned by the server
+    */
+   public String getColumnName(int column) throws SQLException {
+      if (this._columnNames == null) {
+         int n = getColumnCount();
+         String[] names = new String[n];
+         for (int i = 1; i <= n; ++i)
+            names[i - 1] = meta().getColumnName(i);
+         this._columnNames = names;
+      }//end if
+      return this._columnNames[column - 1];
+   }//end getColumnName
+
+   /**
+    * @param column the 1-based column index
+    * @return the value as text, or null if it is SQL NULL
+    */
+   public String getString(int column) throws SQLException {
+      return this._rs.getString(column);
+   }//end getString
+
+   /**
+    * @param column the 1-based column index
+    * @return the value, or 0 if it is SQL NULL (check wasNull)
+    */
+   public int getInt(int column) throws SQLException {
+      return this._rs.getInt(column);
+   }//end getInt
+
+   /**
+    * @param column the 1-based column index
+    * @return the value, or 0 if it is SQL NULL (check wasNull)
+    */
+   public long getLong(int column) throws SQLException {
+      return this._rs.getLong(column);
+   }//end getLong
+
+   /**
+    * @param column the 1-based column index
+    * @return the value, or false if it is SQL NULL (check wasNull)
+    */
+   public boolean getBoolean(int column) throws SQLException {
+      return this._rs.getBoolean(column);
+   }//end getBoolean
+
+   /**
+    * @param column the 1-based column index
+    * @return the value, or null if it is SQL NULL
+    */
+   public LocalDate getLocalDate(int column) throws SQLException {
+      Date d = this._rs.getDate(column);
+      return d == null ? null : d.toLocalDate();
+   }//end getLocalDate
+
+   /**
+    * @param column the 1-based column index
+    * @return the value, or null if it is SQL NULL
+    */
+   public BigDecimal getBigDecimal(int column) throws SQLException {
+      return this._rs.getBigDecimal(column);
+   }//end getBigDecimal
+
+   /**
+    * @return true if the last value read was SQL NULL
+    */
+   public boolean wasNull() throws SQLException {
+      return this._rs.wasNull();
+   }//end wasNull
+
+   /**
+    * Closes the result, ends the read transaction and returns the
+    * connection to the pool.  Calling it more than once has no effect.
+    */
+   public void close() {
+      if (this._closed)
+         return;
+      this._closed = true;
+      boolean ok = !this._failed;
+      try {
+         this._rs.close();
+         if (this._ownsTransaction) {
+            // ending the transaction closes the cursor
+            if (ok)
+               this._pc.getConnection().commit();
+            else
+               this._pc.getConnection().rollback();
+            this._pc.getConnection().setAutoCommit(true);
+         } else if (this._fetchSql != null) {
+            try (Statement st = this._pc.getConnection().createStatement()) {
+               st.execute(CLOSE);
+            }//end try
+         }//end if
+      } catch (SQLException e) {
+         ok = false;
+      } finally {
+         this._pc.getStatementCache().done(this._stmtSql, this._stmt);
+         this._esql.releaseConnection(this._pc, ok);
+         this._esql.getMetrics().recordQuery(this._sql, this._params, System.nanoTime() - this._started, ok);
+      }//end try
+   }//end close
+
+   private ResultSetMetaData meta() throws SQLException {
+      if (this._meta == null)
+         this._meta = this._rs.getMetaData();
+      return this._meta;
+   }//end meta
+
+}//end ResultCursor
@@ -0,0 +1,351 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes tabular results to one buffered writer.  Rows are streamed straight
+ * from a ResultCursor (or added one by one) and the writer is flushed in
+ * large chunks, so printing a million rows costs the I/O and little else.
+ * The aligned format looks at the first SAMPLE_ROWS rows to size its
+ * columns and then streams the rest with those widths, so memory stays
+ * bounded whatever the size of the result.
+ *
+ */
+public class ResultRenderer {
+
+   /**
+    * Output formats.
+    */
+   public enum Format {
+      // human readable columns separated by " | "
+      ALIGNED,
+      // tab separated values, one row per line
+      TSV,
+      // RFC 4180 comma separated values
+      CSV,
+      // a JSON array of objects keyed by column name; text lines as {"message": ...}
+      JSON;
+
+      /**
+       * @param name the format name, case insensitive
+       * @return the format, ALIGNED if the name is unknown or null
+       */
+      public static Format parse(String name) {
+         if (name != null) {
+            for (Format f : values())
+               if (f.name().equalsIgnoreCase(name.trim()))
+                  return f;
+         }//end if
+         return ALIGNED;
+      }//end parse
+   }//end Format
+
+   // rows looked at to size the columns of the aligned format
+   public static final int SAMPLE_ROWS = 1000;
+
+   // size of the output buffer
+   public static final int BUFFER_SIZE = 1 << 16;
+
+   // widest a column is padded to; longer values are written in full
+   private static final int MAX_WIDTH = 60;
+
+   private final Writer _out;
+   private final Format _format;
+
+   /**
+    * @param out where the rows are written; wrapped in a large buffer
+    * @param format the output format
+    */
+   public ResultRenderer(Writer out, Format format) {
+      this._out = new BufferedWriter(out, BUFFER_SIZE);
+      this._format = format;
+   }//end ResultRenderer
+
+   /**
+    * @param format the output format
+    * @return a renderer writing to standard out
+    */
+   public static ResultRenderer toStdout(Format format) {
+      return new ResultRenderer(new OutputStreamWriter(System.out), format);
+   }//end toStdout
+
+   /**
+    * @return the output format
+    */
+   public Format getFormat() {
+      return this._format;
+   }//end getFormat
+
+   /**
+    * Writes every remaining row of the cursor, preceded by a header with the
+    * column names if there is at least one row, and flushes.
+    *
+    * @param rs an open cursor, left open
+    * @return the number of rows written
+    * @throws java.sql.SQLException when failed to read the rows
+    * @throws java.io.IOException when failed to write the rows
+    */
+   public int render(ResultCursor rs) throws SQLException, IOException {
+      int numCol = rs.getColumnCount();
+      String[] columns = new String[numCol];
+      for (int i = 1; i <= numCol; ++i)
+         columns[i - 1] = rs.getColumnName(i);
+
+      Table table = begin(columns);
+      while (rs.next()) {
+         for (int i = 1; i <= numCol; ++i)
+            table.cell(rs.getString(i));
+         table.endRow();
+      }//end while
+      return table.end();
+   }//end render
+
+   /**
+    * Starts a table whose rows are added one cell at a time.
+    *
+    * @param columns the column names
+    * @return the table to add rows to; end() must be called
+    */
+   public Table begin(String... columns) {
+      return new Table(columns);
+   }//end begin
+
+   /**
+    * Writes one line of free text, e.g. a group heading between tables.
+    *
+    * @param line the text without line terminator
+    * @throws java.io.IOException when failed to write
+    */
+   public void println(String line) throws IOException {
+      if (this._format == Format.JSON) {
+         this._out.write("{\"message\": ");
+         writeJson(this._out, line);
+         this._out.write("}\n");
+         return;
+      }//end if
+      this._out.write(line);
+      this._out.write('\n');
+   }//end println
+
+   /**
+    * Pushes everything buffered to the underlying writer.
+    *
+    * @throws java.io.IOException when failed to write
+    */
+   public void flush() throws IOException {
+      this._out.flush();
+   }//end flush
+
+   /**
+    * One table being written.  Cells are given left to right and every row
+    * is closed with endRow().
+    */
+   public class Table {
+      private final String[] _columns;
+      private final int[] _widths;
+      private List<String[]> _sample;
+      private String[] _row;
+      private int _col = 0;
+      private int _rows = 0;
+      private boolean _headerWritten = false;
+
+      private Table(String[] columns) {
+         this._columns = columns;
+         this._widths = new int[columns.length];
+         this._row = new String[columns.length];
+         if (ResultRenderer.this._format == Format.ALIGNED)
+            this._sample = new ArrayList<String[]>();
+      }//end Table
+
+      /**
+       * Adds the next cell of the current row.
+       *
+       * @param value the text of the cell, null for SQL NULL
+       */
+      public Table cell(String value) throws IOException {
+         if (this._sample != null) {
+            this._row[this._col++] = value;
+            return this;
+         }//end if
+         if (!this._headerWritten)
+            writeHeader();
+         if (ResultRenderer.this._format == Format.JSON && this._col == 0)
+            ResultRenderer.this._out.write(this._rows == 0 ? "{" : ",\n{");
+         writeCell(this._col++, value);
+         return this;
+      }//end cell
+
+      /**
+       * Closes the current row.
+       */
+      public void endRow() throws IOException {
+         ++this._rows;
+         this._col = 0;
+         if (this._sample != null) {
+            this._sample.add(this._row);
+            this._row = new String[this._columns.length];
+            if (this._sample.size() >= SAMPLE_ROWS)
+               drainSample();
+            return;
+         }//end if
+         ResultRenderer.this._out.write(ResultRenderer.this._format == Format.JSON ? '}' : '\n');
+      }//end endRow
+
+      /**
+       * Writes whatever is still buffered and flushes the output.
+       *
+       * @return the number of rows in the table
+       */
+      public int end() throws IOException {
+         if (this._sample != null)
+            drainSample();
+         if (ResultRenderer.this._format == Format.JSON) {
+            // an empty result is still an array
+            if (!this._headerWritten)
+               writeHeader();
+            ResultRenderer.this._out.write("]\n");
+         }//end if
+         ResultRenderer.this.flush();
+         return this._rows;
+      }//end end
+
+      // sizes the columns from the sampled rows, then writes them
+      private void drainSample() throws IOException {
+         List<String[]> sample = this._sample;
+         this._sample = null;
+         if (sample.isEmpty())
+            return;
+         for (int i = 0; i < this._columns.length; ++i)
+            this._widths[i] = Math.min(MAX_WIDTH, display(this._columns[i]).length());
+         for (String[] row : sample)
+            for (int i = 0; i < row.length; ++i)
+               this._widths[i] = Math.max(this._widths[i], Math.min(MAX_WIDTH, display(row[i]).length()));
+         writeHeader();
+         for (String[] row : sample) {
+            for (int i = 0; i < row.length; ++i)
+               writeCell(i, row[i]);
+            ResultRenderer.this._out.write('\n');
+         }//end for
+      }//end drainSample
+
+      private void writeHeader() throws IOException {
+         this._headerWritten = true;
+         if (ResultRenderer.this._format == Format.JSON) {
+            ResultRenderer.this._out.write('[');
+            return;
+         }//end if
+         for (int i = 0; i < this._columns.length; ++i)
+            writeCell(i, this._columns[i]);
+         ResultRenderer.this._out.write('\n');
+         if (ResultRenderer.this._format == Format.ALIGNED) {
+            Writer out = ResultRenderer.this._out;
+            for (int i = 0; i < this._columns.length; ++i) {
+               if (i > 0)
+                  out.write("-+-");
+               for (int w = 0; w < this._widths[i]; ++w)
+                  out.write('-');
+            }//end for
+            out.write('\n');
+         }//end if
+      }//end writeHeader
+
+      private void writeCell(int col, String value) throws IOException {
+         Writer out = ResultRenderer.this._out;
+         switch (ResultRenderer.this._format) {
+            case TSV:
+               if (col > 0)
+                  out.write('\t');
+               out.write(value == null ? "" : display(value));
+               break;
+            case CSV:
+               if (col > 0)
+                  out.write(',');
+               if (value != null)
+                  writeCsv(out, value);
+               break;
+            case JSON:
+               if (col > 0)
+                  out.write(", ");
+               writeJson(out, this._columns[col]);
+               out.write(": ");
+               if (value == null)
+                  out.write("null");
+               else
+                  writeJson(out, value);
+               break;
+            default:
+               if (col > 0)
+                  out.write(" | ");
+               String text = display(value);
+               out.write(text);
+               // no padding after the last column
+               if (col < this._columns.length - 1)
+                  for (int w = text.length(); w < this._widths[col]; ++w)
+                     out.write(' ');
+               break;
+         }//end switch
+      }//end writeCell
+   }//end Table
+
+   // tabs and line breaks would break the row structure of TSV and ALIGNED
+   private static String display(String value) {
+      if (value == null)
+         return "null";
+      if (value.indexOf('\t') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+         return value;
+      return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+   }//end display
+
+   /**
+    * Writes a value as a quoted JSON string.
+    *
+    * @param out the writer
+    * @param value the text, not null
+    * @throws java.io.IOException when failed to write
+    */
+   public static void writeJson(Writer out, String value) throws IOException {
+      out.write('"');
+      for (int i = 0; i < value.length(); ++i) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '"': out.write("\\\""); break;
+            case '\\': out.write("\\\\"); break;
+            case '\n': out.write("\\n"); break;
+            case '\r': out.write("\\r"); break;
+            case '\t': out.write("\\t"); break;
+            default:
+               if (c < 0x20)
+                  out.write(String.format("\\u%04x", (int) c));
+               else
+                  out.write(c);
+               break;
+         }//end switch
+      }//end for
+      out.write('"');
+   }//end writeJson
+
+   private static void writeCsv(Writer out, String value) throws IOException {
+      boolean quote = false;
+      for (int i = 0; i < value.length() && !quote; ++i) {
+         char c = value.charAt(i);
+         quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }//end for
+      if (!quote) {
+         out.write(value);
+         return;
+      }//end if
+      out.write('"');
+      for (int i = 0; i < value.length(); ++i) {
+         char c = value.charAt(i);
+         if (c == '"')
+            out.write('"');
+         out.write(c);
+      }//end for
+      out.write('"');
+   }//end writeCsv
+
+}//end ResultRenderer
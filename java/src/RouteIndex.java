@@ -0,0 +1,393 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index of the network for flight searches: each (departure city,
+ * arrival city) pair maps to its flights, each flight to its schedules and to
+ * its instances grouped by date.  The on-time score of every instance is
+ * computed once when it is loaded and summed per (flight, date, stops), so a
+ * search only adds up a handful of precomputed numbers.
+ *
+ * The index is loaded from Flight, Schedule and FlightInstance on first use.
+ * Instances inserted or updated since are picked up incrementally at most
+ * every refresh interval, by their ChangeXid: the transaction that last
+ * wrote the row, stamped by a trigger.  Each poll reads the rows written by
+ * transactions at or after the oldest one still running when the previous
+ * poll (or the load) read the table, so a write is seen however long its
+ * transaction stays open; rows already applied are just read again.  A
+ * change can also be pushed at once with refreshInstance; changes to Flight
+ * or Schedule need reload.
+ *
+ */
+public class RouteIndex {
+
+   // how often searches look for FlightInstance rows changed since the last load
+   public static final long DEFAULT_REFRESH_INTERVAL_MS = 5000;
+
+   private static final String LOAD_FLIGHTS =
+      "SELECT FlightNumber, DepartureCity, ArrivalCity FROM Flight";
+   private static final String LOAD_SCHEDULES =
+      "SELECT FlightNumber, DepartureTime, ArrivalTime FROM Schedule";
+   private static final String INSTANCE_COLUMNS =
+      "SELECT FlightInstanceID, FlightNumber, FlightDate, NumOfStops, DepartedOnTime, ArrivedOnTime " +
+      "FROM FlightInstance ";
+   private static final String LOAD_INSTANCES = INSTANCE_COLUMNS;
+   private static final String LOAD_CHANGED_INSTANCES = INSTANCE_COLUMNS + "WHERE ChangeXid >= ?";
+   // no transaction still running, nor any to come, has an older xid
+   private static final String OLDEST_RUNNING_XID = "SELECT txid_snapshot_xmin(txid_current_snapshot())";
+   private static final String LOAD_INSTANCE = INSTANCE_COLUMNS + "WHERE FlightInstanceID = ?";
+
+   /**
+    * One line of a search result, matching a row of the old GROUP BY query.
+    */
+   public static class Result {
+      public final String departureTime;
+      public final String arrivalTime;
+      public final int numOfStops;
+      public final double onTimePercentage;
+
+      Result(String departureTime, String arrivalTime, int numOfStops, double onTimePercentage) {
+         this.departureTime = departureTime;
+         this.arrivalTime = arrivalTime;
+         this.numOfStops = numOfStops;
+         this.onTimePercentage = onTimePercentage;
+      }//end Result
+   }//end Result
+
+   // sum of on-time scores and number of instances
+   private static class Score {
+      long sum = 0;
+      int count = 0;
+   }//end Score
+
+   private static class FlightEntry {
+      final String number;
+      final List<String[]> schedules = new ArrayList<String[]>();
+      // epoch day -> stops -> score of the instances of that day
+      final Map<Long, TreeMap<Integer, Score>> days = new HashMap<Long, TreeMap<Integer, Score>>();
+
+      FlightEntry(String number) {
+         this.number = number;
+      }//end FlightEntry
+   }//end FlightEntry
+
+   // what an instance contributed, so it can be taken back out on refresh
+   private static class InstanceEntry {
+      final String flightNumber;
+      final long epochDay;
+      final int stops;
+      final int score;
+
+      InstanceEntry(String flightNumber, long epochDay, int stops, int score) {
+         this.flightNumber = flightNumber;
+         this.epochDay = epochDay;
+         this.stops = stops;
+         this.score = score;
+      }//end InstanceEntry
+   }//end InstanceEntry
+
+   private final AirlineManagement _esql;
+   private final long _refreshIntervalMs;
+   private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+
+   // guarded by _lock
+   private Map<String, List<FlightEntry>> _routes = new HashMap<String, List<FlightEntry>>();
+   private Map<String, FlightEntry> _flights = new HashMap<String, FlightEntry>();
+   private Map<Integer, InstanceEntry> _instances = new HashMap<Integer, InstanceEntry>();
+   // the oldest transaction running when the table was last read; the next
+   // poll reads the rows it and later transactions wrote
+   private long _pollFrom = 0;
+   private boolean _loaded = false;
+   private volatile long _lastRefreshMillis = 0;
+
+   public RouteIndex(AirlineManagement esql) {
+      this(esql, Long.getLong("airline.routes.refreshIntervalMs", DEFAULT_REFRESH_INTERVAL_MS));
+   }//end RouteIndex
+
+   public RouteIndex(AirlineManagement esql, long refreshIntervalMs) {
+      this._esql = esql;
+      this._refreshIntervalMs = refreshIntervalMs;
+   }//end RouteIndex
+
+   /**
+    * Finds the departure/arrival times, stops and on-time percentage of the
+    * flights between two cities on a date, sorted by departure time.
+    *
+    * @param departureCity the exact departure city
+    * @param arrivalCity the exact arrival city
+    * @param date the flight date
+    * @return one result per (departure time, arrival time, stops)
+    * @throws java.sql.SQLException when the index had to be loaded and failed
+    */
+   public List<Result> search(String departureCity, String arrivalCity, LocalDate date) throws SQLException {
+      ensureFresh();
+      long day = date.toEpochDay();
+      // (departure, arrival, stops) -> summed score, like the old GROUP BY
+      TreeMap<String, Score> groups = new TreeMap<String, Score>();
+      Map<String, Object[]> keys = new HashMap<String, Object[]>();
+
+      this._lock.readLock().lock();
+      try {
+         List<FlightEntry> flights = this._routes.get(routeKey(departureCity, arrivalCity));
+         if (flights == null)
+            return Collections.emptyList();
+         for (FlightEntry f : flights) {
+            TreeMap<Integer, Score> byStops = f.days.get(Long.valueOf(day));
+            if (byStops == null)
+               continue;
+            for (String[] s : f.schedules) {
+               for (Map.Entry<Integer, Score> e : byStops.entrySet()) {
+                  String key = s[0] + '\u0000' + s[1] + '\u0000' + e.getKey();
+                  Score g = groups.get(key);
+                  if (g == null) {
+                     g = new Score();
+                     groups.put(key, g);
+                     keys.put(key, new Object[]{s[0], s[1], e.getKey()});
+                  }//end if
+                  g.sum += e.getValue().sum;
+                  g.count += e.getValue().count;
+               }//end for
+            }//end for
+         }//end for
+      } finally {
+         this._lock.readLock().unlock();
+      }//end try
+
+      List<Result> results = new ArrayList<Result>(groups.size());
+      for (Map.Entry<String, Score> e : groups.entrySet()) {
+         Object[] k = keys.get(e.getKey());
+         Score g = e.getValue();
+         results.add(new Result((String) k[0], (String) k[1], ((Integer) k[2]).intValue(),
+                                g.count == 0 ? 0.0 : (double) g.sum / g.count));
+      }//end for
+      return results;
+   }//end search
+
+   /**
+    * Rebuilds the whole index from the database.
+    *
+    * @throws java.sql.SQLException when failed to read the tables
+    */
+   public void reload() throws SQLException {
+      Map<String, List<FlightEntry>> routes = new HashMap<String, List<FlightEntry>>();
+      Map<String, FlightEntry> flights = new HashMap<String, FlightEntry>();
+      Map<Integer, InstanceEntry> instances = new HashMap<Integer, InstanceEntry>();
+      long pollFrom = oldestRunningXid(this._esql);
+
+      try (ResultCursor rs = this._esql.openCursor(LOAD_FLIGHTS)) {
+         while (rs.next()) {
+            FlightEntry f = new FlightEntry(rs.getString(1));
+            flights.put(f.number, f);
+            String key = routeKey(rs.getString(2), rs.getString(3));
+            List<FlightEntry> route = routes.get(key);
+            if (route == null) {
+               route = new ArrayList<FlightEntry>();
+               routes.put(key, route);
+            }//end if
+            route.add(f);
+         }//end while
+      }//end try
+      try (ResultCursor rs = this._esql.openCursor(LOAD_SCHEDULES)) {
+         while (rs.next()) {
+            FlightEntry f = flights.get(rs.getString(1));
+            if (f != null)
+               f.schedules.add(new String[]{rs.getString(2), rs.getString(3)});
+         }//end while
+      }//end try
+      try (ResultCursor rs = this._esql.openCursor(LOAD_INSTANCES)) {
+         while (rs.next()) {
+            InstanceEntry ie = readInstance(rs);
+            if (ie == null)
+               continue;
+            instances.put(Integer.valueOf(rs.getInt(1)), ie);
+            add(flights, ie);
+         }//end while
+      }//end try
+
+      this._lock.writeLock().lock();
+      try {
+         this._routes = routes;
+         this._flights = flights;
+         this._instances = instances;
+         this._pollFrom = pollFrom;
+         this._loaded = true;
+         this._lastRefreshMillis = System.currentTimeMillis();
+      } finally {
+         this._lock.writeLock().unlock();
+      }//end try
+   }//end reload
+
+   /**
+    * Re-reads one instance after its row was inserted, updated or deleted.
+    *
+    * @param flightInstanceID the instance that changed
+    * @throws java.sql.SQLException when failed to read the row
+    */
+   public void refreshInstance(int flightInstanceID) throws SQLException {
+      InstanceEntry fresh = null;
+      try (ResultCursor rs = this._esql.openCursor(0, LOAD_INSTANCE, flightInstanceID)) {
+         if (rs.next())
+            fresh = readInstance(rs);
+      }//end try
+      this._lock.writeLock().lock();
+      try {
+         if (!this._loaded)
+            return;
+         apply(flightInstanceID, fresh);
+      } finally {
+         this._lock.writeLock().unlock();
+      }//end try
+   }//end refreshInstance
+
+   /**
+    * Applies the FlightInstance rows inserted or updated since the last
+    * load or refresh, including those whose transaction was still open then.
+    *
+    * @throws java.sql.SQLException when failed to read the rows
+    */
+   public void refreshChangedInstances() throws SQLException {
+      long since;
+      this._lock.readLock().lock();
+      try {
+         since = this._pollFrom;
+      } finally {
+         this._lock.readLock().unlock();
+      }//end try
+
+      // taken before the rows are read, so it is no newer than their snapshot
+      long pollFrom = oldestRunningXid(this._esql);
+      List<Object[]> changed = new ArrayList<Object[]>();
+      try (ResultCursor rs = this._esql.openCursor(LOAD_CHANGED_INSTANCES, since)) {
+         while (rs.next()) {
+            changed.add(new Object[]{Integer.valueOf(rs.getInt(1)), readInstance(rs)});
+         }//end while
+      }//end try
+
+      this._lock.writeLock().lock();
+      try {
+         for (Object[] c : changed)
+            apply(((Integer) c[0]).intValue(), (InstanceEntry) c[1]);
+         this._pollFrom = Math.max(this._pollFrom, pollFrom);
+         this._lastRefreshMillis = System.currentTimeMillis();
+      } finally {
+         this._lock.writeLock().unlock();
+      }//end try
+   }//end refreshChangedInstances
+
+   /**
+    * A write not yet visible to a query run after this call belongs to a
+    * transaction whose xid is at least the one returned.
+    *
+    * @param esql the database handle
+    * @return the xid of the oldest transaction still running
+    * @throws java.sql.SQLException when failed to read the snapshot
+    */
+   static long oldestRunningXid(AirlineManagement esql) throws SQLException {
+      try (ResultCursor rs = esql.openCursor(0, OLDEST_RUNNING_XID)) {
+         rs.next();
+         return rs.getLong(1);
+      }//end try
+   }//end oldestRunningXid
+
+   // loads on first use, then polls for changed instances once per interval
+   private void ensureFresh() throws SQLException {
+      boolean loaded;
+      this._lock.readLock().lock();
+      try {
+         loaded = this._loaded;
+      } finally {
+         this._lock.readLock().unlock();
+      }//end try
+      if (!loaded) {
+         synchronized (this) {
+            if (!this._loaded)
+               reload();
+         }//end synchronized
+         return;
+      }//end if
+      if (System.currentTimeMillis() - this._lastRefreshMillis >= this._refreshIntervalMs) {
+         synchronized (this) {
+            if (System.currentTimeMillis() - this._lastRefreshMillis >= this._refreshIntervalMs)
+               refreshChangedInstances();
+         }//end synchronized
+      }//end if
+   }//end ensureFresh
+
+   // replaces what an instance contributed; fresh is null if the row is gone
+   private void apply(int flightInstanceID, InstanceEntry fresh) {
+      Integer key = Integer.valueOf(flightInstanceID);
+      InstanceEntry old = this._instances.remove(key);
+      if (old != null)
+         remove(this._flights, old);
+      if (fresh != null && this._flights.containsKey(fresh.flightNumber)) {
+         this._instances.put(key, fresh);
+         add(this._flights, fresh);
+      }//end if
+   }//end apply
+
+   private static void add(Map<String, FlightEntry> flights, InstanceEntry ie) {
+      FlightEntry f = flights.get(ie.flightNumber);
+      if (f == null)
+         return;
+      Long day = Long.valueOf(ie.epochDay);
+      TreeMap<Integer, Score> byStops = f.days.get(day);
+      if (byStops == null) {
+         byStops = new TreeMap<Integer, Score>();
+         f.days.put(day, byStops);
+      }//end if
+      Integer stops = Integer.valueOf(ie.stops);
+      Score score = byStops.get(stops);
+      if (score == null) {
+         score = new Score();
+         byStops.put(stops, score);
+      }//end if
+      score.sum += ie.score;
+      score.count += 1;
+   }//end add
+
+   private static void remove(Map<String, FlightEntry> flights, InstanceEntry ie) {
+      FlightEntry f = flights.get(ie.flightNumber);
+      if (f == null)
+         return;
+      Long day = Long.valueOf(ie.epochDay);
+      TreeMap<Integer, Score> byStops = f.days.get(day);
+      if (byStops == null)
+         return;
+      Integer stops = Integer.valueOf(ie.stops);
+      Score score = byStops.get(stops);
+      if (score == null)
+         return;
+      score.sum -= ie.score;
+      score.count -= 1;
+      if (score.count <= 0)
+         byStops.remove(stops);
+      if (byStops.isEmpty())
+         f.days.remove(day);
+   }//end remove
+
+   // columns as selected by INSTANCE_COLUMNS; null if the date is missing
+   private static InstanceEntry readInstance(ResultCursor rs) throws SQLException {
+      String flightNumber = rs.getString(2);
+      LocalDate date = rs.getLocalDate(3);
+      if (flightNumber == null || date == null)
+         return null;
+      int stops = rs.getInt(4);
+      boolean departed = rs.getBoolean(5);
+      boolean arrived = rs.getBoolean(6);
+      // same scoring as the old SQL: both on time 100, one of them 50, else 0
+      int score = departed && arrived ? 100 : (departed || arrived ? 50 : 0);
+      return new InstanceEntry(flightNumber, date.toEpochDay(), stops, score);
+   }//end readInstance
+
+   private static String routeKey(String departureCity, String arrivalCity) {
+      return departureCity + '\u0000' + arrivalCity;
+   }//end routeKey
+
+}//end RouteIndex
@@ -0,0 +1,391 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Books seats on flight instances without overselling.  The seat claim, the
+ * reserved/waitlist decision and the Reservation insert are one SQL statement:
+ * a conditional UPDATE of FlightInstance.SeatsSold that only succeeds while
+ * seats remain, feeding an INSERT that picks the status from its outcome.
+ * The row lock taken by that UPDATE serializes concurrent bookings of the
+ * same instance, in this process and any other.
+ *
+ * A per-instance counter of remaining seats is kept in memory and lowered
+ * with compare-and-set from every booking result.  Once it reaches zero,
+ * bookings on that instance go straight to the waitlist without touching
+ * the hot FlightInstance row, until the counter expires or is invalidated.
+ *
+ * Seats freed by a cancellation go to the waitlist first: a booking only
+ * claims a seat when no one is waiting for the instance, and the
+ * WaitlistPromoter moves waiting reservations into free seats in booking
+ * order.
+ *
+ * Groups are booked in one transaction with a fixed number of round trips
+ * whatever their size: the instances are locked in id order with SELECT ... FOR UPDATE,
+ * seats are given to the passengers in the order of the request while
+ * they last, and SeatsSold and the Reservation rows are written in two
+ * JDBC batches.
+ *
+ */
+public class SeatInventory {
+
+   // how long a remaining-seat counter is trusted before asking the database again
+   public static final long DEFAULT_HINT_TTL_MS = 10000;
+
+   // a free seat goes to the waitlist first, so a booking only claims one
+   // when no one is waiting; the last column is the seats that were free
+   private static final String CLAIM_AND_INSERT =
+      "WITH claimed AS (" +
+      "  UPDATE FlightInstance SET SeatsSold = SeatsSold + 1 " +
+      "  WHERE FlightInstanceID = ? AND SeatsSold < SeatsTotal " +
+      "  AND NOT EXISTS (SELECT 1 FROM Reservation w WHERE w.FlightInstanceID = ? AND w.Status = 'waitlist') " +
+      "  RETURNING SeatsTotal - SeatsSold AS Remaining) " +
+      "INSERT INTO Reservation (ReservationID, CustomerID, FlightInstanceID, Status) " +
+      "SELECT ?, ?, ?, CASE WHEN EXISTS (SELECT 1 FROM claimed) THEN 'reserved' ELSE 'waitlist' END " +
+      "RETURNING Status, (SELECT Remaining FROM claimed), " +
+      "(SELECT SeatsTotal - SeatsSold FROM FlightInstance WHERE FlightInstanceID = ?)";
+
+   // deletes a reservation not yet flown and gives its seat back
+   private static final String CANCEL_RETURNING =
+      "RETURNING FlightInstanceID, Status, CustomerID), " +
+      "freed AS (" +
+      "  UPDATE FlightInstance SET SeatsSold = SeatsSold - 1 " +
+      "  WHERE FlightInstanceID IN (SELECT FlightInstanceID FROM gone WHERE Status = 'reserved') " +
+      "  RETURNING FlightInstanceID) " +
+      "SELECT FlightInstanceID, Status, CustomerID FROM gone";
+   private static final String CANCEL =
+      "WITH gone AS (DELETE FROM Reservation WHERE ReservationID = ? AND Status <> 'flown' " + CANCEL_RETURNING;
+   private static final String CANCEL_OWN =
+      "WITH gone AS (DELETE FROM Reservation WHERE ReservationID = ? AND CustomerID = ? AND Status <> 'flown' " +
+      CANCEL_RETURNING;
+
+   // instances locked per statement: the IN list is padded to a power of two
+   // so that few distinct statements reach the cache
+   private static final int MAX_LOCK_LIST = 256;
+
+   // passengers booked by one reserveGroup call
+   public static final int MAX_GROUP = 1000;
+
+   private static final String ADD_SEATS_SOLD =
+      "UPDATE FlightInstance SET SeatsSold = SeatsSold + ? WHERE FlightInstanceID = ?";
+
+   private static final String INSERT_RESERVATION =
+      "INSERT INTO Reservation (ReservationID, CustomerID, FlightInstanceID, Status) VALUES (?, ?, ?, ?)";
+
+   private static final String INSERT_WAITLIST =
+      "INSERT INTO Reservation (ReservationID, CustomerID, FlightInstanceID, Status) " +
+      "VALUES (?, ?, ?, 'waitlist')";
+
+   /**
+    * Outcome of one booking.
+    */
+   public static class Booking {
+      public final String reservationID;
+      public final int customerID;
+      public final int flightInstanceID;
+      public final boolean reserved;
+      // seats left after this booking, or -1 when not known
+      public final int seatsRemaining;
+
+      Booking(String reservationID, int customerID, int flightInstanceID, boolean reserved, int seatsRemaining) {
+         this.reservationID = reservationID;
+         this.customerID = customerID;
+         this.flightInstanceID = flightInstanceID;
+         this.reserved = reserved;
+         this.seatsRemaining = seatsRemaining;
+      }//end Booking
+
+      /**
+       * @return the Reservation.Status value written for this booking
+       */
+      public String getStatus() {
+         return this.reserved ? "reserved" : "waitlist";
+      }//end getStatus
+   }//end Booking
+
+   // remaining seats of one instance as last seen, and when it was loaded
+   private static class Hint {
+      final AtomicInteger remaining;
+      final long loadedAtMillis;
+
+      Hint(int remaining) {
+         this.remaining = new AtomicInteger(remaining);
+         this.loadedAtMillis = System.currentTimeMillis();
+      }//end Hint
+   }//end Hint
+
+   private final AirlineManagement _esql;
+   private final long _hintTtlMs;
+   private final ConcurrentHashMap<Integer, Hint> _hints = new ConcurrentHashMap<Integer, Hint>();
+
+   public SeatInventory(AirlineManagement esql) {
+      this(esql, Long.getLong("airline.seats.hintTtlMs", DEFAULT_HINT_TTL_MS));
+   }//end SeatInventory
+
+   public SeatInventory(AirlineManagement esql, long hintTtlMs) {
+      this._esql = esql;
+      this._hintTtlMs = hintTtlMs;
+   }//end SeatInventory
+
+   /**
+    * Books one seat for the customer, or puts them on the waitlist when the
+    * instance is full, in a single round trip.
+    *
+    * @param customerID the customer making the reservation
+    * @param flightInstanceID the flight instance to book
+    * @return the reservation number and the reserved/waitlist decision
+    * @throws java.sql.SQLException when the instance or customer does not exist
+    */
+   public Booking reserve(int customerID, int flightInstanceID) throws SQLException {
+      String reservationID = this._esql.getIdAllocator().nextReservationID();
+      Integer key = Integer.valueOf(flightInstanceID);
+
+      Hint hint = this._hints.get(key);
+      if (hint != null && isFresh(hint) && hint.remaining.get() <= 0) {
+         // known to be full: skip the row lock on FlightInstance; a seat freed
+         // since, e.g. by another process, goes to the waitlist as it should
+         this._esql.executeUpdate(INSERT_WAITLIST, reservationID, customerID, flightInstanceID);
+         this._esql.getWaitlistPromoter().signal(flightInstanceID);
+         return new Booking(reservationID, customerID, flightInstanceID, false, 0);
+      }//end if
+
+      boolean reserved;
+      int remaining;
+      int free;
+      // fetch size 0 keeps the statement in autocommit: one round trip, no BEGIN/COMMIT
+      try (ResultCursor rs = this._esql.openCursor(0, CLAIM_AND_INSERT, flightInstanceID, flightInstanceID,
+            reservationID, customerID, flightInstanceID, flightInstanceID)) {
+         rs.next();
+         reserved = "reserved".equals(rs.getString(1));
+         free = rs.getInt(3);
+         // waitlisted behind others, seats may still be free
+         remaining = reserved ? rs.getInt(2) : Math.max(0, free);
+      }//end try
+      if (!reserved && free > 0)
+         // waitlisted behind others while seats are free: have them promoted
+         this._esql.getWaitlistPromoter().signal(flightInstanceID);
+      observe(key, remaining);
+      if (reserved)
+         this._esql.getFlightStats().seatsChanged();
+      return new Booking(reservationID, customerID, flightInstanceID, reserved, remaining);
+   }//end reserve
+
+   /**
+    * Books a group: every (customer, flight instance) pair gets a seat while
+    * the instance has some left, in the order given, and a place on the
+    * waitlist after that.  Either every booking is written or none is.
+    *
+    * @param customerIDs the customers, one per passenger
+    * @param flightInstanceIDs the instance each passenger flies on
+    * @return one booking per passenger, in the order given
+    * @throws java.lang.IllegalArgumentException if the lists differ in length,
+    *         are larger than MAX_GROUP or name an instance that does not exist
+    * @throws java.sql.SQLException when a customer does not exist or the write failed
+    */
+   public List<Booking> reserveGroup(int[] customerIDs, int[] flightInstanceIDs) throws SQLException {
+      int n = customerIDs.length;
+      if (n != flightInstanceIDs.length)
+         throw new IllegalArgumentException("one flight instance per customer");
+      if (n > MAX_GROUP)
+         throw new IllegalArgumentException("a group has at most " + MAX_GROUP + " passengers");
+      if (n == 0)
+         return Collections.emptyList();
+
+      // passengers wanted per instance, in id order: the order rows are locked in
+      TreeMap<Integer, Integer> wanted = new TreeMap<Integer, Integer>();
+      for (int id : flightInstanceIDs)
+         wanted.merge(id, 1, Integer::sum);
+      long[] ids = this._esql.getIdAllocator().next(IdAllocator.RESERVATION_SEQ, n);
+
+      List<Booking> bookings = new ArrayList<Booking>(n);
+      Map<Integer, Integer> left = new HashMap<Integer, Integer>();
+      List<Integer> waiting = new ArrayList<Integer>();
+      PooledConnection pc = this._esql.acquireConnection();
+      boolean ok = false;
+      try {
+         Connection conn = pc.getConnection();
+         conn.setAutoCommit(false);
+         StatementCache cache = pc.getStatementCache();
+
+         List<Integer> instances = new ArrayList<Integer>(wanted.keySet());
+         for (int from = 0; from < instances.size(); from += MAX_LOCK_LIST)
+            lock(cache, instances.subList(from, Math.min(from + MAX_LOCK_LIST, instances.size())), left, waiting);
+         for (Integer id : instances)
+            if (!left.containsKey(id))
+               throw new IllegalArgumentException("no flight instance " + id);
+         // instances with a waitlist keep their free seats for it
+         for (Integer id : waiting)
+            left.put(id, 0);
+
+         // seats go to the passengers in request order while they last
+         Map<Integer, Integer> claimed = new HashMap<Integer, Integer>();
+         for (int i = 0; i < n; ++i) {
+            Integer id = flightInstanceIDs[i];
+            int remaining = left.get(id);
+            boolean reserved = remaining > 0;
+            if (reserved) {
+               left.put(id, --remaining);
+               claimed.merge(id, 1, Integer::sum);
+            }//end if
+            bookings.add(new Booking(IdAllocator.formatReservationID(ids[i]), customerIDs[i], id,
+                                     reserved, remaining));
+         }//end for
+
+         PreparedStatement update = cache.prepare(ADD_SEATS_SOLD);
+         try {
+            for (Map.Entry<Integer, Integer> e : claimed.entrySet()) {
+               StatementCache.bind(update, e.getValue(), e.getKey());
+               update.addBatch();
+            }//end for
+            if (!claimed.isEmpty())
+               update.executeBatch();
+         } finally {
+            update.clearBatch();
+            cache.done(ADD_SEATS_SOLD, update);
+         }//end try
+
+         PreparedStatement insert = cache.prepare(INSERT_RESERVATION);
+         try {
+            for (Booking b : bookings) {
+               StatementCache.bind(insert, b.reservationID, b.customerID, b.flightInstanceID, b.getStatus());
+               insert.addBatch();
+            }//end for
+            insert.executeBatch();
+         } finally {
+            insert.clearBatch();
+            cache.done(INSERT_RESERVATION, insert);
+         }//end try
+
+         conn.commit();
+         conn.setAutoCommit(true);
+         ok = true;
+      } finally {
+         // the pool rolls back a transaction left open
+         this._esql.releaseConnection(pc, ok);
+      }//end try
+
+      for (Map.Entry<Integer, Integer> e : left.entrySet())
+         observe(e.getKey(), e.getValue());
+      for (Integer id : waiting)
+         this._esql.getWaitlistPromoter().signal(id);
+      for (Booking b : bookings)
+         if (b.reserved)
+            this._esql.getFlightStats().seatsChanged();
+      return bookings;
+   }//end reserveGroup
+
+   // locks the instances in id order and reads the seats they have left;
+   // instances with free seats and a waitlist are added to waiting
+   private static void lock(StatementCache cache, List<Integer> instances, Map<Integer, Integer> left,
+                            List<Integer> waiting) throws SQLException {
+      int size = Integer.highestOneBit(instances.size());
+      if (size < instances.size())
+         size <<= 1;
+      String sql = lockStatement(size);
+      Object[] params = new Object[size];
+      for (int i = 0; i < size; ++i)
+         params[i] = instances.get(Math.min(i, instances.size() - 1));
+      PreparedStatement ps = cache.prepare(sql);
+      try {
+         StatementCache.bind(ps, params);
+         try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+               int free = Math.max(0, rs.getInt(2));
+               left.put(rs.getInt(1), free);
+               if (free > 0 && rs.getBoolean(3))
+                  waiting.add(rs.getInt(1));
+            }//end while
+         }//end try
+      } finally {
+         cache.done(sql, ps);
+      }//end try
+   }//end lock
+
+   private static String lockStatement(int size) {
+      StringBuilder sb = new StringBuilder(
+         "SELECT fi.FlightInstanceID, fi.SeatsTotal - fi.SeatsSold, EXISTS (SELECT 1 FROM Reservation w " +
+         "WHERE w.FlightInstanceID = fi.FlightInstanceID AND w.Status = 'waitlist') " +
+         "FROM FlightInstance fi WHERE fi.FlightInstanceID IN (");
+      for (int i = 0; i < size; ++i)
+         sb.append(i == 0 ? "?" : ", ?");
+      return sb.append(") ORDER BY fi.FlightInstanceID FOR UPDATE OF fi").toString();
+   }//end lockStatement
+
+   /**
+    * Cancels a reservation that has not flown.  A reserved seat is given
+    * back and the waitlist of the instance is signalled for promotion.
+    *
+    * @param reservationID the reservation number
+    * @param customerID the customer who must own the reservation, or null for any
+    * @return the cancelled booking, reserved if it held a seat, or null if
+    *         there was no such reservation to cancel
+    * @throws java.sql.SQLException when the delete failed
+    */
+   public Booking cancel(String reservationID, Integer customerID) throws SQLException {
+      Booking cancelled = null;
+      try (ResultCursor rs = customerID == null
+              ? this._esql.openCursor(0, CANCEL, reservationID)
+              : this._esql.openCursor(0, CANCEL_OWN, reservationID, customerID)) {
+         if (rs.next())
+            cancelled = new Booking(reservationID, rs.getInt(3), rs.getInt(1),
+                                    "reserved".equals(rs.getString(2)), -1);
+      }//end try
+      if (cancelled != null && cancelled.reserved) {
+         invalidate(cancelled.flightInstanceID);
+         this._esql.getFlightStats().seatsChanged();
+         this._esql.getWaitlistPromoter().signal(cancelled.flightInstanceID);
+      }//end if
+      return cancelled;
+   }//end cancel
+
+   /**
+    * Forgets what is known about an instance, e.g. after a seat was freed,
+    * so the next booking asks the database again.
+    *
+    * @param flightInstanceID the flight instance whose seats changed
+    */
+   public void invalidate(int flightInstanceID) {
+      this._hints.remove(Integer.valueOf(flightInstanceID));
+   }//end invalidate
+
+   /**
+    * Forgets everything known about every instance.
+    */
+   public void invalidateAll() {
+      this._hints.clear();
+   }//end invalidateAll
+
+   // bookings only ever lower the remaining count, so concurrent results are
+   // merged by keeping the smallest value seen
+   private void observe(Integer key, int remaining) {
+      Hint hint = this._hints.get(key);
+      if (hint == null || !isFresh(hint)) {
+         Hint fresh = new Hint(remaining);
+         if (hint == null ? this._hints.putIfAbsent(key, fresh) == null
+                          : this._hints.replace(key, hint, fresh))
+            return;
+         hint = this._hints.get(key);
+         if (hint == null)
+            return;
+      }//end if
+      while (true) {
+         int current = hint.remaining.get();
+         if (remaining >= current || hint.remaining.compareAndSet(current, remaining))
+            return;
+      }//end while
+   }//end observe
+
+   private boolean isFresh(Hint hint) {
+      return System.currentTimeMillis() - hint.loadedAtMillis < this._hintTtlMs;
+   }//end isFresh
+
+}//end SeatInventory
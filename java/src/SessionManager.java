@@ -0,0 +1,180 @@
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Logs users in once and hands out session tokens, so later calls are
+ * authorised from memory instead of querying Users again.
+ *
+ * Sessions live in a bounded, access ordered map: a session expires after
+ * airline.sessions.ttlMs without use, and when more than
+ * airline.sessions.max are open the least recently used one is dropped.
+ * Passwords are checked with PasswordHasher; a legacy plaintext password,
+ * or one hashed at another cost, is replaced by a fresh hash on a
+ * successful login.
+ *
+ */
+public class SessionManager {
+
+   // default idle time after which a session expires
+   public static final long DEFAULT_TTL_MS = 30 * 60 * 1000L;
+
+   // default number of open sessions
+   public static final int DEFAULT_MAX_SESSIONS = 10000;
+
+   private static final String FIND_USER =
+      "SELECT userID, password, role, role_id FROM Users WHERE username = ?";
+   // only replaces the value that was verified, so a concurrent change wins
+   private static final String UPGRADE_PASSWORD =
+      "UPDATE Users SET password = ? WHERE userID = ? AND password = ?";
+
+   private static final SecureRandom RANDOM = new SecureRandom();
+
+   /**
+    * A logged in user.
+    */
+   public static class Session {
+      public final String token;
+      public final String userID;
+      public final String username;
+      public final String role;
+      public final String roleID;
+      volatile long expiresAt;
+
+      Session(String token, String userID, String username, String role, String roleID, long expiresAt) {
+         this.token = token;
+         this.userID = userID;
+         this.username = username;
+         this.role = role;
+         this.roleID = roleID;
+         this.expiresAt = expiresAt;
+      }//end Session
+
+      /**
+       * @param role a role name, in any case
+       * @return true if the user has this role
+       */
+      public boolean hasRole(String role) {
+         return this.role != null && this.role.equalsIgnoreCase(role);
+      }//end hasRole
+   }//end Session
+
+   private final AirlineManagement _esql;
+   private final PasswordHasher _hasher;
+   private final long _ttlMs;
+   private final int _maxSessions;
+
+   // guarded by this; access ordered so the eldest entry is the least recently used
+   private final LinkedHashMap<String, Session> _sessions =
+      new LinkedHashMap<String, Session>(16, 0.75f, true);
+
+   public SessionManager(AirlineManagement esql) {
+      this(esql, new PasswordHasher(),
+           Long.getLong("airline.sessions.ttlMs", DEFAULT_TTL_MS),
+           Integer.getInteger("airline.sessions.max", DEFAULT_MAX_SESSIONS));
+   }//end SessionManager
+
+   public SessionManager(AirlineManagement esql, PasswordHasher hasher, long ttlMs, int maxSessions) {
+      this._esql = esql;
+      this._hasher = hasher;
+      this._ttlMs = ttlMs;
+      this._maxSessions = Math.max(1, maxSessions);
+   }//end SessionManager
+
+   /**
+    * @return the hasher used for stored passwords
+    */
+   public PasswordHasher getHasher() {
+      return this._hasher;
+   }//end getHasher
+
+   /**
+    * Verifies the credentials and opens a session.
+    *
+    * @param username the user name
+    * @param password the password in clear
+    * @return the new session, or null if the credentials are wrong
+    * @throws java.sql.SQLException when failed to read or upgrade the user
+    */
+   public Session login(String username, String password) throws SQLException {
+      String userID;
+      String stored;
+      String role;
+      String roleID;
+      try (ResultCursor rs = this._esql.openCursor(0, FIND_USER, username)) {
+         if (!rs.next())
+            return null;
+         userID = rs.getString(1);
+         stored = rs.getString(2);
+         role = rs.getString(3);
+         roleID = rs.getString(4);
+      }//end try
+      if (!this._hasher.verify(password, stored))
+         return null;
+      if (this._hasher.needsRehash(stored))
+         this._esql.executeUpdate(UPGRADE_PASSWORD, this._hasher.hash(password), Integer.parseInt(userID), stored);
+
+      byte[] bytes = new byte[32];
+      RANDOM.nextBytes(bytes);
+      String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+      Session session = new Session(token, userID, username, role, roleID, System.currentTimeMillis() + this._ttlMs);
+      synchronized (this) {
+         this._sessions.put(token, session);
+         evict(System.currentTimeMillis());
+      }//end synchronized
+      return session;
+   }//end login
+
+   /**
+    * Looks a token up and extends its session.
+    *
+    * @param token the token returned by login
+    * @return the session, or null if the token is unknown or expired
+    */
+   public synchronized Session get(String token) {
+      if (token == null)
+         return null;
+      Session session = this._sessions.get(token);
+      if (session == null)
+         return null;
+      long now = System.currentTimeMillis();
+      if (session.expiresAt <= now) {
+         this._sessions.remove(token);
+         return null;
+      }//end if
+      session.expiresAt = now + this._ttlMs;
+      return session;
+   }//end get
+
+   /**
+    * Ends a session.  Unknown tokens are ignored.
+    *
+    * @param token the token returned by login
+    */
+   public synchronized void logout(String token) {
+      if (token != null)
+         this._sessions.remove(token);
+   }//end logout
+
+   /**
+    * @return the number of sessions held, expired ones included until evicted
+    */
+   public synchronized int size() {
+      return this._sessions.size();
+   }//end size
+
+   // drops expired sessions from the cold end, then the coldest above the bound
+   private void evict(long now) {
+      Iterator<Map.Entry<String, Session>> it = this._sessions.entrySet().iterator();
+      while (it.hasNext()) {
+         Session s = it.next().getValue();
+         if (s.expiresAt > now && this._sessions.size() <= this._maxSessions)
+            break;
+         it.remove();
+      }//end while
+   }//end evict
+
+}//end SessionManager
@@ -0,0 +1,228 @@
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache of PreparedStatements for one connection, keyed
+ * by SQL template.  A connection is only ever used by the thread that
+ * borrowed it, so the cache itself needs no locking; the hit and miss
+ * counters are shared by every connection of the pool.
+ *
+ */
+public class StatementCache {
+
+   // default number of statements kept open per connection
+   public static final int DEFAULT_SIZE = 64;
+
+   // PGStatement.setUseServerPrepare, looked up once; null when unavailable
+   private static volatile Method _serverPrepare = null;
+   private static volatile boolean _serverPrepareResolved = false;
+
+   private final Connection _connection;
+   private final int _capacity;
+   private final AtomicLong _hits;
+   private final AtomicLong _misses;
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   // whether the driver honours server side plans on this connection; null
+   // until first asked
+   private Boolean _serverPrepareHonoured = null;
+
+   StatementCache(Connection connection, int capacity, AtomicLong hits, AtomicLong misses) {
+      this._connection = connection;
+      this._capacity = capacity;
+      this._hits = hits;
+      this._misses = misses;
+      // access ordered so the eldest entry is the least recently used one
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+   }//end StatementCache
+
+   /**
+    * Returns the cached statement for the template, preparing it on a miss.
+    * The caller must not close the statement, only its result sets.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @return a prepared statement with its parameters cleared
+    * @throws java.sql.SQLException when failed to prepare the statement
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      return prepare(sql, true);
+   }//end prepare
+
+   /**
+    * Returns the cached statement for the template, preparing it on a miss.
+    * Statements the server cannot PREPARE, such as DECLARE and FETCH, must
+    * be prepared without a server side plan.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @param serverPrepare false to never plan the statement on the server
+    * @return a prepared statement with its parameters cleared
+    * @throws java.sql.SQLException when failed to prepare the statement
+    */
+   public PreparedStatement prepare(String sql, boolean serverPrepare) throws SQLException {
+      PreparedStatement ps = this._statements.get(sql);
+      if (ps != null) {
+         this._hits.incrementAndGet();
+         ps.clearParameters();
+         return ps;
+      }//end if
+
+      this._misses.incrementAndGet();
+      ps = this._connection.prepareStatement(sql);
+      if (serverPrepare && preparable(sql) && serverPrepareHonoured())
+         useServerPrepare(ps);
+      if (this._capacity <= 0)
+         return ps;
+
+      this._statements.put(sql, ps);
+      if (this._statements.size() > this._capacity) {
+         Iterator<Map.Entry<String, PreparedStatement>> eldest = this._statements.entrySet().iterator();
+         closeQuietly(eldest.next().getValue());
+         eldest.remove();
+      }//end if
+      return ps;
+   }//end prepare
+
+   /**
+    * Releases a statement obtained from prepare.  Cached statements stay
+    * open; only statements that did not fit in the cache are closed.
+    *
+    * @param sql the SQL template passed to prepare
+    * @param ps the statement returned by prepare
+    */
+   public void done(String sql, PreparedStatement ps) {
+      if (this._statements.get(sql) != ps)
+         closeQuietly(ps);
+   }//end done
+
+   /**
+    * @return the number of statements currently cached
+    */
+   public int size() {
+      return this._statements.size();
+   }//end size
+
+   /**
+    * Closes every cached statement.
+    */
+   public void clear() {
+      for (PreparedStatement ps : this._statements.values())
+         closeQuietly(ps);
+      this._statements.clear();
+   }//end clear
+
+   /**
+    * Binds the values to the placeholders of the statement in order.  Dates
+    * must be passed as java.sql.Date or LocalDate so they are sent typed
+    * rather than as text.
+    *
+    * @param ps the prepared statement
+    * @param params the bind values; null binds SQL NULL
+    * @throws java.sql.SQLException when a value cannot be bound
+    */
+   public static void bind(PreparedStatement ps, Object... params) throws SQLException {
+      for (int i = 0; i < params.length; ++i) {
+         Object value = params[i];
+         int index = i + 1;
+         if (value == null)
+            ps.setNull(index, Types.OTHER);
+         else if (value instanceof String)
+            ps.setString(index, (String) value);
+         else if (value instanceof Integer)
+            ps.setInt(index, ((Integer) value).intValue());
+         else if (value instanceof Long)
+            ps.setLong(index, ((Long) value).longValue());
+         else if (value instanceof Boolean)
+            ps.setBoolean(index, ((Boolean) value).booleanValue());
+         else if (value instanceof BigDecimal)
+            ps.setBigDecimal(index, (BigDecimal) value);
+         else if (value instanceof Double)
+            ps.setDouble(index, ((Double) value).doubleValue());
+         else if (value instanceof Date)
+            ps.setDate(index, (Date) value);
+         else if (value instanceof LocalDate)
+            ps.setDate(index, Date.valueOf((LocalDate) value));
+         else if (value instanceof Time)
+            ps.setTime(index, (Time) value);
+         else if (value instanceof Timestamp)
+            ps.setTimestamp(index, (Timestamp) value);
+         else
+            ps.setObject(index, value);
+      }//end for
+   }//end bind
+
+   // only these can be the body of PREPARE; anything else runs as sent
+   private static boolean preparable(String sql) {
+      String s = sql.trim();
+      return s.regionMatches(true, 0, "SELECT", 0, 6) || s.regionMatches(true, 0, "INSERT", 0, 6)
+          || s.regionMatches(true, 0, "UPDATE", 0, 6) || s.regionMatches(true, 0, "DELETE", 0, 6)
+          || s.regionMatches(true, 0, "WITH", 0, 4);
+   }//end preparable
+
+   // the driver compares server versions as strings, so it takes "10" and up
+   // for older than 7.3 and silently ignores setUseServerPrepare on them:
+   // server side plans only ever happen on 9.5 and 9.6
+   private boolean serverPrepareHonoured() {
+      if (this._serverPrepareHonoured == null) {
+         int major;
+         try {
+            major = majorVersion(this._connection.getMetaData().getDatabaseProductVersion());
+         } catch (SQLException e) {
+            major = 0;
+         }//end try
+         this._serverPrepareHonoured = Boolean.valueOf(major >= 7 && major < 10);
+      }//end if
+      return this._serverPrepareHonoured.booleanValue();
+   }//end serverPrepareHonoured
+
+   // the leading number of a version such as "9.6.24" or "13.4"; 0 if none
+   private static int majorVersion(String version) {
+      int major = 0;
+      for (int i = 0; version != null && i < version.length() && Character.isDigit(version.charAt(i)); ++i)
+         major = major * 10 + (version.charAt(i) - '0');
+      return major;
+   }//end majorVersion
+
+   // asks the driver to plan the statement once on the server instead of
+   // substituting the values client side, which the 7.3 driver does by default
+   private static void useServerPrepare(PreparedStatement ps) {
+      if (!_serverPrepareResolved) {
+         try {
+            Class<?> pgStatement = Class.forName("org.postgresql.PGStatement", false,
+                                                 ps.getClass().getClassLoader());
+            _serverPrepare = pgStatement.getMethod("setUseServerPrepare", boolean.class);
+         } catch (Exception e) {
+            _serverPrepare = null;
+         }//end try
+         _serverPrepareResolved = true;
+      }//end if
+      Method m = _serverPrepare;
+      if (m == null || !m.getDeclaringClass().isInstance(ps))
+         return;
+      try {
+         m.invoke(ps, Boolean.TRUE);
+      } catch (Exception e) {
+         // ignored, the statement still works without server side plans.
+      }//end try
+   }//end useServerPrepare
+
+   private static void closeQuietly(PreparedStatement ps) {
+      try {
+         ps.close();
+      } catch (SQLException e) {
+         // ignored.
+      }//end try
+   }//end closeQuietly
+
+}//end StatementCache
@@ -0,0 +1,343 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Several updates run on one pooled connection in one transaction, e.g.
+ *
+ *    try (UnitOfWork work = esql.beginWork()) {
+ *       work.add("INSERT INTO Pilot (PilotID, Name) VALUES (?, ?)", id, name);
+ *       work.add("INSERT INTO Users (...) VALUES (?, ?, ?, ?)", ...);
+ *       work.commit();
+ *    }
+ *
+ * Consecutive updates of the same template are sent as one JDBC batch;
+ * a different template, an update whose count is wanted or a commit sends
+ * the batch first, so updates always run in the order they were added.
+ *
+ * The CommitPolicy decides when the work is committed besides commit():
+ * never (PER_CALL, the whole unit is atomic), every N updates, or once the
+ * oldest uncommitted update is older than a time window.  The last two
+ * let a long stream of writes pay one commit, and one fsync, per group
+ * instead of per row, at the price of the rows of an open group becoming
+ * visible and durable only with it.  A window is also closed by a timer,
+ * so the last group of a stream that goes quiet is committed on time.
+ * Closing the work rolls back whatever was not committed and returns the
+ * connection to the pool.
+ *
+ * A unit of work is meant for the thread that began it; its methods are
+ * synchronized only because the window timer may commit from its own
+ * thread, running the afterCommit tasks there.
+ *
+ */
+public class UnitOfWork implements AutoCloseable {
+
+   /**
+    * When a unit of work commits on its own, besides commit().
+    */
+   public static class CommitPolicy {
+
+      // atomic: only commit() commits
+      public static final CommitPolicy PER_CALL = new CommitPolicy(0, 0);
+
+      private final int _statements;
+      private final long _windowNanos;
+
+      private CommitPolicy(int statements, long windowMs) {
+         this._statements = statements;
+         this._windowNanos = windowMs * 1_000_000L;
+      }//end CommitPolicy
+
+      /**
+       * @param uncommitted updates since the last commit
+       * @param firstUncommitted System.nanoTime() of the first of them
+       * @return true if they are due to be committed
+       */
+      boolean isDue(int uncommitted, long firstUncommitted) {
+         if (uncommitted == 0)
+            return false;
+         return (this._statements > 0 && uncommitted >= this._statements)
+            || (this._windowNanos > 0 && System.nanoTime() - firstUncommitted >= this._windowNanos);
+      }//end isDue
+
+      /**
+       * @param statements updates per commit
+       * @return a policy committing every that many updates
+       */
+      public static CommitPolicy everyStatements(int statements) {
+         if (statements < 1)
+            throw new IllegalArgumentException("commit every 1 or more statements: " + statements);
+         return new CommitPolicy(statements, 0);
+      }//end everyStatements
+
+      /**
+       * @param windowMs the longest an update waits for its commit
+       * @return a policy committing when the oldest uncommitted update
+       *         is that old, checked as updates are added
+       */
+      public static CommitPolicy window(long windowMs) {
+         if (windowMs < 1)
+            throw new IllegalArgumentException("commit window must be positive: " + windowMs);
+         return new CommitPolicy(0, windowMs);
+      }//end window
+
+      /**
+       * @return a policy committing on whichever of the two comes first
+       */
+      public CommitPolicy or(CommitPolicy other) {
+         return new CommitPolicy(this._statements > 0 ? this._statements : other._statements,
+                                 (this._windowNanos > 0 ? this._windowNanos : other._windowNanos) / 1_000_000L);
+      }//end or
+
+      /**
+       * @param spec per-call, statements=N, window=MS or both joined by a comma
+       * @return the policy
+       * @throws java.lang.IllegalArgumentException for anything else
+       */
+      public static CommitPolicy parse(String spec) {
+         if (spec == null || spec.trim().isEmpty() || spec.trim().equalsIgnoreCase("per-call"))
+            return PER_CALL;
+         CommitPolicy policy = PER_CALL;
+         try {
+            for (String part : spec.split(",")) {
+               String[] kv = part.trim().split("=", 2);
+               if (kv.length == 2 && kv[0].equalsIgnoreCase("statements"))
+                  policy = policy.or(everyStatements(Integer.parseInt(kv[1].trim())));
+               else if (kv.length == 2 && kv[0].equalsIgnoreCase("window"))
+                  policy = policy.or(window(Long.parseLong(kv[1].trim())));
+               else
+                  throw new IllegalArgumentException(part);
+            }//end for
+         } catch (RuntimeException e) {
+            throw new IllegalArgumentException("commit policy is per-call, statements=N or window=MS: " + spec);
+         }//end try
+         return policy;
+      }//end parse
+   }//end CommitPolicy
+
+   // closes the windows of the units with a window policy
+   private static ScheduledExecutorService _windowTimer = null;
+
+   private final AirlineManagement _esql;
+   private final CommitPolicy _policy;
+   private final PooledConnection _pc;
+   private final StatementCache _cache;
+
+   // the batch being built: its template, statement and bind values
+   private String _batchSql = null;
+   private PreparedStatement _batch = null;
+   private Object[] _batchFirstParams = null;
+   private long _batchStarted = 0;
+
+   // updates since the last commit, and when the first of them was added
+   private int _uncommitted = 0;
+   private long _firstUncommitted = 0;
+   private int _commits = 0;
+   private boolean _failed = false;
+   private boolean _closed = false;
+   private final List<Runnable> _afterCommit = new ArrayList<Runnable>();
+
+   UnitOfWork(AirlineManagement esql, CommitPolicy policy) throws SQLException {
+      this._esql = esql;
+      this._policy = policy;
+      this._pc = esql.acquireConnection();
+      boolean ok = false;
+      try {
+         this._pc.getConnection().setAutoCommit(false);
+         ok = true;
+      } finally {
+         if (!ok)
+            esql.releaseConnection(this._pc, false);
+      }//end try
+      this._cache = this._pc.getStatementCache();
+   }//end UnitOfWork
+
+   /**
+    * Adds an update to the work; it runs with the next ones of the same
+    * template, at the latest on commit.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @param params the typed values bound to the placeholders in order
+    * @throws java.sql.SQLException when a pending batch or a commit due by the policy failed
+    */
+   public synchronized void add(String sql, Object... params) throws SQLException {
+      check();
+      if (this._batch != null && !this._batchSql.equals(sql))
+         flush();
+      try {
+         if (this._batch == null) {
+            this._batch = this._cache.prepare(sql);
+            this._batchSql = sql;
+            this._batchStarted = System.nanoTime();
+            this._batchFirstParams = params;
+         }//end if
+         StatementCache.bind(this._batch, params);
+         this._batch.addBatch();
+      } catch (SQLException e) {
+         this._failed = true;
+         throw e;
+      }//end try
+      counted();
+   }//end add
+
+   /**
+    * Runs an update right away, after the pending batch.
+    *
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when the update failed
+    */
+   public synchronized int update(String sql, Object... params) throws SQLException {
+      check();
+      flush();
+      long started = System.nanoTime();
+      boolean ok = false;
+      PreparedStatement ps = this._cache.prepare(sql);
+      try {
+         StatementCache.bind(ps, params);
+         int count = ps.executeUpdate();
+         ok = true;
+         counted();
+         return count;
+      } finally {
+         this._cache.done(sql, ps);
+         this._failed |= !ok;
+         this._esql.getMetrics().recordQuery(sql, params, System.nanoTime() - started, ok);
+      }//end try
+   }//end update
+
+   /**
+    * Runs the task once the updates added so far are committed, e.g. to
+    * refresh a cache; it is dropped if they are rolled back.
+    */
+   public synchronized void afterCommit(Runnable task) {
+      this._afterCommit.add(task);
+   }//end afterCommit
+
+   /**
+    * Sends the pending batch and commits every update so far.
+    *
+    * @throws java.sql.SQLException when an update or the commit failed; the
+    *         work can then only be closed
+    */
+   public synchronized void commit() throws SQLException {
+      check();
+      flush();
+      try {
+         this._pc.getConnection().commit();
+      } catch (SQLException e) {
+         this._failed = true;
+         throw e;
+      }//end try
+      ++this._commits;
+      this._uncommitted = 0;
+      List<Runnable> tasks = new ArrayList<Runnable>(this._afterCommit);
+      this._afterCommit.clear();
+      for (Runnable task : tasks)
+         task.run();
+   }//end commit
+
+   /**
+    * @return the number of commits so far, by commit() or by the policy
+    */
+   public synchronized int getCommits() {
+      return this._commits;
+   }//end getCommits
+
+   /**
+    * @return the updates added or run since the last commit
+    */
+   public synchronized int getUncommitted() {
+      return this._uncommitted;
+   }//end getUncommitted
+
+   /**
+    * Rolls back what was not committed and gives the connection back.
+    */
+   @Override
+   public synchronized void close() {
+      if (this._closed)
+         return;
+      this._closed = true;
+      boolean ok = false;
+      try {
+         if (this._batch != null) {
+            this._batch.clearBatch();
+            this._cache.done(this._batchSql, this._batch);
+            this._batch = null;
+         }//end if
+         Connection conn = this._pc.getConnection();
+         conn.rollback();
+         conn.setAutoCommit(true);
+         ok = !this._failed;
+      } catch (SQLException e) {
+         ok = false;
+      } finally {
+         this._esql.releaseConnection(this._pc, ok);
+      }//end try
+   }//end close
+
+   private void check() {
+      if (this._closed)
+         throw new IllegalStateException("unit of work is closed");
+      if (this._failed)
+         throw new IllegalStateException("unit of work failed; close it");
+   }//end check
+
+   // counts an update and commits if the policy says so
+   private void counted() throws SQLException {
+      if (this._uncommitted++ == 0) {
+         this._firstUncommitted = System.nanoTime();
+         if (this._policy._windowNanos > 0)
+            windowTimer().schedule(this::closeWindow, this._policy._windowNanos, TimeUnit.NANOSECONDS);
+      }//end if
+      if (this._policy.isDue(this._uncommitted, this._firstUncommitted))
+         commit();
+   }//end counted
+
+   // run by the timer once the window of the first uncommitted update ends;
+   // a failed commit leaves the work failed for its owner to see
+   private synchronized void closeWindow() {
+      if (this._closed || this._failed || !this._policy.isDue(this._uncommitted, this._firstUncommitted))
+         return;
+      try {
+         commit();
+      } catch (SQLException | RuntimeException e) {
+         this._failed = true;
+      }//end try
+   }//end closeWindow
+
+   private static synchronized ScheduledExecutorService windowTimer() {
+      if (_windowTimer == null)
+         _windowTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "unit-of-work-window");
+            t.setDaemon(true);
+            return t;
+         });
+      return _windowTimer;
+   }//end windowTimer
+
+   // sends the pending batch, recorded as one execution of its template
+   private void flush() throws SQLException {
+      if (this._batch == null)
+         return;
+      boolean ok = false;
+      try {
+         this._batch.executeBatch();
+         ok = true;
+      } finally {
+         this._batch.clearBatch();
+         this._cache.done(this._batchSql, this._batch);
+         this._failed |= !ok;
+         this._esql.getMetrics().recordQuery(this._batchSql, this._batchFirstParams,
+                                             System.nanoTime() - this._batchStarted, ok);
+         this._batch = null;
+         this._batchFirstParams = null;
+      }//end try
+   }//end flush
+
+}//end UnitOfWork
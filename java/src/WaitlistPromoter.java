@@ -0,0 +1,328 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves waitlisted reservations to reserved, first come first served, as
+ * seats free up on their flight instance.
+ *
+ * Instances are signalled when a cancellation frees a seat, and found by a
+ * periodic sweep for any other reason (another process, a bigger plane).
+ * A background thread takes the signalled instances one at a time and
+ * promotes their waitlist in transactions of at most
+ * airline.waitlist.batchSize reservations: the FlightInstance row is locked
+ * FOR UPDATE, which serializes the promotion with bookings and
+ * cancellations of that instance only, the next waitlisted reservations
+ * are switched to reserved by primary key in one JDBC batch, and SeatsSold
+ * is raised by the number actually switched.  Reservation rows are never
+ * locked beyond those being promoted, so a backlog of any size drains one
+ * batch at a time alongside the normal traffic.
+ *
+ * Each instance being drained has a FIFO queue in memory holding the next
+ * batch of its waitlist, in booking order, read by keyset from the partial
+ * index on waitlisted reservations.
+ *
+ */
+public class WaitlistPromoter {
+
+   // default reservations promoted per transaction
+   public static final int DEFAULT_BATCH_SIZE = 100;
+
+   // default period of the sweep for instances with free seats and a waitlist
+   public static final long DEFAULT_SWEEP_MS = 60_000;
+
+   // reservation numbers are R%04d, so booking order is (length, text)
+   private static final String NEXT_WAITING =
+      "SELECT ReservationID FROM Reservation " +
+      "WHERE FlightInstanceID = ? AND Status = 'waitlist' " +
+      "AND (LENGTH(ReservationID), ReservationID) > (?, ?) " +
+      "ORDER BY LENGTH(ReservationID), ReservationID LIMIT ?";
+   private static final String LOCK_INSTANCE =
+      "SELECT SeatsTotal - SeatsSold FROM FlightInstance WHERE FlightInstanceID = ? FOR UPDATE";
+   private static final String PROMOTE =
+      "UPDATE Reservation SET Status = 'reserved' " +
+      "WHERE ReservationID = ? AND FlightInstanceID = ? AND Status = 'waitlist'";
+   private static final String ADD_SEATS_SOLD =
+      "UPDATE FlightInstance SET SeatsSold = SeatsSold + ? WHERE FlightInstanceID = ?";
+   private static final String SWEEP =
+      "SELECT DISTINCT r.FlightInstanceID FROM Reservation r " +
+      "JOIN FlightInstance fi ON fi.FlightInstanceID = r.FlightInstanceID " +
+      "WHERE r.Status = 'waitlist' AND fi.SeatsSold < fi.SeatsTotal";
+
+   // the next waitlisted reservations of one instance, in booking order
+   private static class Queue {
+      final ArrayDeque<String> ids = new ArrayDeque<String>();
+      // keyset position of the last id read
+      String last = "";
+   }//end Queue
+
+   private final AirlineManagement _esql;
+   private final int _batchSize;
+   private final long _sweepMs;
+
+   // instances waiting for the worker, each at most once
+   private final LinkedBlockingQueue<Integer> _signalled = new LinkedBlockingQueue<Integer>();
+   private final Set<Integer> _pending = ConcurrentHashMap.newKeySet();
+   // only touched by the thread draining the instance
+   private final ConcurrentHashMap<Integer, Queue> _queues = new ConcurrentHashMap<Integer, Queue>();
+
+   private final AtomicLong _promoted;
+   private Thread _worker = null;
+   private ScheduledExecutorService _sweeper = null;
+
+   public WaitlistPromoter(AirlineManagement esql) {
+      this(esql, Integer.getInteger("airline.waitlist.batchSize", DEFAULT_BATCH_SIZE),
+           Long.getLong("airline.waitlist.sweepMs", DEFAULT_SWEEP_MS));
+   }//end WaitlistPromoter
+
+   /**
+    * @param esql the database handle
+    * @param batchSize reservations promoted per transaction
+    * @param sweepMs period of the sweep, 0 for none
+    */
+   public WaitlistPromoter(AirlineManagement esql, int batchSize, long sweepMs) {
+      this._esql = esql;
+      this._batchSize = Math.max(1, batchSize);
+      this._sweepMs = sweepMs;
+      this._promoted = esql.getMetrics().counter("airline_waitlist_promoted_total", "source", "promoter");
+   }//end WaitlistPromoter
+
+   /**
+    * Starts the worker and the sweep, which runs once right away to pick up
+    * any backlog.  Does nothing if already started.
+    */
+   public synchronized void start() {
+      if (this._worker != null)
+         return;
+      this._worker = new Thread(this::work, "waitlist-promoter");
+      this._worker.setDaemon(true);
+      this._worker.start();
+      if (this._sweepMs > 0) {
+         this._sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "waitlist-sweep");
+            t.setDaemon(true);
+            return t;
+         });
+         this._sweeper.scheduleWithFixedDelay(this::sweepQuietly, 0, this._sweepMs, TimeUnit.MILLISECONDS);
+      }//end if
+   }//end start
+
+   /**
+    * Stops the worker; instances still signalled are left for the sweep of
+    * the next run.
+    */
+   public synchronized void stop() {
+      if (this._sweeper != null)
+         this._sweeper.shutdownNow();
+      if (this._worker != null)
+         this._worker.interrupt();
+      this._sweeper = null;
+      this._worker = null;
+   }//end stop
+
+   /**
+    * Asks for the waitlist of an instance to be promoted into its free
+    * seats.  Returns at once; signalling an instance already waiting has
+    * no effect.
+    *
+    * @param flightInstanceID the instance that may have free seats
+    */
+   public void signal(int flightInstanceID) {
+      Integer key = Integer.valueOf(flightInstanceID);
+      if (this._pending.add(key))
+         this._signalled.offer(key);
+   }//end signal
+
+   /**
+    * @return the number of reservations promoted since start
+    */
+   public long getPromoted() {
+      return this._promoted.get();
+   }//end getPromoted
+
+   /**
+    * @return the number of instances waiting for the worker
+    */
+   public int getBacklog() {
+      return this._pending.size();
+   }//end getBacklog
+
+   /**
+    * Promotes the waitlist of an instance until its seats or its waitlist
+    * run out, one transaction per batch.  The worker calls it for every
+    * signalled instance; it can also be called directly.
+    *
+    * @param flightInstanceID the instance
+    * @return the reservations promoted
+    * @throws java.sql.SQLException when a batch failed; batches before it stay committed
+    */
+   public int promote(int flightInstanceID) throws SQLException {
+      Integer key = Integer.valueOf(flightInstanceID);
+      Queue queue = this._queues.computeIfAbsent(key, k -> new Queue());
+      int total = 0;
+      try {
+         while (true) {
+            int promoted = promoteBatch(flightInstanceID, queue);
+            if (promoted < 0)
+               break;
+            total += promoted;
+         }//end while
+      } finally {
+         this._queues.remove(key);
+         if (total > 0) {
+            this._promoted.addAndGet(total);
+            this._esql.getSeatInventory().invalidate(flightInstanceID);
+            this._esql.getFlightStats().seatsChanged();
+         }//end if
+      }//end try
+      return total;
+   }//end promote
+
+   /**
+    * Signals every instance that has free seats and a waitlist.
+    *
+    * @return the number of instances found
+    * @throws java.sql.SQLException when the query failed
+    */
+   public int sweep() throws SQLException {
+      int found = 0;
+      try (ResultCursor rs = this._esql.openCursor(SWEEP)) {
+         while (rs.next()) {
+            signal(rs.getInt(1));
+            ++found;
+         }//end while
+      }//end try
+      return found;
+   }//end sweep
+
+   // one transaction; returns the number promoted, or -1 when there are no
+   // seats or no one left to promote
+   private int promoteBatch(int flightInstanceID, Queue queue) throws SQLException {
+      PooledConnection pc = this._esql.acquireConnection();
+      boolean ok = false;
+      try {
+         Connection conn = pc.getConnection();
+         conn.setAutoCommit(false);
+         StatementCache cache = pc.getStatementCache();
+
+         int free;
+         PreparedStatement lock = cache.prepare(LOCK_INSTANCE);
+         try {
+            StatementCache.bind(lock, flightInstanceID);
+            try (ResultSet rs = lock.executeQuery()) {
+               free = rs.next() ? rs.getInt(1) : 0;
+            }//end try
+         } finally {
+            cache.done(LOCK_INSTANCE, lock);
+         }//end try
+         int wanted = Math.min(free, this._batchSize);
+         if (wanted > 0 && queue.ids.size() < wanted)
+            refill(cache, flightInstanceID, queue, wanted);
+         if (wanted <= 0 || queue.ids.isEmpty()) {
+            conn.rollback();
+            conn.setAutoCommit(true);
+            ok = true;
+            return -1;
+         }//end if
+
+         List<String> candidates = new ArrayList<String>(wanted);
+         while (candidates.size() < wanted && !queue.ids.isEmpty())
+            candidates.add(queue.ids.poll());
+         int promoted = 0;
+         PreparedStatement update = cache.prepare(PROMOTE);
+         try {
+            for (String id : candidates) {
+               StatementCache.bind(update, id, flightInstanceID);
+               update.addBatch();
+            }//end for
+            // a reservation cancelled since it was queued counts 0
+            for (int count : update.executeBatch())
+               promoted += Math.max(0, count);
+         } finally {
+            update.clearBatch();
+            cache.done(PROMOTE, update);
+         }//end try
+         if (promoted > 0) {
+            PreparedStatement seats = cache.prepare(ADD_SEATS_SOLD);
+            try {
+               StatementCache.bind(seats, promoted, flightInstanceID);
+               seats.executeUpdate();
+            } finally {
+               cache.done(ADD_SEATS_SOLD, seats);
+            }//end try
+         }//end if
+         conn.commit();
+         conn.setAutoCommit(true);
+         ok = true;
+         return promoted;
+      } finally {
+         this._esql.releaseConnection(pc, ok);
+      }//end try
+   }//end promoteBatch
+
+   // reads the next waitlisted reservations after the last one queued; at
+   // the end of the waitlist starts over once, for ids booked out of order
+   // by another process
+   private void refill(StatementCache cache, int flightInstanceID, Queue queue, int wanted) throws SQLException {
+      int limit = Math.max(wanted, this._batchSize);
+      boolean restarted = queue.last.isEmpty();
+      while (true) {
+         int read = 0;
+         PreparedStatement ps = cache.prepare(NEXT_WAITING);
+         try {
+            StatementCache.bind(ps, flightInstanceID, queue.last.length(), queue.last, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+               while (rs.next()) {
+                  queue.last = rs.getString(1);
+                  queue.ids.add(queue.last);
+                  ++read;
+               }//end while
+            }//end try
+         } finally {
+            cache.done(NEXT_WAITING, ps);
+         }//end try
+         if (read > 0 || restarted || !queue.ids.isEmpty())
+            return;
+         queue.last = "";
+         restarted = true;
+      }//end while
+   }//end refill
+
+   private void work() {
+      while (!Thread.currentThread().isInterrupted()) {
+         Integer key;
+         try {
+            key = this._signalled.take();
+         } catch (InterruptedException e) {
+            return;
+         }//end try
+         // a signal arriving from here on queues the instance again
+         this._pending.remove(key);
+         try {
+            promote(key.intValue());
+         } catch (SQLException e) {
+            System.err.println("Waitlist promotion of instance " + key + " failed: " + e.getMessage());
+         }//end try
+      }//end while
+   }//end work
+
+   private void sweepQuietly() {
+      try {
+         sweep();
+      } catch (SQLException e) {
+         System.err.println("Waitlist sweep failed: " + e.getMessage());
+      }//end try
+   }//end sweepQuietly
+
+}//end WaitlistPromoter
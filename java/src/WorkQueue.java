@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The open maintenance requests as a work queue for the technicians, most
+ * urgent first.
+ *
+ * A request is open until a repair closes it; while open it is either
+ * waiting or claimed by one technician.  Urgency is the next departure of
+ * the plane (DueDate, the first FlightInstance of one of its flights on or
+ * after today, NULL for none, which sorts last), then the age of the
+ * request.  DueDate is computed when the request is submitted and brought
+ * up to date by reprioritize, so the order is a plain column order and the
+ * partial index idx_request_queue holds exactly the waiting requests in it.
+ *
+ * A claim takes the head of that index with FOR UPDATE SKIP LOCKED: any
+ * number of technicians claim at once, each gets different requests, none
+ * waits for another, and the cost is a few index pages whatever the size
+ * of the backlog.  Logging the repair of a claimed request inserts the
+ * Repair row and links it to the request in one statement, which closes it;
+ * WriteBehind runs that statement and the inserts of new requests in its
+ * group commits.
+ *
+ */
+public class WorkQueue {
+
+   // default age after which a claim with no repair is given back to the queue
+   public static final long DEFAULT_CLAIM_TIMEOUT_MS = 8L * 3600 * 1000;
+
+   // requests claimed at once at most
+   public static final int MAX_CLAIM = 100;
+
+   // next departure of the plane named by the ? (or the outer m.PlaneID)
+   private static final String NEXT_DEPARTURE =
+      "(SELECT MIN(fi.FlightDate) FROM FlightInstance fi JOIN Flight f ON f.FlightNumber = fi.FlightNumber " +
+      "WHERE f.PlaneID = %s AND fi.FlightDate >= CURRENT_DATE)";
+
+   // run by WriteBehind, in its batches
+   static final String SUBMIT =
+      "INSERT INTO MaintenanceRequest (RequestID, PlaneID, RepairCode, RequestDate, PilotID, DueDate) " +
+      "VALUES (?, ?, ?, ?, ?, " + String.format(NEXT_DEPARTURE, "?") + ")";
+   private static final String CLAIM =
+      "UPDATE MaintenanceRequest SET ClaimedBy = ?, ClaimedAt = CURRENT_TIMESTAMP " +
+      "WHERE RequestID IN (" +
+      "  SELECT RequestID FROM MaintenanceRequest WHERE ClaimedBy IS NULL AND RepairID IS NULL " +
+      "  ORDER BY DueDate, RequestDate, RequestID LIMIT ? FOR UPDATE SKIP LOCKED) " +
+      "RETURNING RequestID, PlaneID, RepairCode, RequestDate, PilotID, DueDate";
+   private static final String CLAIMED =
+      "SELECT RequestID, PlaneID, RepairCode, RequestDate, PilotID, DueDate " +
+      "FROM MaintenanceRequest WHERE ClaimedBy = ? AND RepairID IS NULL " +
+      "ORDER BY DueDate, RequestDate, RequestID";
+   private static final String RELEASE =
+      "UPDATE MaintenanceRequest SET ClaimedBy = NULL, ClaimedAt = NULL " +
+      "WHERE RequestID = ? AND ClaimedBy = ? AND RepairID IS NULL";
+   private static final String RELEASE_STALE =
+      "UPDATE MaintenanceRequest SET ClaimedBy = NULL, ClaimedAt = NULL " +
+      "WHERE ClaimedBy IS NOT NULL AND RepairID IS NULL AND ClaimedAt < ?";
+   static final String COMPLETE =
+      "WITH closed AS (" +
+      "  UPDATE MaintenanceRequest SET RepairID = ? " +
+      "  WHERE RequestID = ? AND ClaimedBy = ? AND RepairID IS NULL " +
+      "  RETURNING PlaneID, RepairCode) " +
+      "INSERT INTO Repair (RepairID, PlaneID, RepairCode, RepairDate, TechnicianID) " +
+      "SELECT ?, PlaneID, RepairCode, CURRENT_DATE, ? FROM closed " +
+      "RETURNING PlaneID";
+   private static final String REPRIORITIZE =
+      "UPDATE MaintenanceRequest m SET DueDate = " + String.format(NEXT_DEPARTURE, "m.PlaneID") + " " +
+      "WHERE m.RepairID IS NULL AND m.DueDate IS DISTINCT FROM " + String.format(NEXT_DEPARTURE, "m.PlaneID");
+
+   /**
+    * An open maintenance request.
+    */
+   public static class Request {
+      public final int requestID;
+      public final String planeID;
+      public final String repairCode;
+      public final String requestDate;
+      public final String pilotID;
+      // next departure of the plane, or null
+      public final String dueDate;
+
+      Request(int requestID, String planeID, String repairCode, String requestDate, String pilotID, String dueDate) {
+         this.requestID = requestID;
+         this.planeID = planeID;
+         this.repairCode = repairCode;
+         this.requestDate = requestDate;
+         this.pilotID = pilotID;
+         this.dueDate = dueDate;
+      }//end Request
+   }//end Request
+
+   private final AirlineManagement _esql;
+   private final long _claimTimeoutMs;
+
+   public WorkQueue(AirlineManagement esql) {
+      this(esql, Long.getLong("airline.workqueue.claimTimeoutMs", DEFAULT_CLAIM_TIMEOUT_MS));
+   }//end WorkQueue
+
+   /**
+    * @param esql the database handle
+    * @param claimTimeoutMs age after which an unfinished claim is released by reprioritize
+    */
+   public WorkQueue(AirlineManagement esql, long claimTimeoutMs) {
+      this._esql = esql;
+      this._claimTimeoutMs = claimTimeoutMs;
+   }//end WorkQueue
+
+   /**
+    * Claims the most urgent waiting requests for a technician.
+    *
+    * @param technicianID the technician
+    * @param count how many requests to claim, at most MAX_CLAIM
+    * @return the requests claimed, most urgent first; empty if none waits
+    * @throws java.sql.SQLException when the claim failed
+    */
+   public List<Request> claim(String technicianID, int count) throws SQLException {
+      if (count < 1 || count > MAX_CLAIM)
+         throw new IllegalArgumentException("claim 1 to " + MAX_CLAIM + " requests: " + count);
+      List<Request> claimed = read(CLAIM, technicianID, count);
+      // RETURNING comes in no particular order
+      claimed.sort((a, b) -> compare(a, b));
+      return claimed;
+   }//end claim
+
+   /**
+    * @param technicianID the technician
+    * @return the open requests the technician has claimed, most urgent first
+    * @throws java.sql.SQLException when the query failed
+    */
+   public List<Request> getClaimed(String technicianID) throws SQLException {
+      return read(CLAIMED, technicianID);
+   }//end getClaimed
+
+   /**
+    * Gives a claimed request back to the queue, in its place.
+    *
+    * @return false if the technician held no open claim on the request
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean release(String technicianID, int requestID) throws SQLException {
+      return this._esql.executeUpdate(RELEASE, requestID, technicianID) > 0;
+   }//end release
+
+   /**
+    * Recomputes the due date of the open requests whose plane's next
+    * departure changed, e.g. as days pass or instances are added, and
+    * releases the claims older than the claim timeout.
+    *
+    * @return the requests updated
+    * @throws java.sql.SQLException when the update failed
+    */
+   public int reprioritize() throws SQLException {
+      int updated = this._esql.executeUpdate(REPRIORITIZE, new Object[0]);
+      if (this._claimTimeoutMs > 0)
+         updated += this._esql.executeUpdate(RELEASE_STALE,
+            new Timestamp(System.currentTimeMillis() - this._claimTimeoutMs));
+      return updated;
+   }//end reprioritize
+
+   /**
+    * Renders requests as a table.
+    *
+    * @throws java.io.IOException when failed to render
+    */
+   public static void render(List<Request> requests, ResultRenderer out) throws IOException {
+      ResultRenderer.Table table = out.begin("requestid", "planeid", "repaircode", "requestdate", "pilotid", "duedate");
+      for (Request r : requests) {
+         table.cell(Integer.toString(r.requestID)).cell(r.planeID).cell(r.repairCode)
+              .cell(r.requestDate).cell(r.pilotID).cell(r.dueDate);
+         table.endRow();
+      }//end for
+      table.end();
+   }//end render
+
+   private List<Request> read(String sql, Object... params) throws SQLException {
+      List<Request> requests = new ArrayList<Request>();
+      try (ResultCursor rs = this._esql.openCursor(0, sql, params)) {
+         while (rs.next())
+            requests.add(new Request(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4),
+                                     rs.getString(5), rs.getString(6)));
+      }//end try
+      return requests;
+   }//end read
+
+   // queue order: due date with none last, then request date and id
+   private static int compare(Request a, Request b) {
+      if (a.dueDate == null || b.dueDate == null) {
+         if (a.dueDate != b.dueDate)
+            return a.dueDate == null ? 1 : -1;
+      } else if (!a.dueDate.equals(b.dueDate)) {
+         return a.dueDate.compareTo(b.dueDate);
+      }//end if
+      if (!a.requestDate.equals(b.requestDate))
+         return a.requestDate.compareTo(b.requestDate);
+      return Integer.compare(a.requestID, b.requestID);
+   }//end compare
+
+}//end WorkQueue
@@ -0,0 +1,397 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Group commit of the repair and maintenance request writes.
+ *
+ * Writes are put in a bounded queue (airline.writes.capacity; a caller
+ * blocks while it is full) and a single flusher thread takes them in
+ * batches: a batch closes when it holds airline.writes.batchSize writes or
+ * airline.writes.windowMs after its first write, whichever comes first.
+ * A batch is one transaction: the new Repair and MaintenanceRequest rows go
+ * in as JDBC batches, repairs of claimed requests close their request, and
+ * Plane.LastRepairDate is moved to today for every plane repaired, in
+ * PlaneID order.  Concurrent callers thus share one commit, one fsync,
+ * instead of paying one each.
+ *
+ * The future of a write completes only once its transaction committed, so
+ * an acknowledged write is durable.  If a batch fails in the database, its
+ * writes are retried one transaction each, so a bad write fails alone; any
+ * other failure fails the writes of the batch, and the flusher goes on.
+ *
+ * Flush latency is recorded as the write-behind-flush operation; the
+ * queue depth and the writes flushed are exported as metrics.
+ *
+ */
+public class WriteBehind {
+
+   // default writes waiting at most; callers block beyond
+   public static final int DEFAULT_CAPACITY = 10000;
+
+   // default writes per transaction at most
+   public static final int DEFAULT_BATCH_SIZE = 500;
+
+   // default time a batch stays open after its first write
+   public static final long DEFAULT_WINDOW_MS = 5;
+
+   private static final String INSERT_REPAIR =
+      "INSERT INTO Repair (RepairID, PlaneID, RepairCode, RepairDate, TechnicianID) VALUES (?, ?, ?, ?, ?)";
+   private static final String TOUCH_PLANE =
+      "UPDATE Plane SET LastRepairDate = CURRENT_DATE " +
+      "WHERE PlaneID = ? AND (LastRepairDate IS NULL OR LastRepairDate < CURRENT_DATE)";
+
+   // one queued write and the future acknowledging it
+   private static class Write {
+      final int kind;
+      final int id;
+      final String planeID;
+      final String code;
+      final Date date;
+      // technician or pilot
+      final String userID;
+      // the request a repair closes, or 0
+      final int requestID;
+      final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+      Write(int kind, int id, String planeID, String code, Date date, String userID, int requestID) {
+         this.kind = kind;
+         this.id = id;
+         this.planeID = planeID;
+         this.code = code;
+         this.date = date;
+         this.userID = userID;
+         this.requestID = requestID;
+      }//end Write
+   }//end Write
+
+   private static final int REPAIR = 0;
+   private static final int REQUEST = 1;
+   private static final int COMPLETION = 2;
+   private static final String[] KINDS = {"repair", "request", "completion"};
+
+   private final AirlineManagement _esql;
+   private final ArrayBlockingQueue<Write> _queue;
+   private final int _batchSize;
+   private final long _windowNanos;
+   private final AtomicLong[] _written = new AtomicLong[KINDS.length];
+
+   private Thread _flusher = null;
+   private volatile boolean _closed = false;
+
+   public WriteBehind(AirlineManagement esql) {
+      this(esql, Integer.getInteger("airline.writes.capacity", DEFAULT_CAPACITY),
+           Integer.getInteger("airline.writes.batchSize", DEFAULT_BATCH_SIZE),
+           Long.getLong("airline.writes.windowMs", DEFAULT_WINDOW_MS));
+   }//end WriteBehind
+
+   /**
+    * @param esql the database handle
+    * @param capacity writes waiting at most
+    * @param batchSize writes per transaction at most
+    * @param windowMs time a batch stays open after its first write
+    */
+   public WriteBehind(AirlineManagement esql, int capacity, int batchSize, long windowMs) {
+      this._esql = esql;
+      this._queue = new ArrayBlockingQueue<Write>(Math.max(1, capacity));
+      this._batchSize = Math.max(1, batchSize);
+      this._windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMs));
+      for (int i = 0; i < KINDS.length; ++i)
+         this._written[i] = esql.getMetrics().counter("airline_writebehind_writes_total", "kind", KINDS[i]);
+      esql.getMetrics().gauge("airline_writebehind_queue_depth", "queue", "writes", () -> this._queue.size());
+   }//end WriteBehind
+
+   /**
+    * Queues a new Repair row; the plane's LastRepairDate moves to today.
+    *
+    * @return completes once the row is committed
+    */
+   public CompletableFuture<Void> logRepair(int repairID, String planeID, String repairCode, Date repairDate,
+                                            String technicianID) {
+      return enqueue(new Write(REPAIR, repairID, planeID, repairCode, repairDate, technicianID, 0));
+   }//end logRepair
+
+   /**
+    * Queues the repair of a request claimed by the technician, closing it;
+    * the plane's LastRepairDate moves to today.
+    *
+    * @return completes once committed, or with an IllegalArgumentException
+    *         if the technician held no open claim on the request
+    */
+   public CompletableFuture<Void> completeRequest(int repairID, int requestID,
+                                                  String technicianID) {
+      return enqueue(new Write(COMPLETION, repairID, null, null, null, technicianID, requestID));
+   }//end completeRequest
+
+   /**
+    * Queues a new maintenance request, due at the next departure of its plane.
+    *
+    * @return completes once the row is committed
+    */
+   public CompletableFuture<Void> submitRequest(int requestID, String planeID, String repairCode, Date requestDate,
+                                                String pilotID) {
+      return enqueue(new Write(REQUEST, requestID, planeID, repairCode, requestDate, pilotID, 0));
+   }//end submitRequest
+
+   /**
+    * Waits for a queued write to be committed.
+    *
+    * @param write a future returned by this class
+    * @throws java.sql.SQLException when the write failed in the database
+    */
+   public static void await(CompletableFuture<Void> write) throws SQLException {
+      try {
+         write.get();
+      } catch (InterruptedException e) {
+         // the write may still be committed
+         Thread.currentThread().interrupt();
+         throw new SQLException("interrupted waiting for the write to commit");
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+         throw new SQLException(cause.getMessage(), cause);
+      }//end try
+   }//end await
+
+   /**
+    * @return the writes waiting to be flushed
+    */
+   public int getQueueDepth() {
+      return this._queue.size();
+   }//end getQueueDepth
+
+   /**
+    * Flushes what is queued and stops the flusher; writes queued later fail.
+    */
+   public void close() {
+      Thread flusher;
+      synchronized (this) {
+         this._closed = true;
+         flusher = this._flusher;
+      }//end synchronized
+      if (flusher == null)
+         return;
+      try {
+         flusher.join();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end close
+
+   // queued under the lock, so nothing gets in after close and is left behind;
+   // a caller interrupted while waiting for room gets a failed future
+   private synchronized CompletableFuture<Void> enqueue(Write write) {
+      if (this._closed)
+         throw new IllegalStateException("write-behind queue is closed");
+      // started on first use, so every entry point gets it
+      if (this._flusher == null) {
+         this._flusher = new Thread(this::run, "write-behind");
+         this._flusher.setDaemon(true);
+         this._flusher.start();
+      }//end if
+      try {
+         this._queue.put(write);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         write.done.completeExceptionally(new SQLException("interrupted waiting for room in the write queue"));
+      }//end try
+      return write.done;
+   }//end enqueue
+
+   private void run() {
+      List<Write> batch = new ArrayList<Write>(this._batchSize);
+      while (true) {
+         try {
+            Write first = this._queue.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null) {
+               if (this._closed && this._queue.isEmpty())
+                  return;
+               continue;
+            }//end if
+            batch.add(first);
+            long deadline = System.nanoTime() + this._windowNanos;
+            while (batch.size() < this._batchSize) {
+               this._queue.drainTo(batch, this._batchSize - batch.size());
+               long left = deadline - System.nanoTime();
+               if (batch.size() >= this._batchSize || left <= 0)
+                  break;
+               Write next = this._queue.poll(left, TimeUnit.NANOSECONDS);
+               if (next == null)
+                  break;
+               batch.add(next);
+            }//end while
+         } catch (InterruptedException e) {
+            // closing: flush what was taken, then whatever is left
+            this._closed = true;
+            this._queue.drainTo(batch);
+         }//end try
+         try {
+            if (!batch.isEmpty())
+               flush(batch);
+         } catch (Throwable t) {
+            // the flusher must outlive any batch: callers wait on these futures
+            for (Write w : batch)
+               w.done.completeExceptionally(t);
+            System.err.println("Write-behind batch failed: " + t);
+         }//end try
+         batch.clear();
+      }//end while
+   }//end run
+
+   // one transaction for the batch, or one per write if it fails in the
+   // database; anything else fails the whole batch
+   private void flush(List<Write> batch) {
+      long start = System.nanoTime();
+      TreeSet<String> planes = new TreeSet<String>();
+      List<String> rejected;
+      try {
+         rejected = commit(batch, planes);
+      } catch (SQLException e) {
+         this._esql.getMetrics().recordOperation("write-behind-flush", System.nanoTime() - start, false);
+         if (batch.size() == 1) {
+            batch.get(0).done.completeExceptionally(e);
+            return;
+         }//end if
+         for (Write w : batch)
+            flush(Collections.singletonList(w));
+         return;
+      } catch (Throwable t) {
+         this._esql.getMetrics().recordOperation("write-behind-flush", System.nanoTime() - start, false);
+         for (Write w : batch)
+            w.done.completeExceptionally(t);
+         return;
+      }//end try
+      this._esql.getMetrics().recordOperation("write-behind-flush", System.nanoTime() - start, true);
+
+      // the planes shown by FindPlaneInfo come from the reference cache, so
+      // they are refreshed before a caller can read them back; a plane that
+      // cannot be re-read now is dropped and read again on next use
+      ReferenceCache cache = this._esql.getReferenceCache();
+      for (String planeID : planes) {
+         try {
+            cache.refreshPlane(planeID);
+         } catch (SQLException e) {
+            cache.invalidatePlane(planeID);
+         }//end try
+      }//end for
+      acknowledge(batch, rejected);
+   }//end flush
+
+   // writes the batch in one transaction and adds the planes repaired to
+   // planes; returns, per write, why it was rejected without failing the
+   // transaction, or null
+   private List<String> commit(List<Write> batch, TreeSet<String> planes) throws SQLException {
+      List<String> rejected = new ArrayList<String>(Collections.nCopies(batch.size(), (String) null));
+      PooledConnection pc = this._esql.acquireConnection();
+      boolean ok = false;
+      try {
+         Connection conn = pc.getConnection();
+         conn.setAutoCommit(false);
+         StatementCache cache = pc.getStatementCache();
+
+         PreparedStatement ps = null;
+         try {
+            for (Write w : batch)
+               if (w.kind == REQUEST) {
+                  if (ps == null)
+                     ps = cache.prepare(WorkQueue.SUBMIT);
+                  StatementCache.bind(ps, w.id, w.planeID, w.code, w.date, w.userID, w.planeID);
+                  ps.addBatch();
+               }//end if
+            if (ps != null)
+               ps.executeBatch();
+         } finally {
+            if (ps != null) {
+               ps.clearBatch();
+               cache.done(WorkQueue.SUBMIT, ps);
+            }//end if
+         }//end try
+
+         ps = null;
+         try {
+            for (Write w : batch)
+               if (w.kind == REPAIR) {
+                  if (ps == null)
+                     ps = cache.prepare(INSERT_REPAIR);
+                  StatementCache.bind(ps, w.id, w.planeID, w.code, w.date, w.userID);
+                  ps.addBatch();
+                  planes.add(w.planeID);
+               }//end if
+            if (ps != null)
+               ps.executeBatch();
+         } finally {
+            if (ps != null) {
+               ps.clearBatch();
+               cache.done(INSERT_REPAIR, ps);
+            }//end if
+         }//end try
+
+         // each closing tells which plane it repaired, or that it was not claimed
+         for (int i = 0; i < batch.size(); ++i) {
+            Write w = batch.get(i);
+            if (w.kind != COMPLETION)
+               continue;
+            PreparedStatement complete = cache.prepare(WorkQueue.COMPLETE);
+            try {
+               StatementCache.bind(complete, w.id, w.requestID, w.userID, w.id, w.userID);
+               try (ResultSet rs = complete.executeQuery()) {
+                  if (rs.next())
+                     planes.add(rs.getString(1));
+                  else
+                     rejected.set(i, "request " + w.requestID + " is not claimed by " + w.userID);
+               }//end try
+            } finally {
+               cache.done(WorkQueue.COMPLETE, complete);
+            }//end try
+         }//end for
+
+         if (!planes.isEmpty()) {
+            PreparedStatement touch = cache.prepare(TOUCH_PLANE);
+            try {
+               for (String planeID : planes) {
+                  StatementCache.bind(touch, planeID);
+                  touch.addBatch();
+               }//end for
+               touch.executeBatch();
+            } finally {
+               touch.clearBatch();
+               cache.done(TOUCH_PLANE, touch);
+            }//end try
+         }//end if
+
+         conn.commit();
+         conn.setAutoCommit(true);
+         ok = true;
+      } finally {
+         this._esql.releaseConnection(pc, ok);
+      }//end try
+      return rejected;
+   }//end commit
+
+   private void acknowledge(List<Write> batch, List<String> rejected) {
+      for (int i = 0; i < batch.size(); ++i) {
+         Write w = batch.get(i);
+         if (rejected.get(i) != null) {
+            w.done.completeExceptionally(new IllegalArgumentException(rejected.get(i)));
+         } else {
+            this._written[w.kind].incrementAndGet();
+            w.done.complete(null);
+         }//end if
+      }//end for
+   }//end acknowledge
+
+}//end WriteBehind
@@ -1,10 +1,22 @@
--- composite index bc used together in a lot of queries
-CREATE INDEX idx_flightinstance_flightdate ON FlightInstance (FlightNumber, FlightDate);
+-- composite index bc used together in a lot of queries; FlightInstanceID last for the ticket cost pages
+CREATE INDEX idx_flightinstance_flightdate ON FlightInstance (FlightNumber, FlightDate, FlightInstanceID);
+-- instances changed since the last poll of the in-memory indexes
+CREATE INDEX idx_flightinstance_change ON FlightInstance (ChangeXid);
 -- reservation look-up, the customer lookup was the only one that took over 0ms(tho sometimes it was 0ms)
 CREATE INDEX idx_reservation_resid ON Reservation (ReservationID);
--- to join reservations to flights
-CREATE INDEX idx_reservation_flightinstance ON Reservation (FlightInstanceID);
--- for the repairs lookup
-CREATE INDEX idx_repair_technician ON Repair (TechnicianID);
+-- to join reservations to flights; ordered for the keyset pages of the manifest
+CREATE INDEX idx_reservation_manifest ON Reservation (FlightInstanceID, Status, CustomerID, ReservationID);
+-- waitlist of an instance in booking order, for the promoter; only the waiting rows
+CREATE INDEX idx_reservation_waitlist ON Reservation (FlightInstanceID, LENGTH(ReservationID), ReservationID) WHERE Status = 'waitlist';
+-- for the repairs lookup, in the keyset order of its pages
+CREATE INDEX idx_repair_technician ON Repair (TechnicianID, RepairDate, RepairID);
+-- requests of a pilot, in the keyset order of their pages
+CREATE INDEX idx_request_pilot ON MaintenanceRequest (PilotID, RequestDate, RequestID);
+-- the technicians' work queue: waiting requests only, most urgent first
+CREATE INDEX idx_request_queue ON MaintenanceRequest (DueDate, RequestDate, RequestID) WHERE ClaimedBy IS NULL AND RepairID IS NULL;
+-- claimed requests of a technician
+CREATE INDEX idx_request_claimed ON MaintenanceRequest (ClaimedBy) WHERE ClaimedBy IS NOT NULL AND RepairID IS NULL;
 -- range queries
-CREATE INDEX idx_repair_plane_date ON Repair (PlaneID, RepairDate);
\ No newline at end of file
+CREATE INDEX idx_repair_plane_date ON Repair (PlaneID, RepairDate);
+-- flight search by city pair
+CREATE INDEX idx_flight_route ON Flight (DepartureCity, ArrivalCity);
@@ -11,6 +11,12 @@ DROP TABLE IF EXISTS Flight;
 DROP TABLE IF EXISTS Plane;
 DROP TABLE IF EXISTS Pilot;
 DROP TABLE IF EXISTS UserRoles;
+DROP SEQUENCE IF EXISTS reservation_id_seq;
+DROP SEQUENCE IF EXISTS customer_id_seq;
+DROP SEQUENCE IF EXISTS technician_id_seq;
+DROP SEQUENCE IF EXISTS pilot_id_seq;
+DROP SEQUENCE IF EXISTS repair_id_seq;
+DROP SEQUENCE IF EXISTS request_id_seq;
 
 -- Plane Table
 CREATE TABLE Plane (
@@ -51,9 +57,26 @@ CREATE TABLE FlightInstance (
     SeatsSold INTEGER,
     NumOfStops INTEGER,
     TicketCost DECIMAL(10,2),
+    -- stamped by flightinstance_changed, for the in-memory indexes to poll
+    ChangeXid BIGINT,
     FOREIGN KEY (FlightNumber) REFERENCES Flight(FlightNumber)
 );
 
+-- Every insert of an instance, and every update of the columns RouteIndex
+-- and FlightStatsRollup hold, seat sales included, records the writing
+-- transaction.  They re-read the rows of every transaction at or after the
+-- oldest one still running when they last read the table, so a write is
+-- picked up once it commits, however long its transaction was open.
+CREATE OR REPLACE FUNCTION flightinstance_changed() RETURNS trigger AS $$
+BEGIN
+    NEW.ChangeXid := txid_current();
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+CREATE TRIGGER flightinstance_changed BEFORE INSERT OR UPDATE OF FlightNumber, FlightDate, DepartedOnTime,
+    ArrivedOnTime, SeatsTotal, SeatsSold, NumOfStops ON FlightInstance
+    FOR EACH ROW EXECUTE PROCEDURE flightinstance_changed();
+
 -- Customer Table
 CREATE TABLE Customer (
     CustomerID INTEGER PRIMARY KEY,
@@ -106,8 +129,16 @@ CREATE TABLE MaintenanceRequest (
     RepairCode TEXT,
     RequestDate DATE,
     PilotID TEXT,
+    -- work queue: next departure of the plane, the technician working on
+    -- the request and since when, and the repair that closed it
+    DueDate DATE,
+    ClaimedBy TEXT,
+    ClaimedAt TIMESTAMP,
+    RepairID INTEGER,
     FOREIGN KEY (PlaneID) REFERENCES Plane(PlaneID),
-    FOREIGN KEY (PilotID) REFERENCES Pilot(PilotID)
+    FOREIGN KEY (PilotID) REFERENCES Pilot(PilotID),
+    FOREIGN KEY (ClaimedBy) REFERENCES Technician(TechnicianID),
+    FOREIGN KEY (RepairID) REFERENCES Repair(RepairID)
 );
 
 CREATE TABLE UserRoles (
@@ -115,6 +146,15 @@ CREATE TABLE UserRoles (
     description TEXT
 );
 
+-- Key sequences for the Java IdAllocator. Each nextval reserves a block of
+-- 50 ids (hi/lo), so INCREMENT BY must match IdAllocator.BLOCK_SIZE.
+CREATE SEQUENCE reservation_id_seq INCREMENT BY 50 START WITH 1;
+CREATE SEQUENCE customer_id_seq INCREMENT BY 50 START WITH 1;
+CREATE SEQUENCE technician_id_seq INCREMENT BY 50 START WITH 1;
+CREATE SEQUENCE pilot_id_seq INCREMENT BY 50 START WITH 1;
+CREATE SEQUENCE repair_id_seq INCREMENT BY 50 START WITH 1;
+CREATE SEQUENCE request_id_seq INCREMENT BY 50 START WITH 1;
+
 -- Added a User table for login
 CREATE TABLE Users (
     userID SERIAL PRIMARY KEY,
@@ -6,7 +6,7 @@
 
 \copy Schedule FROM 'data/Schedule.csv' WITH DELIMITER ',' CSV HEADER; 
 
-\copy FlightInstance FROM 'data/FlightInstance.csv' WITH DELIMITER ',' CSV HEADER; 
+\copy FlightInstance (FlightInstanceID, FlightNumber, FlightDate, DepartedOnTime, ArrivedOnTime, SeatsTotal, SeatsSold, NumOfStops, TicketCost) FROM 'data/FlightInstance.csv' WITH DELIMITER ',' CSV HEADER; 
 
 \copy Customer FROM 'data/Customer.csv' WITH DELIMITER ',' CSV HEADER; 
 
@@ -18,5 +18,15 @@
 
 \copy Pilot FROM 'data/Pilot.csv' WITH DELIMITER ',' CSV HEADER; 
 
-\copy MaintenanceRequest FROM 'data/MaintenanceRequest.csv' WITH DELIMITER ',' CSV HEADER; 
+\copy MaintenanceRequest (RequestID, PlaneID, RepairCode, RequestDate, PilotID) FROM 'data/MaintenanceRequest.csv' WITH DELIMITER ',' CSV HEADER; 
 
+-- Due date of the loaded requests in the technicians' work queue (WorkQueue.reprioritize)
+UPDATE MaintenanceRequest m SET DueDate = (SELECT MIN(fi.FlightDate) FROM FlightInstance fi JOIN Flight f ON f.FlightNumber = fi.FlightNumber WHERE f.PlaneID = m.PlaneID AND fi.FlightDate >= CURRENT_DATE);
+
+-- Move the key sequences past the loaded ids (one scan per table, at load time only)
+SELECT setval('reservation_id_seq', COALESCE(MAX(CAST(SUBSTRING(ReservationID FROM 2) AS INTEGER)), 0) + 1, false) FROM Reservation;
+SELECT setval('customer_id_seq', COALESCE(MAX(CustomerID), 0) + 1, false) FROM Customer;
+SELECT setval('technician_id_seq', COALESCE(MAX(CAST(SUBSTRING(TechnicianID FROM 2) AS INTEGER)), 0) + 1, false) FROM Technician;
+SELECT setval('pilot_id_seq', COALESCE(MAX(CAST(SUBSTRING(PilotID FROM 2) AS INTEGER)), 0) + 1, false) FROM Pilot;
+SELECT setval('repair_id_seq', COALESCE(MAX(RepairID), 0) + 1, false) FROM Repair;
+SELECT setval('request_id_seq', COALESCE(MAX(RequestID), 0) + 1, false) FROM MaintenanceRequest;